@@ -0,0 +1,260 @@
+package com.configtool.agent;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+// Picks the backend endpoint to connect to. All endpoints are probed together with non-blocking
+// TCP connects, and the healthy one with the lowest smoothed connect time wins. An endpoint the
+// WebSocket could not reach is skipped for an exponentially growing backoff.
+public class EndpointSelector {
+    private static final long FAILURE_BACKOFF_MS = 5_000;
+    private static final long MAX_FAILURE_BACKOFF_MS = 300_000;
+
+    private static final class Endpoint {
+        final String url;
+        final URI uri;
+        final String host;
+        final int port;
+        double latencyMs = -1;
+        boolean probeFailed;
+        long probeStarted;
+        int failures;
+        long retryAt;
+
+        Endpoint(String url, URI uri) {
+            this.url = url;
+            this.uri = uri;
+            this.host = uri.getHost();
+            boolean secure = "wss".equalsIgnoreCase(uri.getScheme()) || "https".equalsIgnoreCase(uri.getScheme());
+            this.port = uri.getPort() > 0 ? uri.getPort() : secure ? 443 : 80;
+        }
+    }
+
+    private final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+    private final Logger logger;
+    private final long probeTimeoutNanos;
+    private final int probeIntervalSeconds;
+    private final double switchMarginMs;
+    // Name lookups have no timeout of their own, so they run here and the probe only waits until its deadline
+    private final ExecutorService resolver = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ConfigTool-Resolve");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    public EndpointSelector(List<String> urls, String token, ModuleConfig config, Logger logger) throws Exception {
+        this.logger = logger;
+        this.probeTimeoutNanos = config.getConnectionInt("failover.probe-timeout-ms", 2000) * 1_000_000L;
+        this.probeIntervalSeconds = config.getConnectionInt("failover.probe-interval-seconds", 60);
+        this.switchMarginMs = config.getConnectionInt("failover.switch-margin-ms", 50);
+        for (String url : urls) endpoints.add(new Endpoint(url, new URI(url + "?token=" + token)));
+        if (endpoints.isEmpty()) throw new IllegalArgumentException("No server URL configured");
+    }
+
+    public int size() { return endpoints.size(); }
+    public int getProbeIntervalSeconds() { return probeIntervalSeconds; }
+
+    public void close() {
+        resolver.shutdownNow();
+    }
+
+    // Blocks for at most the probe timeout, however many endpoints there are; a host not resolved by then
+    // counts as unreachable
+    public void probe() {
+        long deadline = System.nanoTime() + probeTimeoutNanos;
+        Map<Endpoint, Future<InetSocketAddress>> addresses = new HashMap<Endpoint, Future<InetSocketAddress>>();
+        for (final Endpoint endpoint : endpoints) {
+            try {
+                addresses.put(endpoint, resolver.submit(new Callable<InetSocketAddress>() {
+                    @Override
+                    public InetSocketAddress call() {
+                        return new InetSocketAddress(endpoint.host, endpoint.port);
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                return;
+            }
+        }
+        List<Endpoint> pending = new ArrayList<Endpoint>();
+        try (Selector selector = Selector.open()) {
+            for (Endpoint endpoint : endpoints) {
+                SocketChannel channel = null;
+                try {
+                    InetSocketAddress address = resolve(addresses.get(endpoint), endpoint.host, deadline);
+                    if (address.isUnresolved()) throw new IOException("Unresolved host " + endpoint.host);
+                    channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    endpoint.probeStarted = System.nanoTime();
+                    if (channel.connect(address)) {
+                        probed(endpoint, true);
+                        channel.close();
+                    } else {
+                        channel.register(selector, SelectionKey.OP_CONNECT, endpoint);
+                        pending.add(endpoint);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    probed(endpoint, false);
+                    closeQuietly(channel);
+                }
+            }
+            // Cancelled keys stay in keys() until the next select, so track what is still pending
+            while (!pending.isEmpty()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) break;
+                selector.select(Math.max(1, remaining / 1_000_000));
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Endpoint endpoint = (Endpoint) key.attachment();
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    boolean connected;
+                    try {
+                        connected = channel.finishConnect();
+                    } catch (IOException e) {
+                        connected = false;
+                    }
+                    probed(endpoint, connected);
+                    pending.remove(endpoint);
+                    key.cancel();
+                    closeQuietly(channel);
+                }
+            }
+            for (SelectionKey key : selector.keys()) closeQuietly((SocketChannel) key.channel());
+            // Timed out
+            for (Endpoint endpoint : pending) probed(endpoint, false);
+        } catch (IOException e) {
+            logger.warning("Endpoint probe failed: " + e.getMessage());
+        }
+    }
+
+    private static InetSocketAddress resolve(Future<InetSocketAddress> lookup, String host, long deadline) throws IOException {
+        try {
+            return lookup.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            lookup.cancel(true);
+            throw new IOException("Resolving " + host + " timed out");
+        } catch (ExecutionException e) {
+            throw new IOException("Unresolved host " + host);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Probe interrupted");
+        }
+    }
+
+    private synchronized void probed(Endpoint endpoint, boolean reachable) {
+        endpoint.probeFailed = !reachable;
+        if (!reachable) return;
+        double rtt = (System.nanoTime() - endpoint.probeStarted) / 1_000_000.0;
+        endpoint.latencyMs = endpoint.latencyMs < 0 ? rtt : 0.7 * endpoint.latencyMs + 0.3 * rtt;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    // Endpoints in backoff are skipped unless every one of them is; then the first to come out wins
+    public synchronized URI select() {
+        long now = System.currentTimeMillis();
+        Endpoint best = null;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.retryAt > now) continue;
+            if (best == null || rank(endpoint) < rank(best)) best = endpoint;
+        }
+        if (best == null) {
+            for (Endpoint endpoint : endpoints) {
+                if (best == null || endpoint.retryAt < best.retryAt) best = endpoint;
+            }
+        }
+        return best.uri;
+    }
+
+    // Unprobed endpoints keep their configured order behind measured ones, unreachable ones go last
+    private static double rank(Endpoint endpoint) {
+        if (endpoint.probeFailed) return Double.MAX_VALUE;
+        return endpoint.latencyMs < 0 ? Double.MAX_VALUE / 2 : endpoint.latencyMs;
+    }
+
+    // A healthy endpoint closer than the current one by the switch margin, or null. A failed probe
+    // of the current endpoint is not enough while the socket itself still works.
+    public synchronized URI findBetter(URI current) {
+        Endpoint active = find(current);
+        if (active == null || active.probeFailed || active.latencyMs < 0) return null;
+        URI best = select();
+        Endpoint candidate = find(best);
+        if (candidate == active || candidate.probeFailed || candidate.latencyMs < 0) return null;
+        return candidate.latencyMs + switchMarginMs < active.latencyMs ? best : null;
+    }
+
+    public synchronized void reportFailure(URI uri) {
+        Endpoint endpoint = find(uri);
+        if (endpoint == null) return;
+        endpoint.failures++;
+        long backoff = Math.min(MAX_FAILURE_BACKOFF_MS, FAILURE_BACKOFF_MS << Math.min(endpoint.failures - 1, 10));
+        endpoint.retryAt = System.currentTimeMillis() + backoff;
+    }
+
+    public synchronized void reportSuccess(URI uri) {
+        Endpoint endpoint = find(uri);
+        if (endpoint == null) return;
+        endpoint.failures = 0;
+        endpoint.retryAt = 0;
+    }
+
+    // The configured URL, without the token, for logs and status output
+    public synchronized String describe(URI uri) {
+        Endpoint endpoint = find(uri);
+        return endpoint != null ? endpoint.url : uri.getHost();
+    }
+
+    public synchronized double getLatencyMs(URI uri) {
+        Endpoint endpoint = find(uri);
+        return endpoint != null ? endpoint.latencyMs : -1;
+    }
+
+    private Endpoint find(URI uri) {
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.uri.equals(uri)) return endpoint;
+        }
+        return null;
+    }
+
+    public synchronized List<Map<String, Object>> getStats() {
+        List<Map<String, Object>> stats = new ArrayList<Map<String, Object>>();
+        long now = System.currentTimeMillis();
+        for (Endpoint endpoint : endpoints) {
+            Map<String, Object> entry = new HashMap<String, Object>();
+            entry.put("url", endpoint.url);
+            entry.put("latencyMs", Math.round(endpoint.latencyMs * 10) / 10.0);
+            entry.put("reachable", !endpoint.probeFailed);
+            entry.put("failures", endpoint.failures);
+            entry.put("backoffMs", Math.max(0, endpoint.retryAt - now));
+            stats.add(entry);
+        }
+        return stats;
+    }
+}
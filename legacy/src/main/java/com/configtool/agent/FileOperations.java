@@ -1,6 +1,9 @@
 package com.configtool.agent;
 
+import com.google.gson.JsonArray;
+
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
@@ -11,6 +14,8 @@ public class FileOperations {
     private final Logger logger;
     private static final Set<String> ALLOWED_EXT;
     private static final long MAX_SIZE = 1024 * 1024;
+    private static final long MAX_DELTA_SIZE = 16 * 1024 * 1024;
+    private volatile Runnable changeListener;
 
     static {
         ALLOWED_EXT = new HashSet<String>();
@@ -24,6 +29,16 @@ public class FileOperations {
         this.logger = logger;
     }
 
+    // Called after any change made through this class, e.g. to drop cached directory listings
+    public void setChangeListener(Runnable listener) {
+        this.changeListener = listener;
+    }
+
+    private void changed() {
+        Runnable listener = changeListener;
+        if (listener != null) listener.run();
+    }
+
     public Map<String, Object> listFiles(String directory, int offset, int limit) throws IOException {
         File dir = resolve(directory);
         if (!dir.isDirectory()) throw new IllegalArgumentException("Not a directory");
@@ -85,6 +100,51 @@ public class FileOperations {
         return new String(bytes, StandardCharsets.UTF_8);
     }
 
+    // Delta reads and writes only move the changed ranges, so they allow larger files than READ_FILE
+    public byte[] readBytes(String path) throws IOException {
+        File f = resolve(path);
+        if (!f.isFile()) throw new IllegalArgumentException("Not a file");
+        if (!isAllowed(f.getName())) throw new SecurityException("File type not allowed");
+        if (f.length() > MAX_DELTA_SIZE) throw new IllegalArgumentException("File too large");
+        return Files.readAllBytes(f.toPath());
+    }
+
+    // Applies a delta only if the file is still the version the backend diffed against
+    public String writeFileDelta(String path, String baseHash, int blockSize, JsonArray ops, String resultHash) throws IOException {
+        File f = resolve(path);
+        if (!isAllowed(f.getName())) throw new SecurityException("File type not allowed");
+        byte[] base = f.isFile() ? readBytes(path) : new byte[0];
+        if (!DeltaSync.hash(base).equals(baseHash)) throw new IllegalStateException("Base hash mismatch");
+        byte[] content = DeltaSync.patch(base, blockSize, ops);
+        if (content.length > MAX_DELTA_SIZE) throw new IllegalArgumentException("Content too large");
+        String hash = DeltaSync.hash(content);
+        if (resultHash != null && !resultHash.equals(hash)) throw new IllegalArgumentException("Result hash mismatch");
+
+        File tmp = new File(f.getParentFile(), f.getName() + ".tmp");
+        try {
+            Files.write(tmp.toPath(), content);
+            replaceWith(f, tmp);
+        } finally {
+            if (tmp.exists()) tmp.delete();
+        }
+        logger.info("Written: " + path + " (delta)");
+        return hash;
+    }
+
+    // Read-only streaming has no size cap; the caller owns and closes the channel
+    public FileChannel openForRead(String path) throws IOException {
+        File f = resolve(path);
+        if (!f.isFile()) throw new IllegalArgumentException("Not a file");
+        if (!isAllowed(f.getName())) throw new SecurityException("File type not allowed");
+        return FileChannel.open(f.toPath(), StandardOpenOption.READ);
+    }
+
+    public long lastModified(String path) throws IOException {
+        File f = resolve(path);
+        if (!f.isFile()) throw new IllegalArgumentException("Not a file");
+        return f.lastModified();
+    }
+
     public void writeFile(String path, String content) throws IOException {
         File f = resolve(path);
         if (!isAllowed(f.getName())) throw new SecurityException("File type not allowed");
@@ -96,18 +156,54 @@ public class FileOperations {
         File tmp = new File(f.getParentFile(), f.getName() + ".tmp");
         try {
             Files.write(tmp.toPath(), content.getBytes(StandardCharsets.UTF_8));
-            if (f.exists()) {
-                File bak = new File(f.getParentFile(), f.getName() + ".bak");
-                if (bak.exists()) bak.delete();
-                f.renameTo(bak);
-            }
-            if (!tmp.renameTo(f)) throw new IOException("Failed to rename");
+            replaceWith(f, tmp);
         } finally {
             if (tmp.exists()) tmp.delete();
         }
         logger.info("Written: " + path);
     }
 
+    private void replaceWith(File f, File tmp) throws IOException {
+        if (f.exists()) {
+            File bak = new File(f.getParentFile(), f.getName() + ".bak");
+            if (bak.exists()) bak.delete();
+            f.renameTo(bak);
+        }
+        if (!tmp.renameTo(f)) throw new IOException("Failed to rename");
+        changed();
+    }
+
+    // Multi-part uploads write into their own temp file next to the target until committed
+    public FileChannel openUpload(String path) throws IOException {
+        File f = resolve(path);
+        if (!isAllowed(f.getName())) throw new SecurityException("File type not allowed");
+        if (f.isDirectory()) throw new IllegalArgumentException("Is a directory");
+        File parent = f.getParentFile();
+        if (parent != null && !parent.exists()) parent.mkdirs();
+        return FileChannel.open(uploadFile(f).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    public void commitUpload(String path) throws IOException {
+        File f = resolve(path);
+        File tmp = uploadFile(f);
+        try {
+            replaceWith(f, tmp);
+        } finally {
+            if (tmp.exists()) tmp.delete();
+        }
+        logger.info("Written: " + path + " (multi-part)");
+    }
+
+    public void discardUpload(String path) {
+        File tmp = uploadFile(resolve(path));
+        if (tmp.exists()) tmp.delete();
+    }
+
+    private static File uploadFile(File f) {
+        return new File(f.getParentFile(), f.getName() + ".upload.tmp");
+    }
+
     private File resolve(String path) {
         path = path.replace('\\', '/');
         if (path.contains("..") || path.startsWith("/")) throw new SecurityException("Invalid path");
@@ -143,6 +239,7 @@ public class FileOperations {
         } else {
             if (!f.delete()) throw new IOException("Failed to delete file");
         }
+        changed();
         logger.info("Deleted: " + path);
     }
 
@@ -171,6 +268,7 @@ public class FileOperations {
             if (parent != null && !parent.exists()) parent.mkdirs();
             if (!f.createNewFile()) throw new IOException("Failed to create file");
         }
+        changed();
         logger.info("Created: " + path + (isDirectory ? " (directory)" : ""));
     }
 
@@ -185,6 +283,7 @@ public class FileOperations {
         if (parent != null && !parent.exists()) parent.mkdirs();
 
         if (!oldFile.renameTo(newFile)) throw new IOException("Failed to rename file");
+        changed();
         logger.info("Renamed: " + oldPath + " -> " + newPath);
     }
 }
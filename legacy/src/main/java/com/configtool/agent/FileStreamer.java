@@ -0,0 +1,261 @@
+package com.configtool.agent;
+
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+// Streams files to the backend as binary chunk frames straight from a FileChannel. The backend
+// grants chunks with STREAM_CREDIT, so nothing is sent faster than it is consumed, and it can
+// resume an interrupted download by asking again from the offset it already has.
+public class FileStreamer {
+    public static final byte FLAG_STREAM_CHUNK = 0x08;
+    private static final int MAX_POOLED_BUFFERS = 8;
+    private static final long RETRY_MILLIS = 250;
+
+    private static final class Stream {
+        final String id;
+        final FileChannel channel;
+        final long size;
+        long position;
+        int credits;
+        boolean pumping;
+        boolean closed;
+        long lastActivity = System.currentTimeMillis();
+
+        Stream(String id, FileChannel channel, long size, long position, int credits) {
+            this.id = id;
+            this.channel = channel;
+            this.size = size;
+            this.position = position;
+            this.credits = credits;
+        }
+    }
+
+    private final WebSocketClient client;
+    private final FileOperations fileOps;
+    private final RequestExecutor requests;
+    private final ScheduledExecutorService scheduler;
+    private final Logger logger;
+    private final int chunkSize;
+    private final int maxStreams;
+    private final long idleMillis;
+    private final Map<String, Stream> streams = new ConcurrentHashMap<String, Stream>();
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+
+    public FileStreamer(WebSocketClient client, FileOperations fileOps, RequestExecutor requests, ScheduledExecutorService scheduler,
+                        ModuleConfig config, Logger logger) {
+        this.client = client;
+        this.fileOps = fileOps;
+        this.requests = requests;
+        this.scheduler = scheduler;
+        this.logger = logger;
+        this.chunkSize = Math.max(4, config.getConnectionInt("streaming.chunk-kb", 64)) * 1024;
+        this.maxStreams = config.getConnectionInt("streaming.max-streams", 8);
+        this.idleMillis = config.getConnectionInt("streaming.idle-timeout-seconds", 120) * 1000L;
+    }
+
+    // Sends the stream header as the response to requestId, then chunks as credit allows
+    public void open(String requestId, JsonObject data) throws IOException {
+        closeIdle();
+        if (streams.size() >= maxStreams) throw new IllegalStateException("Too many open streams");
+        String path = data.get("path").getAsString();
+        long offset = data.has("offset") ? data.get("offset").getAsLong() : 0;
+        int window = data.has("window") ? data.get("window").getAsInt() : 8;
+        long modifiedAt = fileOps.lastModified(path);
+        if (data.has("modifiedAt") && data.get("modifiedAt").getAsLong() != modifiedAt) {
+            throw new IllegalStateException("File changed since the interrupted download");
+        }
+        FileChannel channel = fileOps.openForRead(path);
+        long size = channel.size();
+        if (offset < 0 || offset > size) {
+            channel.close();
+            throw new IllegalArgumentException("Offset out of range");
+        }
+        Stream stream = new Stream(requestId, channel, size, offset, Math.max(1, window));
+        Stream previous = streams.put(requestId, stream);
+        if (previous != null) close(previous);
+        Map<String, Object> header = new HashMap<String, Object>();
+        header.put("streamId", requestId);
+        header.put("size", size);
+        header.put("offset", offset);
+        header.put("chunkSize", chunkSize);
+        header.put("modifiedAt", modifiedAt);
+        client.sendResponse(requestId, header);
+        schedule(stream);
+    }
+
+    public void grant(String streamId, int credits) {
+        Stream stream = streams.get(streamId);
+        if (stream == null) return;
+        synchronized (stream) {
+            stream.credits += credits;
+            stream.lastActivity = System.currentTimeMillis();
+        }
+        schedule(stream);
+    }
+
+    public void cancel(String streamId) {
+        Stream stream = streams.get(streamId);
+        if (stream != null) close(stream);
+    }
+
+    public void closeAll() {
+        for (Stream stream : streams.values()) close(stream);
+    }
+
+    private void closeIdle() {
+        long cutoff = System.currentTimeMillis() - idleMillis;
+        for (Iterator<Stream> it = streams.values().iterator(); it.hasNext(); ) {
+            Stream stream = it.next();
+            boolean idle;
+            synchronized (stream) { idle = !stream.pumping && stream.lastActivity < cutoff; }
+            if (idle) close(stream);
+        }
+    }
+
+    private void schedule(Stream stream) {
+        synchronized (stream) {
+            if (stream.pumping || stream.closed || stream.credits <= 0) return;
+            stream.pumping = true;
+        }
+        submit(stream);
+    }
+
+    // The backend sends no more credit until it gets chunks, so a full FILE_STREAM queue is retried
+    // shortly rather than left to stall the stream
+    private void submit(final Stream stream) {
+        boolean accepted = requests.submit("FILE_STREAM", true, new Runnable() {
+            @Override
+            public void run() {
+                pump(stream);
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                close(stream);
+            }
+        });
+        if (accepted) return;
+        boolean idle;
+        synchronized (stream) {
+            if (stream.closed) return;
+            idle = System.currentTimeMillis() - stream.lastActivity > idleMillis;
+        }
+        if (!idle) {
+            try {
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        submit(stream);
+                    }
+                }, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                return;
+            } catch (RejectedExecutionException ignored) {}
+        }
+        logger.warning("Aborting file stream " + stream.id + ": request queue full");
+        close(stream);
+    }
+
+    private void pump(Stream stream) {
+        ByteBuffer buffer = acquire();
+        try {
+            while (true) {
+                synchronized (stream) {
+                    if (stream.closed || stream.credits <= 0) {
+                        stream.pumping = false;
+                        return;
+                    }
+                    stream.credits--;
+                }
+                // Through Buffer: ByteBuffer's own clear/limit/flip are not on Java 8
+                ((Buffer) buffer).clear();
+                long remaining = stream.size - stream.position;
+                if (remaining < buffer.capacity()) ((Buffer) buffer).limit((int) remaining);
+                boolean eof = false;
+                while (buffer.hasRemaining() && !eof) {
+                    eof = stream.channel.read(buffer, stream.position + buffer.position()) < 0;
+                }
+                ((Buffer) buffer).flip();
+                // A file truncated mid-stream ends early rather than sending empty chunks
+                boolean last = eof || stream.position + buffer.remaining() >= stream.size;
+                if (!client.sendBinary(OutboundQueue.Lane.BULK, encodeChunk(stream, buffer, last))) {
+                    logger.warning("Aborting file stream " + stream.id + ": outbound queue stalled");
+                    close(stream);
+                    return;
+                }
+                bytesSent.addAndGet(buffer.limit());
+                stream.position += buffer.limit();
+                if (last) {
+                    completed.incrementAndGet();
+                    close(stream);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            logger.warning("File stream " + stream.id + " failed: " + e.getMessage());
+            close(stream);
+        } catch (RuntimeException e) {
+            logger.warning("File stream " + stream.id + " failed: " + e.getMessage());
+            close(stream);
+        } finally {
+            release(buffer);
+        }
+    }
+
+    // [flags][id length][id][offset][last][file bytes]
+    private static byte[] encodeChunk(Stream stream, ByteBuffer data, boolean last) {
+        byte[] id = stream.id.getBytes(StandardCharsets.UTF_8);
+        WireCodec.Output out = new WireCodec.Output(data.remaining() + id.length + 16);
+        out.write(FLAG_STREAM_CHUNK);
+        out.writeVarLong(id.length);
+        out.write(id, 0, id.length);
+        out.writeVarLong(stream.position);
+        out.write(last ? 1 : 0);
+        out.write(data);
+        return out.toByteArray();
+    }
+
+    private void close(Stream stream) {
+        synchronized (stream) {
+            if (stream.closed) return;
+            stream.closed = true;
+        }
+        streams.remove(stream.id, stream);
+        try {
+            stream.channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    private ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(chunkSize);
+    }
+
+    private void release(ByteBuffer buffer) {
+        if (buffers.size() < MAX_POOLED_BUFFERS) buffers.offer(buffer);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<String, Object>();
+        stats.put("active", streams.size());
+        stats.put("bytesSent", bytesSent.get());
+        stats.put("completed", completed.get());
+        return stats;
+    }
+}
@@ -21,10 +21,70 @@ public class ModuleConfig {
         return config.getBoolean("modules." + module + "." + key, defaultValue);
     }
 
+    public int getConnectionInt(String key, int defaultValue) {
+        return config.getInt("connection." + key, defaultValue);
+    }
+
+    public String getConnectionString(String key, String defaultValue) {
+        return config.getString("connection." + key, defaultValue);
+    }
+
+    public boolean getConnectionBoolean(String key, boolean defaultValue) {
+        return config.getBoolean("connection." + key, defaultValue);
+    }
+
     public int getMetricsIntervalSeconds() {
         return getInt("dashboard", "metrics-interval-seconds", 10);
     }
 
+    public boolean isSeriesEnabled() {
+        return getBoolean("dashboard", "series.enabled", true);
+    }
+
+    public int getSeriesSampleSeconds() {
+        return getInt("dashboard", "series.sample-seconds", 1);
+    }
+
+    public int getSeriesFlushSeconds() {
+        return getInt("dashboard", "series.flush-seconds", 60);
+    }
+
+    public boolean isIncidentsEnabled() {
+        return getBoolean("dashboard", "incidents.enabled", true);
+    }
+
+    public int getIncidentTpsThreshold() {
+        return getInt("dashboard", "incidents.tps-below", 15);
+    }
+
+    public int getIncidentMsptThreshold() {
+        return getInt("dashboard", "incidents.mspt-p95-above", 100);
+    }
+
+    public int getIncidentPreSeconds() {
+        return getInt("dashboard", "incidents.pre-seconds", 60);
+    }
+
+    public int getIncidentPostSeconds() {
+        return getInt("dashboard", "incidents.post-seconds", 30);
+    }
+
+    public int getIncidentMaxSeconds() {
+        return getInt("dashboard", "incidents.max-seconds", 300);
+    }
+
+    public int getIncidentCooldownSeconds() {
+        return getInt("dashboard", "incidents.cooldown-seconds", 600);
+    }
+
+    public int getTickBudgetMillis() {
+        return getInt("dashboard", "tick-budget-ms", 50);
+    }
+
+    public int getWorldRecountSeconds() {
+        return getInt("dashboard", "world-recount-seconds", 60);
+    }
+
     public boolean isAllowEnableDisable() {
         return getBoolean("plugins", "allow-enable-disable", true);
     }
@@ -45,6 +105,10 @@ public class ModuleConfig {
         return getInt("performance", "tick-sample-interval-ticks", 600);
     }
 
+    public boolean isPluginTimingEnabled() {
+        return getBoolean("performance", "plugin-timing", true);
+    }
+
     public int getConsoleBufferSize() {
         return getInt("console", "buffer-size", 1000);
     }
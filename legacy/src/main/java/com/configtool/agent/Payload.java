@@ -0,0 +1,6 @@
+package com.configtool.agent;
+
+// A push body that writes its own fields, so hot telemetry paths never build a Map first
+public interface Payload {
+    void writeTo(PayloadWriter out);
+}
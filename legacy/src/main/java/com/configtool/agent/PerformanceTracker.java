@@ -10,28 +10,50 @@ import java.util.*;
 public class PerformanceTracker extends BukkitRunnable {
     private final ConfigToolAgent plugin;
     private final WebSocketClient wsClient;
+    private final long intervalMillis;
+    private long lastRun;
 
-    public PerformanceTracker(ConfigToolAgent plugin, WebSocketClient wsClient) {
+    public PerformanceTracker(ConfigToolAgent plugin, WebSocketClient wsClient, int intervalTicks) {
         this.plugin = plugin;
         this.wsClient = wsClient;
+        this.intervalMillis = intervalTicks * 50L;
     }
 
     @Override
     public void run() {
-        if (wsClient == null || !wsClient.isOpen()) return;
+        if (wsClient == null) return;
+        // Scheduled every second; samples follow the subscription
+        long now = System.currentTimeMillis();
+        if (!plugin.getSubscriptions().isDue(Subscriptions.PERFORMANCE, intervalMillis, lastRun)) return;
+        lastRun = now;
         try {
             List<Map<String, Object>> pluginTicks = new ArrayList<Map<String, Object>>();
-            try {
-                for (Plugin p : plugin.getServer().getPluginManager().getPlugins()) {
+            PluginProfiler profiler = plugin.getProfiler();
+            boolean timed = profiler != null && profiler.isEnabled();
+            if (timed) {
+                // Busiest first; tickTimeMs is the average per tick over the window, worstMs one call
+                for (PluginProfiler.Sample sample : profiler.drain()) {
                     Map<String, Object> entry = new HashMap<String, Object>();
-                    entry.put("pluginName", p.getName());
-                    entry.put("tickTimeMs", 0.0);
+                    entry.put("pluginName", sample.pluginName);
+                    entry.put("tickTimeMs", sample.tickTimeMs);
+                    entry.put("calls", sample.calls);
+                    entry.put("worstMs", sample.worstMs);
                     pluginTicks.add(entry);
                 }
-            } catch (Exception ignored) {}
+            } else {
+                try {
+                    for (Plugin p : plugin.getServer().getPluginManager().getPlugins()) {
+                        Map<String, Object> entry = new HashMap<String, Object>();
+                        entry.put("pluginName", p.getName());
+                        entry.put("tickTimeMs", 0.0);
+                        pluginTicks.add(entry);
+                    }
+                } catch (Exception ignored) {}
+            }
 
             Map<String, Object> data = new HashMap<String, Object>();
             data.put("pluginTicks", pluginTicks);
+            data.put("pluginTiming", timed);
 
             long gcCount = 0, gcTime = 0;
             for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
@@ -1,5 +1,6 @@
 package com.configtool.agent;
 
+import org.bukkit.Location;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
@@ -12,10 +13,50 @@ import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class PlayerTracker implements Listener {
+    // extraKey is ipHash or eventData depending on the event, or null
+    private static final class Event {
+        final String playerUuid;
+        final String playerName;
+        final String eventType;
+        final String worldName;
+        final double x, y, z;
+        final String extraKey;
+        final String extraValue;
+
+        Event(Player player, String eventType, String extraKey, String extraValue) {
+            this.playerUuid = player.getUniqueId().toString();
+            this.playerName = player.getName();
+            this.eventType = eventType;
+            this.worldName = player.getWorld().getName();
+            Location loc = player.getLocation();
+            this.x = loc.getX();
+            this.y = loc.getY();
+            this.z = loc.getZ();
+            this.extraKey = extraKey;
+            this.extraValue = extraValue;
+        }
+
+        void writeTo(PayloadWriter out) {
+            out.beginObject(extraKey != null ? 8 : 7)
+                .name("playerUuid").value(playerUuid)
+                .name("playerName").value(playerName)
+                .name("eventType").value(eventType)
+                .name("worldName").value(worldName)
+                .name("x").value(x)
+                .name("y").value(y)
+                .name("z").value(z);
+            if (extraKey != null) out.name(extraKey).value(extraValue);
+            out.endObject();
+        }
+    }
+
+    private static final int BASE_BATCH = 200;
+
     private final ConfigToolAgent plugin;
     private final WebSocketClient wsClient;
     private final int batchIntervalSeconds;
-    private final ConcurrentLinkedQueue<Map<String, Object>> eventBuffer = new ConcurrentLinkedQueue<Map<String, Object>>();
+    private final ConcurrentLinkedQueue<Event> eventBuffer = new ConcurrentLinkedQueue<Event>();
+    private volatile long lastFlush = System.currentTimeMillis();
 
     public PlayerTracker(ConfigToolAgent plugin, WebSocketClient wsClient, int batchIntervalSeconds) {
         this.plugin = plugin;
@@ -25,80 +66,81 @@ public class PlayerTracker implements Listener {
 
     public void start() {
         plugin.getServer().getPluginManager().registerEvents(this, plugin);
+        // Checked every second so the interval can follow the measured link
         new BukkitRunnable() {
             @Override
             public void run() {
-                flush();
+                if (isDue()) flush();
             }
-        }.runTaskTimerAsynchronously(plugin, batchIntervalSeconds * 20L, batchIntervalSeconds * 20L);
+        }.runTaskTimerAsynchronously(plugin, 20L, 20L);
+    }
+
+    private boolean isDue() {
+        return plugin.getSubscriptions().isDue(Subscriptions.PLAYERS, batchIntervalSeconds * 1000L, lastFlush)
+            || eventBuffer.size() >= batchLimit();
+    }
+
+    private int batchLimit() {
+        LinkMonitor link = plugin.getLinkMonitor();
+        return link != null ? link.scaleBatch(BASE_BATCH) : BASE_BATCH;
     }
 
     private void flush() {
-        if (eventBuffer.isEmpty() || wsClient == null || !wsClient.isOpen()) return;
-        List<Map<String, Object>> batch = new ArrayList<Map<String, Object>>();
-        Map<String, Object> entry;
-        while ((entry = eventBuffer.poll()) != null && batch.size() < 200) {
+        lastFlush = System.currentTimeMillis();
+        if (eventBuffer.isEmpty() || wsClient == null) return;
+        int limit = batchLimit();
+        final List<Event> batch = new ArrayList<Event>();
+        Event entry;
+        while (batch.size() < limit && (entry = eventBuffer.poll()) != null) {
             batch.add(entry);
         }
         if (!batch.isEmpty()) {
-            Map<String, Object> data = new HashMap<String, Object>();
-            data.put("events", batch);
-            wsClient.sendPush("PLAYER_EVENT", data);
+            wsClient.sendPush("PLAYER_EVENT", new Payload() {
+                @Override
+                public void writeTo(PayloadWriter out) {
+                    out.beginObject(1).name("events").beginArray(batch.size());
+                    for (Event e : batch) e.writeTo(out);
+                    out.endArray().endObject();
+                }
+            });
         }
     }
 
-    private void addEvent(Player player, String eventType, Map<String, Object> extra) {
-        Map<String, Object> event = new HashMap<String, Object>();
-        event.put("playerUuid", player.getUniqueId().toString());
-        event.put("playerName", player.getName());
-        event.put("eventType", eventType);
-        event.put("worldName", player.getWorld().getName());
-        event.put("x", player.getLocation().getX());
-        event.put("y", player.getLocation().getY());
-        event.put("z", player.getLocation().getZ());
-        if (extra != null) event.putAll(extra);
-        eventBuffer.add(event);
+    // Nothing is collected while the stream is paused
+    private void addEvent(Player player, String eventType, String extraKey, String extraValue) {
+        if (plugin.getSubscriptions().isPaused(Subscriptions.PLAYERS)) return;
+        eventBuffer.add(new Event(player, eventType, extraKey, extraValue));
     }
 
     @EventHandler
     public void onJoin(PlayerJoinEvent e) {
         String ipHash = hashIp(e.getPlayer().getAddress() != null ? e.getPlayer().getAddress().getAddress().getHostAddress() : "");
-        Map<String, Object> extra = new HashMap<String, Object>();
-        extra.put("ipHash", ipHash);
-        addEvent(e.getPlayer(), "JOIN", extra);
+        addEvent(e.getPlayer(), "JOIN", "ipHash", ipHash);
     }
 
     @EventHandler
     public void onQuit(PlayerQuitEvent e) {
-        addEvent(e.getPlayer(), "LEAVE", null);
+        addEvent(e.getPlayer(), "LEAVE", null, null);
     }
 
     @EventHandler
     public void onDeath(PlayerDeathEvent e) {
-        Map<String, Object> extra = new HashMap<String, Object>();
-        extra.put("eventData", e.getDeathMessage() != null ? e.getDeathMessage() : "");
-        addEvent(e.getEntity(), "DEATH", extra);
+        addEvent(e.getEntity(), "DEATH", "eventData", e.getDeathMessage() != null ? e.getDeathMessage() : "");
     }
 
     @EventHandler
     public void onChat(AsyncPlayerChatEvent e) {
-        Map<String, Object> extra = new HashMap<String, Object>();
-        extra.put("eventData", e.getMessage());
-        addEvent(e.getPlayer(), "CHAT", extra);
+        addEvent(e.getPlayer(), "CHAT", "eventData", e.getMessage());
     }
 
     @EventHandler
     public void onCommand(PlayerCommandPreprocessEvent e) {
-        Map<String, Object> extra = new HashMap<String, Object>();
-        extra.put("eventData", e.getMessage());
-        addEvent(e.getPlayer(), "COMMAND", extra);
+        addEvent(e.getPlayer(), "COMMAND", "eventData", e.getMessage());
     }
 
     @EventHandler
     public void onAdvancement(PlayerAdvancementDoneEvent e) {
-        Map<String, Object> extra = new HashMap<String, Object>();
-        extra.put("eventData", e.getAdvancement().getKey().getKey());
-        addEvent(e.getPlayer(), "ADVANCEMENT", extra);
+        addEvent(e.getPlayer(), "ADVANCEMENT", "eventData", e.getAdvancement().getKey().getKey());
     }
 
     public void shutdown() {
@@ -0,0 +1,271 @@
+package com.configtool.agent;
+
+import org.bukkit.event.Event;
+import org.bukkit.event.EventException;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.plugin.EventExecutor;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.RegisteredListener;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Main-thread time per plugin. While enabled, every registered listener and every pending sync task
+// is wrapped with a nanoTime pair; listeners and tasks that appear later are picked up once a second.
+// Async events and async tasks are not timed since they do not hold up the tick. Sync tasks are
+// reached through the scheduler's task objects by reflection; if that fails only listeners are timed.
+public class PluginProfiler {
+    private static final int RESCAN_TICKS = 20;
+    // The wrapper calls the original listener itself and never uses its executor
+    private static final EventExecutor NO_EXECUTOR = new EventExecutor() {
+        @Override
+        public void execute(Listener listener, Event event) {}
+    };
+
+    private static final class Times {
+        long nanos;
+        long calls;
+        long worst;
+
+        synchronized void record(long elapsed) {
+            nanos += elapsed;
+            calls++;
+            if (elapsed > worst) worst = elapsed;
+        }
+
+        synchronized long[] drain() {
+            long[] drained = {nanos, calls, worst};
+            nanos = calls = worst = 0;
+            return drained;
+        }
+    }
+
+    public static final class Sample {
+        public final String pluginName;
+        public final double tickTimeMs;
+        public final long calls;
+        public final double worstMs;
+
+        Sample(String pluginName, double tickTimeMs, long calls, double worstMs) {
+            this.pluginName = pluginName;
+            this.tickTimeMs = tickTimeMs;
+            this.calls = calls;
+            this.worstMs = worstMs;
+        }
+    }
+
+    private static final class TimedListener extends RegisteredListener {
+        final RegisteredListener original;
+        final Times times;
+
+        TimedListener(RegisteredListener original, Times times) {
+            super(original.getListener(), NO_EXECUTOR, original.getPriority(), original.getPlugin(), original.isIgnoringCancelled());
+            this.original = original;
+            this.times = times;
+        }
+
+        @Override
+        public void callEvent(Event event) throws EventException {
+            if (event.isAsynchronous()) {
+                original.callEvent(event);
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                original.callEvent(event);
+            } finally {
+                times.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private static final class TimedTask implements Runnable, Consumer<BukkitTask> {
+        final Object original;
+        final Times times;
+
+        TimedTask(Object original, Times times) {
+            this.original = original;
+            this.times = times;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                ((Runnable) original).run();
+            } finally {
+                times.record(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void accept(BukkitTask task) {
+            long start = System.nanoTime();
+            try {
+                ((Consumer<BukkitTask>) original).accept(task);
+            } finally {
+                times.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private final ConfigToolAgent plugin;
+    private final Map<String, Times> times = new ConcurrentHashMap<String, Times>();
+    private final AtomicLong ticks = new AtomicLong();
+    private volatile boolean enabled;
+    private BukkitTask counter;
+    // CraftTask's Runnable and Consumer fields; servers without Consumer tasks get the Runnable twice
+    private Field runnableField;
+    private Field consumerField;
+    private boolean tasksUnsupported;
+
+    public PluginProfiler(ConfigToolAgent plugin) {
+        this.plugin = plugin;
+    }
+
+    public boolean isEnabled() { return enabled; }
+
+    // Must be called on the main thread
+    public void setEnabled(boolean on) {
+        if (on == enabled) return;
+        enabled = on;
+        if (on) {
+            ticks.set(0);
+            for (Times t : times.values()) t.drain();
+            wrapAll();
+            counter = new BukkitRunnable() {
+                @Override
+                public void run() {
+                    if (ticks.incrementAndGet() % RESCAN_TICKS == 0) wrapAll();
+                }
+            }.runTaskTimer(plugin, 1L, 1L);
+        } else {
+            if (counter != null) counter.cancel();
+            counter = null;
+            unwrapAll();
+        }
+    }
+
+    // Per-plugin main-thread time since the previous call, averaged over the ticks in between
+    public List<Sample> drain() {
+        long elapsedTicks = Math.max(1, ticks.getAndSet(0));
+        List<Sample> samples = new ArrayList<Sample>();
+        for (Map.Entry<String, Times> entry : times.entrySet()) {
+            long[] drained = entry.getValue().drain();
+            if (drained[1] == 0) continue;
+            samples.add(new Sample(entry.getKey(), millis(drained[0] / elapsedTicks), drained[1], millis(drained[2])));
+        }
+        Collections.sort(samples, new Comparator<Sample>() {
+            @Override
+            public int compare(Sample a, Sample b) { return Double.compare(b.tickTimeMs, a.tickTimeMs); }
+        });
+        return samples;
+    }
+
+    private Times times(Plugin owner) {
+        Times existing = times.get(owner.getName());
+        if (existing != null) return existing;
+        Times created = new Times();
+        existing = times.putIfAbsent(owner.getName(), created);
+        return existing != null ? existing : created;
+    }
+
+    private void wrapAll() {
+        for (HandlerList handlers : HandlerList.getHandlerLists()) {
+            RegisteredListener[] listeners = handlers.getRegisteredListeners();
+            boolean unwrapped = false;
+            for (RegisteredListener listener : listeners) unwrapped |= !(listener instanceof TimedListener);
+            if (unwrapped) replace(handlers, listeners, true);
+        }
+        if (tasksUnsupported) return;
+        for (BukkitTask task : plugin.getServer().getScheduler().getPendingTasks()) {
+            if (!task.isSync()) continue;
+            try {
+                swapTask(task, true);
+            } catch (Exception e) {
+                tasksUnsupported = true;
+                plugin.getLogger().warning("Scheduled tasks cannot be timed on this server, only listeners: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private void unwrapAll() {
+        for (HandlerList handlers : HandlerList.getHandlerLists()) {
+            RegisteredListener[] listeners = handlers.getRegisteredListeners();
+            boolean wrapped = false;
+            for (RegisteredListener listener : listeners) wrapped |= listener instanceof TimedListener;
+            if (wrapped) replace(handlers, listeners, false);
+        }
+        if (tasksUnsupported) return;
+        for (BukkitTask task : plugin.getServer().getScheduler().getPendingTasks()) {
+            try {
+                swapTask(task, false);
+            } catch (Exception e) {
+                return;
+            }
+        }
+    }
+
+    // Re-registers the whole list in its original order, holding the list's lock so an event fired
+    // from another thread bakes either the old set or the new one, never a partial one
+    private void replace(HandlerList handlers, RegisteredListener[] listeners, boolean wrap) {
+        synchronized (handlers) {
+            for (RegisteredListener listener : listeners) handlers.unregister(listener);
+            for (RegisteredListener listener : listeners) {
+                if (wrap) {
+                    handlers.register(listener instanceof TimedListener ? listener : new TimedListener(listener, times(listener.getPlugin())));
+                } else {
+                    handlers.register(listener instanceof TimedListener ? ((TimedListener) listener).original : listener);
+                }
+            }
+        }
+    }
+
+    private void swapTask(BukkitTask task, boolean wrap) throws ReflectiveOperationException {
+        if (runnableField == null) {
+            runnableField = findField(task.getClass(), "rTask");
+            try {
+                consumerField = findField(task.getClass(), "cTask");
+            } catch (NoSuchFieldException e) {
+                consumerField = runnableField;
+            }
+        }
+        for (Field field : new Field[] {runnableField, consumerField}) {
+            if (!field.getDeclaringClass().isInstance(task)) continue;
+            Object current = field.get(task);
+            if (current == null) continue;
+            if (wrap && !(current instanceof TimedTask)) {
+                field.set(task, new TimedTask(current, times(task.getOwner())));
+            } else if (!wrap && current instanceof TimedTask) {
+                field.set(task, ((TimedTask) current).original);
+            }
+        }
+    }
+
+    private static Field findField(Class<?> type, String name) throws NoSuchFieldException {
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            try {
+                Field field = c.getDeclaredField(name);
+                field.setAccessible(true);
+                return field;
+            } catch (NoSuchFieldException ignored) {}
+        }
+        throw new NoSuchFieldException(type.getName() + "." + name);
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 10_000.0) / 100.0;
+    }
+}
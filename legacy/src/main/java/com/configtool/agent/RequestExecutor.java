@@ -0,0 +1,253 @@
+package com.configtool.agent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+// Runs backend requests on the agent's own threads instead of the shared Bukkit async pool.
+// Each request type gets a concurrency cap and a bounded wait queue, so a burst of one kind of
+// request can neither starve other plugins nor crowd out the agent's other request types.
+public class RequestExecutor {
+    private static final long SYNC_TIMEOUT_SECONDS = 30;
+
+    private final class Task implements Runnable {
+        final TypeQueue queue;
+        final boolean cancellable;
+        final Runnable body;
+        final Runnable onCancel;
+        volatile Thread runner;
+        volatile Future<?> sync;
+
+        Task(TypeQueue queue, boolean cancellable, Runnable body, Runnable onCancel) {
+            this.queue = queue;
+            this.cancellable = cancellable;
+            this.body = body;
+            this.onCancel = onCancel;
+        }
+
+        @Override
+        public void run() {
+            runner = Thread.currentThread();
+            Thread.interrupted();
+            CURRENT.set(this);
+            try {
+                body.run();
+            } catch (Throwable t) {
+                logger.warning("Request task failed: " + t);
+            } finally {
+                CURRENT.remove();
+                runner = null;
+                Thread.interrupted();
+                finished(this);
+            }
+        }
+    }
+
+    private static final class TypeQueue {
+        final String type;
+        final int limit;
+        final ArrayDeque<Task> pending = new ArrayDeque<Task>();
+        final Set<Task> running = new HashSet<Task>();
+        long completed;
+        long rejected;
+        long cancelled;
+        int peakQueued;
+
+        TypeQueue(String type, int limit) {
+            this.type = type;
+            this.limit = limit;
+        }
+    }
+
+    private static final ThreadLocal<Task> CURRENT = new ThreadLocal<Task>();
+
+    private final ConfigToolAgent plugin;
+    private final Logger logger;
+    private final ModuleConfig config;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final int maxQueued;
+    private final Map<String, TypeQueue> queues = new HashMap<String, TypeQueue>();
+    private final Object lock = new Object();
+
+    public RequestExecutor(ConfigToolAgent plugin, ModuleConfig config, Logger logger) {
+        this.plugin = plugin;
+        this.config = config;
+        this.logger = logger;
+        this.maxQueued = config.getConnectionInt("requests.max-queued", 32);
+        ExecutorService virtual = createVirtualExecutor();
+        this.virtualThreads = virtual != null;
+        this.executor = virtual != null ? virtual : createPlatformExecutor(config.getConnectionInt("requests.platform-threads", 4));
+    }
+
+    // Java 21+ only; looked up reflectively since this build targets Java 8
+    private static ExecutorService createVirtualExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService createPlatformExecutor(int threads) {
+        final AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ConfigTool-Request-" + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    // Returns false when the type's queue is full; the caller should answer the request with an error
+    public boolean submit(String type, boolean cancellable, Runnable body, Runnable onCancel) {
+        synchronized (lock) {
+            if (executor.isShutdown()) return false;
+            TypeQueue queue = queues.get(type);
+            if (queue == null) {
+                queue = new TypeQueue(type, limitFor(type));
+                queues.put(type, queue);
+            }
+            Task task = new Task(queue, cancellable, body, onCancel);
+            if (queue.running.size() < queue.limit) {
+                queue.running.add(task);
+                executor.execute(task);
+                return true;
+            }
+            if (queue.pending.size() >= maxQueued) {
+                queue.rejected++;
+                return false;
+            }
+            queue.pending.addLast(task);
+            queue.peakQueued = Math.max(queue.peakQueued, queue.pending.size());
+            return true;
+        }
+    }
+
+    private int limitFor(String type) {
+        int fallback = config.getConnectionInt("requests.max-concurrent.default", 4);
+        return Math.max(1, config.getConnectionInt("requests.max-concurrent." + type, fallback));
+    }
+
+    private void finished(Task task) {
+        synchronized (lock) {
+            TypeQueue queue = task.queue;
+            queue.running.remove(task);
+            queue.completed++;
+            Task next = queue.pending.pollFirst();
+            if (next != null && !executor.isShutdown()) {
+                queue.running.add(next);
+                executor.execute(next);
+            }
+        }
+    }
+
+    // Runs work on the server thread and waits for it; cancelled along with the calling request
+    public <T> T callSync(Callable<T> callable) throws Exception {
+        Future<T> future = plugin.getServer().getScheduler().callSyncMethod(plugin, callable);
+        Task task = CURRENT.get();
+        if (task != null) task.sync = future;
+        try {
+            try {
+                return future.get(SYNC_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                // Cancelled before the main thread reached it, it never runs and the request can be retried;
+                // once started it is waited out, so the reply says what it did
+                if (future.cancel(false)) throw e;
+                return future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            throw e;
+        } finally {
+            if (task != null) task.sync = null;
+        }
+    }
+
+    // Socket closed: queued requests are answered as cancelled and read-only work in progress is
+    // interrupted. Mutating requests already running finish so their responses can be resent.
+    public void cancelAll() {
+        List<Task> cancelled = new ArrayList<Task>();
+        synchronized (lock) {
+            for (TypeQueue queue : queues.values()) {
+                queue.cancelled += queue.pending.size();
+                cancelled.addAll(queue.pending);
+                queue.pending.clear();
+                for (Task task : queue.running) {
+                    if (!task.cancellable) continue;
+                    Future<?> sync = task.sync;
+                    if (sync != null) sync.cancel(false);
+                    Thread runner = task.runner;
+                    if (runner != null) runner.interrupt();
+                }
+            }
+        }
+        for (Task task : cancelled) {
+            if (task.onCancel != null) task.onCancel.run();
+        }
+    }
+
+    public void shutdown() {
+        cancelAll();
+        executor.shutdownNow();
+    }
+
+    public int getRunning() {
+        synchronized (lock) {
+            int total = 0;
+            for (TypeQueue queue : queues.values()) total += queue.running.size();
+            return total;
+        }
+    }
+
+    public int getQueued() {
+        synchronized (lock) {
+            int total = 0;
+            for (TypeQueue queue : queues.values()) total += queue.pending.size();
+            return total;
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<String, Object>();
+        Map<String, Object> types = new HashMap<String, Object>();
+        synchronized (lock) {
+            for (TypeQueue queue : queues.values()) {
+                Map<String, Object> typeStats = new HashMap<String, Object>();
+                typeStats.put("limit", queue.limit);
+                typeStats.put("running", queue.running.size());
+                typeStats.put("queued", queue.pending.size());
+                typeStats.put("peakQueued", queue.peakQueued);
+                typeStats.put("completed", queue.completed);
+                typeStats.put("rejected", queue.rejected);
+                typeStats.put("cancelled", queue.cancelled);
+                types.put(queue.type, typeStats);
+            }
+        }
+        stats.put("virtualThreads", virtualThreads);
+        stats.put("types", types);
+        return stats;
+    }
+
+    public boolean isVirtualThreads() { return virtualThreads; }
+}
@@ -0,0 +1,52 @@
+package com.configtool.agent;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Stage timestamps (System.nanoTime) of one backend request, from its frame arriving to the reply
+// being handed to the socket. Stamps are set by whichever thread owns the request at that point;
+// a stage that did not happen stays 0.
+public final class RequestTrace {
+    public enum Stage { PARSE, QUEUE, MAIN_THREAD, HANDLER, SERIALIZE, SEND_QUEUE, WRITE, TOTAL }
+
+    final String type;
+    final long received;
+    volatile long parsed;
+    volatile long started;
+    volatile long mainThread;
+    volatile long handled;
+    volatile long serialized;
+    volatile long dequeued;
+    private final LatencyTracker tracker;
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    RequestTrace(LatencyTracker tracker, String type, long received) {
+        this.tracker = tracker;
+        this.type = type;
+        this.received = received;
+        this.parsed = System.nanoTime();
+    }
+
+    // Only the first call counts, so a reply retransmitted after a resume is not recorded twice
+    void finish() {
+        if (finished.compareAndSet(false, true)) tracker.record(type, durations(System.nanoTime()));
+    }
+
+    // Microseconds per stage, -1 for stages the request skipped
+    long[] durations(long done) {
+        long[] us = new long[Stage.values().length];
+        long handlerStart = mainThread > 0 ? mainThread : started;
+        us[Stage.PARSE.ordinal()] = micros(received, parsed);
+        us[Stage.QUEUE.ordinal()] = micros(parsed, started);
+        us[Stage.MAIN_THREAD.ordinal()] = mainThread > 0 ? micros(started, mainThread) : -1;
+        us[Stage.HANDLER.ordinal()] = micros(handlerStart, handled);
+        us[Stage.SERIALIZE.ordinal()] = serialized > 0 ? micros(handled, serialized) : -1;
+        us[Stage.SEND_QUEUE.ordinal()] = dequeued > 0 ? micros(serialized, dequeued) : -1;
+        us[Stage.WRITE.ordinal()] = dequeued > 0 ? micros(dequeued, done) : -1;
+        us[Stage.TOTAL.ordinal()] = micros(received, done);
+        return us;
+    }
+
+    private static long micros(long from, long to) {
+        return Math.max(0, (to - from) / 1000);
+    }
+}
@@ -0,0 +1,165 @@
+package com.configtool.agent;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.server.PluginDisableEvent;
+import org.bukkit.event.server.PluginEnableEvent;
+import org.bukkit.event.world.WorldLoadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Replies to read-mostly requests, kept until their TTL runs out or an event changes what they
+// describe. Each reply carries a version; a request whose data.ifVersion still matches is answered
+// with notModified instead of the full payload.
+public class ResponseCache implements Listener {
+    public static final String WORLDS = "worlds";
+    public static final String PLUGINS = "plugins";
+    public static final String FILES = "files";
+
+    private static final Map<String, String> SCOPES = new HashMap<String, String>();
+    private static final int MAX_ENTRIES = 256;
+
+    static {
+        SCOPES.put("GET_WORLDS", WORLDS);
+        SCOPES.put("GET_PLUGINS", PLUGINS);
+        SCOPES.put("LIST_FILES", FILES);
+    }
+
+    private static final class Entry {
+        final String scope;
+        final long generation;
+        final long version;
+        final long expiresAt;
+        final Map<String, Object> result;
+
+        Entry(String scope, long generation, long version, long expiresAt, Map<String, Object> result) {
+            this.scope = scope;
+            this.generation = generation;
+            this.version = version;
+            this.expiresAt = expiresAt;
+            this.result = result;
+        }
+    }
+
+    private final ConfigToolAgent plugin;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    // Bumped by every invalidation; entries computed under an older generation are stale
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+    // Seeded from the clock so versions handed out before a restart do not match new ones
+    private final AtomicLong versions = new AtomicLong(System.currentTimeMillis());
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public ResponseCache(ConfigToolAgent plugin) {
+        this.plugin = plugin;
+        for (String scope : SCOPES.values()) generations.put(scope, new AtomicLong());
+    }
+
+    public void start(FileOperations fileOps) {
+        plugin.getServer().getPluginManager().registerEvents(this, plugin);
+        fileOps.setChangeListener(new Runnable() {
+            @Override
+            public void run() {
+                invalidate(FILES);
+            }
+        });
+    }
+
+    public boolean isCacheable(String type) {
+        return SCOPES.containsKey(type) && ttlMillis(type) > 0;
+    }
+
+    // The cached reply with its version, {notModified, version} if the caller already has it, or null
+    public Map<String, Object> lookup(String type, JsonObject data) {
+        Entry entry = entries.get(key(type, data));
+        if (entry == null || !isValid(entry)) return null;
+        if (data.has("ifVersion") && data.get("ifVersion").getAsString().equals(String.valueOf(entry.version))) {
+            notModified.incrementAndGet();
+            Map<String, Object> reply = new HashMap<String, Object>();
+            reply.put("notModified", true);
+            reply.put("version", entry.version);
+            return reply;
+        }
+        hits.incrementAndGet();
+        return entry.result;
+    }
+
+    public Map<String, Object> load(String type, JsonObject data, Callable<Map<String, Object>> compute) throws Exception {
+        String scope = SCOPES.get(type);
+        long generation = generations.get(scope).get();
+        misses.incrementAndGet();
+        Map<String, Object> result = new HashMap<String, Object>(compute.call());
+        long version = versions.incrementAndGet();
+        result.put("version", version);
+        if (entries.size() >= MAX_ENTRIES) evict();
+        entries.put(key(type, data), new Entry(scope, generation, version, System.currentTimeMillis() + ttlMillis(type), result));
+        return result;
+    }
+
+    public void invalidate(String scope) {
+        AtomicLong generation = generations.get(scope);
+        if (generation == null) return;
+        generation.incrementAndGet();
+        invalidations.incrementAndGet();
+    }
+
+    private boolean isValid(Entry entry) {
+        return entry.generation == generations.get(entry.scope).get() && entry.expiresAt > System.currentTimeMillis();
+    }
+
+    private void evict() {
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            if (!isValid(it.next())) it.remove();
+        }
+        if (entries.size() >= MAX_ENTRIES) entries.clear();
+    }
+
+    // The request data without ifVersion identifies the reply, e.g. directory and page for LIST_FILES
+    private static String key(String type, JsonObject data) {
+        StringBuilder key = new StringBuilder(type).append('|');
+        for (Map.Entry<String, JsonElement> field : data.entrySet()) {
+            if (field.getKey().equals("ifVersion")) continue;
+            key.append(field.getKey()).append('=').append(field.getValue()).append(';');
+        }
+        return key.toString();
+    }
+
+    private long ttlMillis(String type) {
+        ModuleConfig config = plugin.getModuleConfig();
+        int fallback = config.getConnectionInt("cache.ttl-seconds.default", 30);
+        return config.getConnectionInt("cache.ttl-seconds." + type, fallback) * 1000L;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPluginEnable(PluginEnableEvent event) { invalidate(PLUGINS); }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPluginDisable(PluginDisableEvent event) { invalidate(PLUGINS); }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldLoad(WorldLoadEvent event) { invalidate(WORLDS); }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldUnload(WorldUnloadEvent event) { invalidate(WORLDS); }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<String, Object>();
+        stats.put("entries", entries.size());
+        stats.put("hits", hits.get());
+        stats.put("notModified", notModified.get());
+        stats.put("misses", misses.get());
+        stats.put("invalidations", invalidations.get());
+        return stats;
+    }
+}
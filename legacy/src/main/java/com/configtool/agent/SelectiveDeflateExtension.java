@@ -0,0 +1,32 @@
+package com.configtool.agent;
+
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.framing.BinaryFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.TextFrame;
+
+// permessage-deflate that leaves frames alone when the sender marked them as not worth compressing
+// (below the per-type threshold, or already compressed with the shared dictionary).
+public class SelectiveDeflateExtension extends PerMessageDeflateExtension {
+    public static final class PlainTextFrame extends TextFrame {
+    }
+
+    public static final class PlainBinaryFrame extends BinaryFrame {
+    }
+
+    public SelectiveDeflateExtension() {
+        setThreshold(0);
+    }
+
+    @Override
+    public void encodeFrame(Framedata frame) {
+        if (frame instanceof PlainTextFrame || frame instanceof PlainBinaryFrame) return;
+        super.encodeFrame(frame);
+    }
+
+    @Override
+    public IExtension copyInstance() {
+        return new SelectiveDeflateExtension();
+    }
+}
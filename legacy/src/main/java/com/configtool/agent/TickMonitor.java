@@ -0,0 +1,119 @@
+package com.configtool.agent;
+
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Duration of every server tick. The averaged TPS hides single long ticks; the percentiles of each
+// reporting window show them. Spigot has no tick events, so a task running every tick records the
+// time since its previous run: ticks within budget read as the 50 ms beat, longer ones as their length.
+public class TickMonitor {
+    // Scheduler jitter around the 50 ms beat is not a slow tick
+    private static final long SLACK_MICROS = 5000;
+
+    // One reporting window, in milliseconds
+    public static final class Window {
+        public final long ticks;
+        public final long overBudget;
+        public final double p50;
+        public final double p95;
+        public final double p99;
+        public final double max;
+
+        Window(LogHistogram histogram, long overBudget) {
+            this.ticks = histogram.getCount();
+            this.overBudget = overBudget;
+            this.p50 = millis(histogram.percentile(0.50));
+            this.p95 = millis(histogram.percentile(0.95));
+            this.p99 = millis(histogram.percentile(0.99));
+            this.max = millis(histogram.getMax());
+        }
+    }
+
+    private final ConfigToolAgent plugin;
+    private final long budgetMicros;
+    private volatile LogHistogram window = new LogHistogram();
+    private final AtomicLong overBudget = new AtomicLong();
+    // Every drained window since the last report; collector thread only
+    private final LogHistogram sinceReport = new LogHistogram();
+    private long overBudgetSinceReport;
+    // Recent ticks as end time and duration for incident captures, oldest overwritten first
+    private final long[] historyTimes;
+    private final int[] historyMicros;
+    private int historyNext;
+    private int historySize;
+    private long lastTick;
+    private BukkitTask task;
+
+    public TickMonitor(ConfigToolAgent plugin, int budgetMillis, int historyTicks) {
+        this.plugin = plugin;
+        this.budgetMicros = budgetMillis * 1000L;
+        this.historyTimes = new long[historyTicks];
+        this.historyMicros = new int[historyTicks];
+    }
+
+    public void start() {
+        task = new BukkitRunnable() {
+            @Override
+            public void run() { tick(); }
+        }.runTaskTimer(plugin, 1L, 1L);
+    }
+
+    public void stop() {
+        if (task != null) task.cancel();
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        if (lastTick != 0) {
+            long micros = (now - lastTick) / 1000;
+            window.record(micros);
+            if (micros > budgetMicros + SLACK_MICROS) overBudget.incrementAndGet();
+            if (historyTimes.length > 0) remember(micros);
+        }
+        lastTick = now;
+    }
+
+    private synchronized void remember(long micros) {
+        historyTimes[historyNext] = System.currentTimeMillis();
+        historyMicros[historyNext] = (int) Math.min(Integer.MAX_VALUE, micros);
+        historyNext = (historyNext + 1) % historyTimes.length;
+        if (historySize < historyTimes.length) historySize++;
+    }
+
+    // {end time, duration in micros} of each kept tick that ended in [from, to], oldest first
+    public synchronized List<long[]> history(long from, long to) {
+        List<long[]> ticks = new ArrayList<long[]>();
+        for (int i = 0; i < historySize; i++) {
+            int slot = (historyNext - historySize + i + historyTimes.length) % historyTimes.length;
+            if (historyTimes[slot] >= from && historyTimes[slot] <= to) ticks.add(new long[] {historyTimes[slot], historyMicros[slot]});
+        }
+        return ticks;
+    }
+
+    // Ticks since the previous call; the next window starts empty
+    public Window drain() {
+        LogHistogram previous = window;
+        window = new LogHistogram();
+        long over = overBudget.getAndSet(0);
+        sinceReport.add(previous);
+        overBudgetSinceReport += over;
+        return new Window(previous, over);
+    }
+
+    // Ticks drained since the previous report, so percentiles cover the whole reporting window
+    // rather than being rolled up from the shorter drain() windows
+    public Window drainReport() {
+        Window report = new Window(sinceReport, overBudgetSinceReport);
+        sinceReport.reset();
+        overBudgetSinceReport = 0;
+        return report;
+    }
+
+    private static double millis(long micros) {
+        return Math.round(micros / 10.0) / 100.0;
+    }
+}
@@ -1,105 +1,410 @@
 package com.configtool.agent;
 
 import com.google.gson.*;
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.framing.BinaryFrame;
+import org.java_websocket.framing.DataFrame;
+import org.java_websocket.framing.TextFrame;
 import org.java_websocket.handshake.ServerHandshake;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
 
 public class WebSocketClient extends org.java_websocket.client.WebSocketClient {
+    // mainThread requests run on the server thread; readOnly ones may be interrupted when the socket closes
+    private static final class Route {
+        final boolean mainThread;
+        final boolean readOnly;
+
+        Route(boolean mainThread, boolean readOnly) {
+            this.mainThread = mainThread;
+            this.readOnly = readOnly;
+        }
+    }
+
+    private static final class BatchItem {
+        final String type;
+        final String requestId;
+        final JsonObject data;
+        Map<String, Object> result;
+        CompletableFuture<Map<String, Object>> future;
+        // Set by whichever runs the sub-request first: a pool thread, or the batch while collecting
+        final AtomicBoolean claimed = new AtomicBoolean();
+
+        BatchItem(String type, String requestId, JsonObject data) {
+            this.type = type;
+            this.requestId = requestId;
+            this.data = data;
+        }
+    }
+
     private static final int CHUNK_SIZE = 512 * 1024;
+    private static final Set<String> COALESCED_PUSHES = new HashSet<String>(Arrays.asList("METRICS_BATCH", "PERFORMANCE_DATA", "ECONOMY_SNAPSHOT"));
+    // Answer through their own frames, so they cannot be folded into a combined reply
+    private static final Set<String> BATCH_EXCLUDED = new HashSet<String>(Arrays.asList("READ_FILE_STREAM"));
+    // Retry hint when a type's wait queue is full; the executor cannot predict when a slot frees up
+    private static final long QUEUE_FULL_RETRY_MS = 1000;
     private final ConfigToolAgent plugin;
     private final FileOperations fileOps;
-    private final Gson gson = new Gson();
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final OutboundQueue outbound;
+    private final RequestExecutor requests;
+    private final RequestDeduplicator deduplicator;
+    private final RequestLimiter limiter;
+    private final FileStreamer streamer;
+    private final LinkMonitor link;
+    private final EndpointSelector endpoints;
+    private final LatencyTracker latency = new LatencyTracker();
+    private final Map<String, Route> routes = new HashMap<String, Route>();
+    private final FrameCompressor compressor = new FrameCompressor();
+    private final Map<String, Integer> compressionThresholds = new ConcurrentHashMap<String, Integer>();
+    private final boolean offerBinaryCodec;
+    private final boolean offerDictionary;
+    private volatile boolean binaryCodec;
+    private volatile boolean dictCompression;
+    // Kept across reconnects until the next WELCOME, so samples buffered while offline still go out as a series
+    private volatile boolean seriesEncoding;
+    private final String sessionId = UUID.randomUUID().toString();
+    private final long reconnectInitialMs;
+    private final long reconnectMaxMs;
+    private final int maxBatch;
+    private int reconnectAttempts;
+    private volatile boolean stopped;
+    private volatile boolean opened;
+    // Reads frames and runs onMessage; its replies must never wait for room in the outbound queue
+    private volatile Thread socketThread;
     private ScheduledFuture<?> heartbeat;
+    private ScheduledFuture<?> welcomeTimeout;
 
-    public WebSocketClient(ConfigToolAgent plugin, String uri, String token, FileOperations fileOps) throws Exception {
-        super(new URI(uri));
+    public WebSocketClient(ConfigToolAgent plugin, EndpointSelector endpoints, String token, FileOperations fileOps) {
+        super(endpoints.select(), createDraft(plugin.getModuleConfig()));
         this.plugin = plugin;
+        this.endpoints = endpoints;
         this.fileOps = fileOps;
+        this.outbound = new OutboundQueue(this, plugin.getModuleConfig(), plugin.getLogger());
+        this.requests = new RequestExecutor(plugin, plugin.getModuleConfig(), plugin.getLogger());
+        this.deduplicator = new RequestDeduplicator(plugin.getModuleConfig());
+        this.limiter = new RequestLimiter(plugin.getModuleConfig());
+        this.streamer = new FileStreamer(this, fileOps, requests, scheduler, plugin.getModuleConfig(), plugin.getLogger());
+        this.link = plugin.getLinkMonitor();
+        registerRoutes();
+        this.offerBinaryCodec = !"json".equalsIgnoreCase(plugin.getModuleConfig().getConnectionString("codec", "auto"));
         addHeader("Authorization", "Bearer " + token);
+        this.offerDictionary = plugin.getModuleConfig().getConnectionBoolean("compression.shared-dictionary", true);
+        addHeader("X-ConfigTool-Codecs", offerBinaryCodec ? WireCodec.VERSION + ", json" : "json");
+        if (offerDictionary) addHeader("X-ConfigTool-Compression", FrameCompressor.VERSION);
+        addHeader("X-ConfigTool-Session", sessionId);
+        if (plugin.getRelay() != null) addHeader("X-ConfigTool-Relay", RelayServer.VERSION);
+        if (plugin.getModuleConfig().isSeriesEnabled()) addHeader("X-ConfigTool-Series", MetricSeries.VERSION);
+        this.reconnectInitialMs = plugin.getModuleConfig().getConnectionInt("reconnect.initial-delay-ms", 1000);
+        this.reconnectMaxMs = plugin.getModuleConfig().getConnectionInt("reconnect.max-delay-ms", 60000);
+        this.maxBatch = plugin.getModuleConfig().getConnectionInt("requests.max-batch", 64);
         setConnectionLostTimeout(60);
     }
 
+    private static Draft createDraft(ModuleConfig config) {
+        if (!config.getConnectionBoolean("compression.permessage-deflate", true)) return new Draft_6455();
+        return new Draft_6455(new SelectiveDeflateExtension());
+    }
+
+    // With several endpoints the first connection waits for one probe round to pick the closest
+    public void start() {
+        if (endpoints.size() < 2) {
+            connect();
+            return;
+        }
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                endpoints.probe();
+                uri = endpoints.select();
+                connect();
+            }
+        });
+        int interval = Math.max(5, endpoints.getProbeIntervalSeconds());
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                probeEndpoints();
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    // Moves to a clearly closer endpoint; the session resumes there if the backends share state
+    private void probeEndpoints() {
+        endpoints.probe();
+        if (!isOpen()) return;
+        URI better = endpoints.findBetter(uri);
+        if (better == null) return;
+        plugin.getLogger().info("Switching to closer endpoint " + endpoints.describe(better));
+        close(1001, "Switching endpoint");
+    }
+
     @Override
     public void onOpen(ServerHandshake h) {
-        plugin.getLogger().info("Connected to ConfigTool server");
+        plugin.getLogger().info("Connected to ConfigTool server" + (endpoints.size() > 1 ? " at " + endpoints.describe(uri) : ""));
+        opened = true;
+        socketThread = Thread.currentThread();
+        endpoints.reportSuccess(uri);
+        binaryCodec = false;
+        dictCompression = false;
+        outbound.start();
+        link.reset();
         heartbeat = scheduler.scheduleAtFixedRate(new Runnable() {
             @Override
             public void run() {
-                if (isOpen()) {
-                    Map<String, Object> msg = new HashMap<String, Object>();
-                    msg.put("type", "HEARTBEAT");
-                    send(gson.toJson(msg));
-                }
+                sendHeartbeat();
             }
-        }, 30, 30, TimeUnit.SECONDS);
+        }, 2, link.getHeartbeatSeconds(), TimeUnit.SECONDS);
+        // A backend that never sends WELCOME still gets our traffic, as a fresh session
+        welcomeTimeout = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                outbound.beginSession(false, 0);
+            }
+        }, 10, TimeUnit.SECONDS);
     }
 
     @Override
     public void onMessage(String msg) {
         try {
-            JsonObject json = JsonParser.parseString(msg).getAsJsonObject();
-            String type = json.get("type").getAsString();
-            switch (type) {
-                case "WELCOME":
-                    plugin.getLogger().info("Server acknowledged connection");
-                    break;
-                case "HEARTBEAT_ACK":
-                    break;
-                case "LIST_FILES":
-                    handleListFiles(json);
-                    break;
-                case "READ_FILE":
-                    handleReadFile(json);
-                    break;
-                case "WRITE_FILE":
-                    handleWriteFile(json);
-                    break;
-                case "DELETE_FILE":
-                    handleDeleteFile(json);
-                    break;
-                case "CREATE_FILE":
-                    handleCreateFile(json);
-                    break;
-                case "RENAME_FILE":
-                    handleRenameFile(json);
-                    break;
-                case "EXECUTE_COMMAND":
-                    handleExecuteCommand(json);
-                    break;
-                case "BROADCAST":
-                case "KICK_PLAYER":
-                case "TOGGLE_WHITELIST":
-                    handleQuickAction(json);
-                    break;
-                case "GET_WORLDS":
-                case "SET_GAMERULE":
-                    handleWorldAction(json);
-                    break;
-                case "GET_PLUGINS":
-                case "ENABLE_PLUGIN":
-                case "DISABLE_PLUGIN":
-                    handlePluginAction(json);
-                    break;
-            }
+            long received = System.nanoTime();
+            dispatch(JsonParser.parseString(msg).getAsJsonObject(), received);
         } catch (Exception e) {
             plugin.getLogger().warning("Error processing message: " + e.getMessage());
         }
     }
 
+    @Override
+    public void onMessage(ByteBuffer bytes) {
+        try {
+            long received = System.nanoTime();
+            if ((bytes.get(bytes.position()) & RelayServer.FLAG_RELAY) != 0) {
+                relayed(bytes);
+                return;
+            }
+            dispatch(decodeBinary(bytes), received);
+        } catch (Exception e) {
+            plugin.getLogger().warning("Error processing binary message: " + e.getMessage());
+        }
+    }
+
+    // Frames for a sibling agent behind this relay are passed on untouched
+    private void relayed(ByteBuffer bytes) {
+        byte flags = bytes.get();
+        if ((flags & OutboundQueue.FLAG_SEQUENCED) != 0) WireCodec.readVarLong(bytes);
+        RelayServer relay = plugin.getRelay();
+        if (relay != null) relay.deliver(bytes);
+    }
+
+    private JsonObject decodeBinary(ByteBuffer bytes) throws DataFormatException {
+        byte flags = bytes.get();
+        if ((flags & OutboundQueue.FLAG_SEQUENCED) != 0) WireCodec.readVarLong(bytes);
+        if ((flags & FrameCompressor.FLAG_DICT_DEFLATE) == 0) {
+            if ((flags & WireCodec.FLAG_CODEC) == 0) throw new IllegalArgumentException("Unsupported frame flags: " + flags);
+            return WireCodec.decodeBody(bytes);
+        }
+        byte[] body = compressor.decompress(bytes);
+        if ((flags & WireCodec.FLAG_CODEC) != 0) return WireCodec.decodeBody(ByteBuffer.wrap(body));
+        return JsonParser.parseString(new String(body, StandardCharsets.UTF_8)).getAsJsonObject();
+    }
+
+    private void dispatch(JsonObject json, long received) {
+        String type = json.get("type").getAsString();
+        switch (type) {
+            case "WELCOME":
+                handleWelcome(json);
+                break;
+            case "HEARTBEAT_ACK":
+                handleHeartbeatAck(json);
+                break;
+            case "ACK":
+                handleAck(json);
+                break;
+            case "STREAM_CREDIT":
+            case "STREAM_CANCEL":
+                handleStreamControl(type, json);
+                break;
+            case "BATCH":
+                handleBatch(json, received);
+                break;
+            case "RELAY_CLOSE":
+                if (plugin.getRelay() != null) plugin.getRelay().closeChannel(json.getAsJsonObject("data"));
+                break;
+            default:
+                handleRequest(type, json, received);
+                break;
+        }
+    }
+
+    private void registerRoutes() {
+        route("LIST_FILES", false, true);
+        route("READ_FILE", false, true);
+        route("READ_FILE_STREAM", false, true);
+        route("WRITE_FILE", false, false);
+        route("DELETE_FILE", false, false);
+        route("CREATE_FILE", false, false);
+        route("RENAME_FILE", false, false);
+        route("UPLOAD_BEGIN", false, false);
+        route("UPLOAD_PART", false, false);
+        route("UPLOAD_COMMIT", false, false);
+        route("UPLOAD_ABORT", false, false);
+        route("UPLOAD_STATUS", false, true);
+        route("EXECUTE_COMMAND", true, false);
+        route("BROADCAST", false, false);
+        route("KICK_PLAYER", false, false);
+        route("TOGGLE_WHITELIST", false, false);
+        route("GET_WORLDS", true, true);
+        route("SET_GAMERULE", true, false);
+        route("GET_PLUGINS", true, true);
+        route("ENABLE_PLUGIN", true, false);
+        route("DISABLE_PLUGIN", true, false);
+        route("GET_AGENT_STATS", false, true);
+        route("GET_LATENCY_STATS", false, true);
+        route("SUBSCRIBE", false, true);
+        route("UNSUBSCRIBE", false, true);
+        route("SET_PLUGIN_TIMING", true, false);
+        route("GET_METRICS_RANGE", false, true);
+    }
+
+    private void route(String type, boolean mainThread, boolean readOnly) {
+        routes.put(type, new Route(mainThread, readOnly));
+    }
+
+    private void handleWelcome(JsonObject json) {
+        JsonObject data = json.has("data") && json.get("data").isJsonObject() ? json.getAsJsonObject("data") : new JsonObject();
+        binaryCodec = offerBinaryCodec && data.has("codec") && WireCodec.VERSION.equals(data.get("codec").getAsString());
+        dictCompression = offerDictionary && data.has("compression") && FrameCompressor.VERSION.equals(data.get("compression").getAsString());
+        boolean relay = plugin.getRelay() != null && data.has("relay") && RelayServer.VERSION.equals(data.get("relay").getAsString());
+        seriesEncoding = plugin.getModuleConfig().isSeriesEnabled() && data.has("series")
+            && MetricSeries.VERSION.equals(data.get("series").getAsString());
+        boolean resumed = data.has("resumed") && data.get("resumed").getAsBoolean();
+        long ack = data.has("seq") ? data.get("seq").getAsLong() : 0;
+        if (welcomeTimeout != null) welcomeTimeout.cancel(false);
+        outbound.beginSession(resumed, ack);
+        reconnectAttempts = 0;
+        plugin.getLogger().info("Server acknowledged connection"
+            + (resumed ? " (resumed at " + ack + ")" : "")
+            + (binaryCodec ? " (binary codec)" : "") + (dictCompression ? " (dictionary compression)" : "") + (relay ? " (relay)" : "") + (seriesEncoding ? " (metric series)" : ""));
+        if (relay) plugin.getRelay().upstreamReady();
+        else if (plugin.getRelay() != null) plugin.getLogger().warning("Backend does not support relay mode; sibling agents cannot connect through this one");
+        if (plugin.getSpool() != null) plugin.getSpool().startReplay(this);
+    }
+
+    // Backends that echo data.probe get exact matching; older ones answer the newest heartbeat
+    private void sendHeartbeat() {
+        if (!isOpen()) return;
+        link.setCongested(outbound.isTelemetryBacklogged());
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("probe", link.nextProbe());
+        data.put("sentAt", System.currentTimeMillis());
+        Map<String, Object> msg = new HashMap<String, Object>();
+        msg.put("type", "HEARTBEAT");
+        msg.put("data", data);
+        enqueue(OutboundQueue.Lane.CONTROL, "HEARTBEAT", msg);
+    }
+
+    private void handleHeartbeatAck(JsonObject json) {
+        JsonObject data = json.has("data") && json.get("data").isJsonObject() ? json.getAsJsonObject("data") : new JsonObject();
+        link.acknowledge(data.has("probe") ? data.get("probe").getAsLong() : -1);
+        handleAck(json);
+    }
+
+    // Cumulative: everything up to data.seq has been received by the backend
+    private void handleAck(JsonObject json) {
+        if (!json.has("data") || !json.get("data").isJsonObject()) return;
+        JsonObject data = json.getAsJsonObject("data");
+        if (data.has("seq")) outbound.acknowledge(data.get("seq").getAsLong());
+    }
+
+    private void handleStreamControl(String type, JsonObject json) {
+        if (!json.has("requestId")) return;
+        String streamId = json.get("requestId").getAsString();
+        if (type.equals("STREAM_CANCEL")) {
+            streamer.cancel(streamId);
+            return;
+        }
+        JsonObject data = json.has("data") && json.get("data").isJsonObject() ? json.getAsJsonObject("data") : new JsonObject();
+        if (data.has("credits")) streamer.grant(streamId, data.get("credits").getAsInt());
+    }
+
     @Override
     public void onClose(int code, String reason, boolean remote) {
         if (heartbeat != null) heartbeat.cancel(false);
+        if (welcomeTimeout != null) welcomeTimeout.cancel(false);
+        requests.cancelAll();
+        streamer.closeAll();
+        outbound.pause();
+        plugin.getSubscriptions().clear();
+        if (plugin.getRelay() != null) plugin.getRelay().upstreamLost();
+        compressor.close();
         if (code == 1008) {
             plugin.getLogger().severe("Connection rejected: Invalid token. Check your config.yml");
+            outbound.stop();
+            return;
+        }
+        if (!opened) endpoints.reportFailure(uri);
+        opened = false;
+        if (stopped) return;
+        // A normal close from the backend means it does not want this agent back
+        if (remote && code == 1000) {
+            plugin.getLogger().info("Backend closed the connection: " + reason);
+            outbound.stop();
             return;
         }
         plugin.getLogger().warning("Disconnected (code=" + code + "): " + reason);
-        if (remote && code != 1000) plugin.reconnect();
+        scheduleReconnect();
+    }
+
+    // Equal-jitter exponential backoff, so a fleet of agents does not reconnect in lockstep
+    // after a backend restart. The same client reconnects, keeping its session and unacked frames.
+    private void scheduleReconnect() {
+        long ceiling = Math.min(reconnectMaxMs, reconnectInitialMs << Math.min(reconnectAttempts, 16));
+        long delay = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+        reconnectAttempts++;
+        plugin.getLogger().info("Reconnecting in " + delay + "ms (attempt " + reconnectAttempts + ")");
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (stopped) return;
+                    if (endpoints.size() > 1) {
+                        endpoints.probe();
+                        URI next = endpoints.select();
+                        if (!next.equals(uri)) plugin.getLogger().info("Failing over to " + endpoints.describe(next));
+                        uri = next;
+                    }
+                    addHeader("X-ConfigTool-Last-Seq", String.valueOf(outbound.getLastSeq()));
+                    reconnect();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) {
+        }
+    }
+
+    public void shutdown() {
+        stopped = true;
+        requests.shutdown();
+        outbound.stop();
+        scheduler.shutdownNow();
+        endpoints.close();
+        close();
+        compressor.close();
     }
 
     @Override
@@ -107,52 +412,479 @@ public class WebSocketClient extends org.java_websocket.client.WebSocketClient {
         plugin.getLogger().warning("WebSocket error: " + e.getMessage());
     }
 
-    private void handleListFiles(final JsonObject json) {
+    private void handleRequest(final String type, JsonObject json, long received) {
+        final Route route = routes.get(type);
+        if (route == null) return;
         final String reqId = json.get("requestId").getAsString();
-        JsonObject data = json.getAsJsonObject("data");
-        final String dir = data.has("directory") ? data.get("directory").getAsString() : "plugins/";
-        final int offset = data.has("offset") ? data.get("offset").getAsInt() : 0;
-        final int limit = data.has("limit") ? data.get("limit").getAsInt() : 100;
-        plugin.getLogger().info("Listing files in: " + dir + " (offset=" + offset + ", limit=" + limit + ")");
-        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+        final JsonObject data = json.has("data") && json.get("data").isJsonObject() ? json.getAsJsonObject("data") : new JsonObject();
+        final RequestTrace trace = latency.begin(type, received);
+        // Cache hits are answered from the socket thread and do not count against the rate limit
+        ResponseCache cache = plugin.getResponseCache();
+        Map<String, Object> cached = cache != null && cache.isCacheable(type) ? cache.lookup(type, data) : null;
+        if (cached != null) {
+            trace.started = trace.handled = System.nanoTime();
+            if (enqueue(OutboundQueue.Lane.RESPONSE, null, responseMessage(reqId, cached), trace) || !isOpen()) return;
+            // The RESPONSE lane is full; an executor thread can wait for room where this one cannot
+            final Map<String, Object> reply = cached;
+            execute(type, reqId, true, trace, new Callable<Map<String, Object>>() {
+                @Override
+                public Map<String, Object> call() {
+                    return reply;
+                }
+            });
+            return;
+        }
+        long retryAfter = limiter.tryAcquire(type, route.mainThread);
+        if (retryAfter > 0) {
+            sendBusy(reqId, "Agent busy: " + type + " rate limit exceeded", retryAfter);
+            return;
+        }
+        execute(type, reqId, route.readOnly, trace, new Callable<Map<String, Object>>() {
+            @Override
+            public Map<String, Object> call() throws Exception {
+                return invoke(route, type, reqId, data, trace);
+            }
+        });
+    }
+
+    private Map<String, Object> invoke(Route route, final String type, final String reqId, final JsonObject data, final RequestTrace trace) throws Exception {
+        if (!route.mainThread) return handleCached(type, reqId, data);
+        return requests.callSync(new Callable<Map<String, Object>>() {
+            @Override
+            public Map<String, Object> call() throws Exception {
+                trace.mainThread = System.nanoTime();
+                return handleCached(type, reqId, data);
+            }
+        });
+    }
+
+    // Runs one backend request on the executor and answers it; mutating ones are deduplicated by requestId
+    private void execute(String type, final String reqId, boolean readOnly, final RequestTrace trace, final Callable<Map<String, Object>> call) {
+        final boolean dedup = !readOnly;
+        if (dedup) {
+            RequestDeduplicator.Entry previous = deduplicator.begin(reqId);
+            if (previous != null) {
+                Map<String, Object> reply = previous.getReply();
+                if (reply != null) enqueue(OutboundQueue.Lane.RESPONSE, null, reply);
+                return;
+            }
+        }
+        boolean accepted = requests.submit(type, readOnly, new Runnable() {
             @Override
             public void run() {
+                trace.started = System.nanoTime();
+                Map<String, Object> reply = null;
+                boolean cancelled = false;
+                boolean timedOut = false;
                 try {
-                    Map<String, Object> result = fileOps.listFiles(dir, offset, limit);
-                    @SuppressWarnings("unchecked")
-                    List<?> files = (List<?>) result.get("files");
-                    plugin.getLogger().info("Returning " + files.size() + " of " + result.get("total") + " files");
-                    sendResponse(reqId, result);
+                    Map<String, Object> result = call.call();
+                    if (result != null) reply = responseMessage(reqId, result);
                 } catch (Exception e) {
-                    plugin.getLogger().warning("Error listing files: " + e.getMessage());
-                    sendError(reqId, e.getMessage());
+                    cancelled = e instanceof CancellationException || Thread.currentThread().isInterrupted();
+                    timedOut = e instanceof TimeoutException;
+                    reply = errorMessage(reqId, cancelled ? "Request cancelled" : describe(e));
                 }
+                // A sync call that timed out never ran, so a retry must not get this reply
+                if (dedup) {
+                    if (cancelled || timedOut) deduplicator.abandon(reqId);
+                    else deduplicator.complete(reqId, reply);
+                }
+                trace.handled = System.nanoTime();
+                if (reply != null) enqueue(OutboundQueue.Lane.RESPONSE, null, reply, trace);
+                else trace.finish();
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                if (dedup) deduplicator.abandon(reqId);
+                sendError(reqId, "Request cancelled: connection closed");
             }
         });
+        if (!accepted) {
+            if (dedup) deduplicator.abandon(reqId);
+            sendBusy(reqId, "Agent busy: too many pending " + type + " requests", QUEUE_FULL_RETRY_MS);
+        }
     }
 
-    private void handleReadFile(final JsonObject json) {
+    // One envelope, one reply: main-thread sub-requests share a single tick, the rest run in parallel
+    private void handleBatch(JsonObject json, long received) {
         final String reqId = json.get("requestId").getAsString();
-        final String path = json.getAsJsonObject("data").get("path").getAsString();
-        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+        JsonObject data = json.has("data") && json.get("data").isJsonObject() ? json.getAsJsonObject("data") : new JsonObject();
+        if (data.has("requests") && !data.get("requests").isJsonArray()) {
+            sendError(reqId, "Batch requests must be an array");
+            return;
+        }
+        final JsonArray items = data.has("requests") ? data.getAsJsonArray("requests") : new JsonArray();
+        if (items.size() > maxBatch) {
+            sendError(reqId, "Batch too large: " + items.size() + " requests, limit " + maxBatch);
+            return;
+        }
+        boolean readOnly = true;
+        for (int i = 0; i < items.size(); i++) {
+            JsonElement item = items.get(i);
+            JsonElement type = item.isJsonObject() ? item.getAsJsonObject().get("type") : null;
+            if (type == null || !type.isJsonPrimitive() || !type.getAsJsonPrimitive().isString()) {
+                sendError(reqId, "Batch request " + i + " has no type");
+                return;
+            }
+            Route route = routes.get(type.getAsString());
+            if (route != null && !route.readOnly) readOnly = false;
+        }
+        final RequestTrace trace = latency.begin("BATCH", received);
+        execute("BATCH", reqId, readOnly, trace, new Callable<Map<String, Object>>() {
             @Override
-            public void run() {
-                try {
-                    String content = fileOps.readFile(path);
-                    if (content.length() <= CHUNK_SIZE) {
-                        Map<String, Object> data = new HashMap<String, Object>();
-                        data.put("content", content);
-                        sendResponse(reqId, data);
-                    } else {
-                        sendChunked(reqId, content);
+            public Map<String, Object> call() throws Exception {
+                return runBatch(reqId, items, trace);
+            }
+        });
+    }
+
+    private Map<String, Object> runBatch(String batchId, JsonArray items, final RequestTrace trace) throws Exception {
+        List<BatchItem> batch = new ArrayList<BatchItem>();
+        ResponseCache cache = plugin.getResponseCache();
+        final List<BatchItem> mainThread = new ArrayList<BatchItem>();
+        for (int i = 0; i < items.size(); i++) {
+            JsonObject json = items.get(i).getAsJsonObject();
+            final BatchItem item = new BatchItem(json.get("type").getAsString(),
+                json.has("requestId") ? json.get("requestId").getAsString() : batchId + ":" + i,
+                json.has("data") && json.get("data").isJsonObject() ? json.getAsJsonObject("data") : new JsonObject());
+            batch.add(item);
+            Route route = routes.get(item.type);
+            if (route == null || BATCH_EXCLUDED.contains(item.type)) {
+                item.result = batchError(item, "Not allowed in a batch: " + item.type);
+                continue;
+            }
+            // Cache hits, notModified for a matching ifVersion included, are answered as for standalone requests
+            Map<String, Object> cached = cache != null && cache.isCacheable(item.type) ? cache.lookup(item.type, item.data) : null;
+            if (cached != null) {
+                item.result = batchResult(item, cached);
+                continue;
+            }
+            // Sub-requests draw from the same budgets as standalone ones
+            long retryAfter = limiter.tryAcquire(item.type, route.mainThread);
+            if (retryAfter > 0) {
+                item.result = batchBusy(item, "Agent busy: " + item.type + " rate limit exceeded", retryAfter);
+            } else if (route.mainThread) {
+                mainThread.add(item);
+            } else {
+                item.future = new CompletableFuture<Map<String, Object>>();
+                boolean accepted = requests.submit(item.type, route.readOnly, new Runnable() {
+                    @Override
+                    public void run() {
+                        runItem(item);
                     }
-                } catch (Exception e) {
-                    sendError(reqId, e.getMessage());
+                }, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (item.claimed.compareAndSet(false, true)) item.future.cancel(false);
+                    }
+                });
+                if (!accepted) {
+                    item.future = null;
+                    item.result = batchBusy(item, "Agent busy: too many pending " + item.type + " requests", QUEUE_FULL_RETRY_MS);
+                }
+            }
+        }
+        if (!mainThread.isEmpty()) {
+            requests.callSync(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    trace.mainThread = System.nanoTime();
+                    for (BatchItem item : mainThread) {
+                        try {
+                            item.result = batchResult(item, handleCached(item.type, item.requestId, item.data));
+                        } catch (Exception e) {
+                            item.result = batchError(item, describe(e));
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+        for (BatchItem item : batch) {
+            if (item.future != null) {
+                // The batch holds a pool thread itself, so it runs sub-requests still queued rather than
+                // wait for them: batches filling every thread would otherwise wait on each other forever
+                runItem(item);
+                try {
+                    item.result = batchResult(item, item.future.get());
+                } catch (ExecutionException e) {
+                    item.result = batchError(item, e.getCause() instanceof Exception ? describe((Exception) e.getCause()) : e.getCause().toString());
+                } catch (CancellationException e) {
+                    item.result = batchError(item, "Request cancelled");
                 }
             }
+            results.add(item.result);
+        }
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("results", results);
+        return result;
+    }
+
+    private void runItem(BatchItem item) {
+        if (!item.claimed.compareAndSet(false, true)) return;
+        try {
+            item.future.complete(handleCached(item.type, item.requestId, item.data));
+        } catch (Exception e) {
+            item.future.completeExceptionally(e);
+        }
+    }
+
+    // A null result means the handler already answered on its own, e.g. a chunked READ_FILE
+    private static Map<String, Object> batchResult(BatchItem item, Map<String, Object> data) {
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("requestId", item.requestId);
+        result.put("type", item.type);
+        result.put("data", data);
+        return result;
+    }
+
+    private static Map<String, Object> batchError(BatchItem item, String error) {
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("requestId", item.requestId);
+        result.put("type", item.type);
+        result.put("error", error);
+        return result;
+    }
+
+    private static Map<String, Object> batchBusy(BatchItem item, String error, long retryAfterMs) {
+        Map<String, Object> result = batchError(item, error);
+        result.put("busy", true);
+        result.put("retryAfterMs", retryAfterMs);
+        return result;
+    }
+
+    private static String describe(Exception e) {
+        return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+    }
+
+    private Map<String, Object> handleCached(final String type, final String reqId, final JsonObject data) throws Exception {
+        ResponseCache cache = plugin.getResponseCache();
+        if (cache == null || !cache.isCacheable(type)) return handle(type, reqId, data);
+        return cache.load(type, data, new Callable<Map<String, Object>>() {
+            @Override
+            public Map<String, Object> call() throws Exception {
+                return handle(type, reqId, data);
+            }
         });
     }
 
+    private Map<String, Object> handle(String type, String reqId, JsonObject data) throws Exception {
+        Map<String, Object> result = new HashMap<String, Object>();
+        switch (type) {
+            case "LIST_FILES": {
+                String dir = data.has("directory") ? data.get("directory").getAsString() : "plugins/";
+                int offset = data.has("offset") ? data.get("offset").getAsInt() : 0;
+                int limit = data.has("limit") ? data.get("limit").getAsInt() : 100;
+                plugin.getLogger().info("Listing files in: " + dir + " (offset=" + offset + ", limit=" + limit + ")");
+                result = fileOps.listFiles(dir, offset, limit);
+                List<?> files = (List<?>) result.get("files");
+                plugin.getLogger().info("Returning " + files.size() + " of " + result.get("total") + " files");
+                return result;
+            }
+            case "READ_FILE": {
+                if (data.has("signatures")) return readFileDelta(data);
+                String content = fileOps.readFile(data.get("path").getAsString());
+                if (content.length() > CHUNK_SIZE) {
+                    sendChunked(reqId, content);
+                    return null;
+                }
+                result.put("content", content);
+                return result;
+            }
+            case "READ_FILE_STREAM":
+                // Header goes out as the RESPONSE, then binary chunks as the backend grants credit
+                streamer.open(reqId, data);
+                return null;
+            case "WRITE_FILE":
+                if (data.has("delta")) {
+                    String hash = fileOps.writeFileDelta(data.get("path").getAsString(), data.get("baseHash").getAsString(),
+                        data.get("blockSize").getAsInt(), data.getAsJsonArray("delta"), data.has("hash") ? data.get("hash").getAsString() : null);
+                    result.put("hash", hash);
+                } else {
+                    fileOps.writeFile(data.get("path").getAsString(), data.get("content").getAsString());
+                }
+                result.put("success", true);
+                return result;
+            case "DELETE_FILE":
+                fileOps.deleteFile(data.get("path").getAsString());
+                result.put("success", true);
+                return result;
+            case "CREATE_FILE":
+                fileOps.createFile(data.get("path").getAsString(), data.has("isDirectory") && data.get("isDirectory").getAsBoolean());
+                result.put("success", true);
+                return result;
+            case "RENAME_FILE":
+                fileOps.renameFile(data.get("oldPath").getAsString(), data.get("newPath").getAsString());
+                result.put("success", true);
+                return result;
+            case "UPLOAD_BEGIN":
+            case "UPLOAD_PART":
+            case "UPLOAD_COMMIT":
+            case "UPLOAD_ABORT":
+            case "UPLOAD_STATUS":
+                return uploadAction(type, data);
+            case "EXECUTE_COMMAND": {
+                String cmd = data.get("command").getAsString();
+                if (!isAllowedCommand(cmd)) throw new IllegalArgumentException("Command not allowed");
+                plugin.getServer().dispatchCommand(plugin.getServer().getConsoleSender(), cmd);
+                invalidateAfterCommand(cmd);
+                result.put("output", "Command executed");
+                return result;
+            }
+            case "BROADCAST":
+            case "KICK_PLAYER":
+            case "TOGGLE_WHITELIST":
+                if (plugin.getQuickActions() == null) throw new IllegalStateException("Quick actions not available");
+                return plugin.getQuickActions().handleAction(type, data);
+            case "GET_WORLDS":
+            case "SET_GAMERULE":
+                if (plugin.getWorldManager() == null) throw new IllegalStateException("World management not available");
+                result.put("data", plugin.getWorldManager().handleAction(type, data).toString());
+                return result;
+            case "GET_PLUGINS":
+            case "ENABLE_PLUGIN":
+            case "DISABLE_PLUGIN":
+                if (plugin.getPluginManager() == null) throw new IllegalStateException("Plugin management not available");
+                result.put("data", plugin.getPluginManager().handleAction(type, data).toString());
+                return result;
+            case "GET_AGENT_STATS":
+                return agentStats();
+            case "GET_LATENCY_STATS":
+                return latencyStats(data);
+            case "SUBSCRIBE":
+            case "UNSUBSCRIBE":
+                return subscriptionAction(type, data);
+            case "GET_METRICS_RANGE":
+                return metricsRange(data);
+            case "SET_PLUGIN_TIMING": {
+                // Wrapping listeners and tasks touches the scheduler and handler lists, hence the main thread
+                PluginProfiler profiler = plugin.getProfiler();
+                if (profiler == null) throw new IllegalStateException("Performance module not available");
+                profiler.setEnabled(data.get("enabled").getAsBoolean());
+                result.put("enabled", profiler.isEnabled());
+                return result;
+            }
+            default:
+                throw new IllegalArgumentException("Unsupported request: " + type);
+        }
+    }
+
+    // Backend sent signatures of its cached copy; reply with only the changed ranges
+    private Map<String, Object> readFileDelta(JsonObject data) throws Exception {
+        byte[] bytes = fileOps.readBytes(data.get("path").getAsString());
+        String hash = DeltaSync.hash(bytes);
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("hash", hash);
+        if (data.has("baseHash") && data.get("baseHash").getAsString().equals(hash)) {
+            result.put("unchanged", true);
+            return result;
+        }
+        int blockSize = data.get("blockSize").getAsInt();
+        result.put("size", bytes.length);
+        result.put("blockSize", blockSize);
+        result.put("delta", DeltaSync.diff(bytes, blockSize, data.getAsJsonArray("signatures")));
+        return result;
+    }
+
+    private Map<String, Object> uploadAction(String type, JsonObject data) throws Exception {
+        UploadManager uploads = plugin.getUploads();
+        if (uploads == null) throw new IllegalStateException("Uploads not available");
+        String uploadId = data.has("uploadId") ? data.get("uploadId").getAsString() : null;
+        switch (type) {
+            case "UPLOAD_BEGIN":
+                return uploads.begin(data.get("path").getAsString(), data.get("size").getAsLong(),
+                    data.has("uploadId") ? data.get("uploadId").getAsString() : null);
+            case "UPLOAD_PART":
+                return uploads.part(uploadId, data.get("offset").getAsLong(), data.get("bytes").getAsString(),
+                    data.get("crc32").getAsLong());
+            case "UPLOAD_COMMIT":
+                return uploads.commit(uploadId, data.has("crc32") ? data.get("crc32").getAsLong() : -1);
+            case "UPLOAD_STATUS":
+                return uploads.status(uploadId);
+            default: {
+                uploads.abort(uploadId);
+                Map<String, Object> result = new HashMap<String, Object>();
+                result.put("success", true);
+                return result;
+            }
+        }
+    }
+
+    // data.type narrows the result to one request type; data.reset clears the histograms after reading
+    private Map<String, Object> latencyStats(JsonObject data) {
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("types", latency.getStats(data.has("type") ? data.get("type").getAsString() : null));
+        if (data.has("reset") && data.get("reset").getAsBoolean()) latency.reset();
+        return result;
+    }
+
+    // data.from/to in epoch ms (default the last hour), data.stepSeconds, data.maxPoints (default 720),
+    // data.fields to narrow the columns, data.encoding "gorilla-1" for a compressed block
+    private Map<String, Object> metricsRange(JsonObject data) {
+        MetricsStore store = plugin.getMetricsStore();
+        if (store == null) throw new IllegalStateException("Metrics history not available");
+        long to = data.has("to") ? data.get("to").getAsLong() : System.currentTimeMillis();
+        long from = data.has("from") ? data.get("from").getAsLong() : to - 3600000L;
+        if (from > to) throw new IllegalArgumentException("from is after to");
+        int maxPoints = Math.max(1, data.has("maxPoints") ? data.get("maxPoints").getAsInt() : 720);
+        long step = Math.max(data.has("stepSeconds") ? data.get("stepSeconds").getAsLong() * 1000 : 0, (to - from) / maxPoints);
+        // Whole seconds, so buckets line up with the stored tiers
+        step = (step + 999) / 1000 * 1000;
+        List<String> fields = null;
+        if (data.has("fields")) {
+            fields = new ArrayList<String>();
+            for (JsonElement field : data.getAsJsonArray("fields")) fields.add(field.getAsString());
+        }
+        boolean compressed = data.has("encoding") && MetricSeries.VERSION.equals(data.get("encoding").getAsString());
+        return store.range(from, to, step, fields, compressed);
+    }
+
+    // data.streams lists stream names, or {stream, intervalSeconds} objects; UNSUBSCRIBE without streams drops all
+    private Map<String, Object> subscriptionAction(String type, JsonObject data) {
+        Subscriptions subscriptions = plugin.getSubscriptions();
+        JsonArray streams = data.has("streams") ? data.getAsJsonArray("streams") : new JsonArray();
+        if (type.equals("UNSUBSCRIBE") && streams.size() == 0) subscriptions.unsubscribeAll();
+        for (JsonElement element : streams) {
+            JsonObject entry = element.isJsonObject() ? element.getAsJsonObject() : null;
+            String stream = entry != null ? entry.get("stream").getAsString() : element.getAsString();
+            if (type.equals("UNSUBSCRIBE")) {
+                subscriptions.unsubscribe(stream);
+            } else {
+                subscriptions.subscribe(stream, entry != null && entry.has("intervalSeconds") ? entry.get("intervalSeconds").getAsInt() : 0);
+            }
+        }
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("streams", subscriptions.getStats());
+        return result;
+    }
+
+    private Map<String, Object> agentStats() {
+        Map<String, Object> stats = new HashMap<String, Object>();
+        stats.put("outbound", outbound.getStats());
+        stats.put("requests", requests.getStats());
+        stats.put("dedup", deduplicator.getStats());
+        stats.put("rateLimit", limiter.getStats());
+        if (plugin.getResponseCache() != null) stats.put("cache", plugin.getResponseCache().getStats());
+        stats.put("streams", streamer.getStats());
+        stats.put("link", link.getStats());
+        stats.put("subscriptions", plugin.getSubscriptions().getStats());
+        stats.put("endpoints", endpoints.getStats());
+        if (plugin.getRelay() != null) stats.put("relay", plugin.getRelay().getStats());
+        if (plugin.getMetricsStore() != null) stats.put("metricsStore", plugin.getMetricsStore().getStats());
+        if (plugin.getUploads() != null) stats.put("uploads", plugin.getUploads().getStats());
+        TelemetrySpool spool = plugin.getSpool();
+        if (spool != null) {
+            Map<String, Object> spoolStats = new HashMap<String, Object>();
+            spoolStats.put("pendingBytes", spool.getPendingBytes());
+            spoolStats.put("replaying", spool.isReplaying());
+            spoolStats.put("droppedSegments", spool.getDroppedSegments());
+            stats.put("spool", spoolStats);
+        }
+        return stats;
+    }
+
     private void sendChunked(String reqId, String content) {
         int totalChunks = (int) Math.ceil((double) content.length() / CHUNK_SIZE);
         plugin.getLogger().info("Sending large file in " + totalChunks + " chunks");
@@ -169,208 +901,269 @@ public class WebSocketClient extends org.java_websocket.client.WebSocketClient {
             chunkData.put("content", chunk);
             chunkData.put("isLast", isLast);
 
-            if (isOpen()) {
-                Map<String, Object> msg = new HashMap<String, Object>();
-                msg.put("type", "FILE_CHUNK");
-                msg.put("requestId", reqId);
-                msg.put("data", chunkData);
-                send(gson.toJson(msg));
+            if (!isOpen()) return;
+            Map<String, Object> msg = new HashMap<String, Object>();
+            msg.put("type", "FILE_CHUNK");
+            msg.put("requestId", reqId);
+            msg.put("data", chunkData);
+            if (!enqueue(OutboundQueue.Lane.BULK, null, msg)) {
+                plugin.getLogger().warning("Aborting chunked transfer for " + reqId + ": outbound queue stalled");
+                return;
             }
-
-            try { Thread.sleep(10); } catch (InterruptedException ignored) {}
         }
     }
 
-    private void handleWriteFile(final JsonObject json) {
-        final String reqId = json.get("requestId").getAsString();
-        JsonObject data = json.getAsJsonObject("data");
-        final String path = data.get("path").getAsString();
-        final String content = data.get("content").getAsString();
-        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    fileOps.writeFile(path, content);
-                    Map<String, Object> result = new HashMap<String, Object>();
-                    result.put("success", true);
-                    sendResponse(reqId, result);
-                } catch (Exception e) {
-                    sendError(reqId, e.getMessage());
-                }
-            }
-        });
+    private boolean isAllowedCommand(String cmd) {
+        String l = cmd.toLowerCase().trim();
+        return l.endsWith(" reload") || l.equals("reload") || l.equals("rl")
+            || l.startsWith("plugman ") || l.startsWith("say ") || l.startsWith("kick ")
+            || l.startsWith("whitelist ") || l.startsWith("gamerule ") || l.startsWith("worldborder ");
     }
 
-    private void handleDeleteFile(final JsonObject json) {
-        final String reqId = json.get("requestId").getAsString();
-        final String path = json.getAsJsonObject("data").get("path").getAsString();
-        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    fileOps.deleteFile(path);
-                    Map<String, Object> result = new HashMap<String, Object>();
-                    result.put("success", true);
-                    sendResponse(reqId, result);
-                } catch (Exception e) {
-                    sendError(reqId, e.getMessage());
-                }
-            }
-        });
+    // Commands can change what GET_WORLDS and GET_PLUGINS report without firing the events the cache listens to
+    private void invalidateAfterCommand(String cmd) {
+        ResponseCache cache = plugin.getResponseCache();
+        if (cache == null) return;
+        String l = cmd.toLowerCase().trim();
+        if (l.startsWith("gamerule ") || l.startsWith("worldborder ")) cache.invalidate(ResponseCache.WORLDS);
+        if (l.startsWith("plugman ") || l.endsWith(" reload") || l.equals("reload") || l.equals("rl")) cache.invalidate(ResponseCache.PLUGINS);
     }
 
-    private void handleCreateFile(final JsonObject json) {
-        final String reqId = json.get("requestId").getAsString();
-        final JsonObject data = json.getAsJsonObject("data");
-        final String path = data.get("path").getAsString();
-        final boolean isDirectory = data.has("isDirectory") && data.get("isDirectory").getAsBoolean();
-        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    fileOps.createFile(path, isDirectory);
-                    Map<String, Object> result = new HashMap<String, Object>();
-                    result.put("success", true);
-                    sendResponse(reqId, result);
-                } catch (Exception e) {
-                    sendError(reqId, e.getMessage());
-                }
-            }
-        });
+    void sendResponse(String reqId, Map<String, Object> data) {
+        enqueue(OutboundQueue.Lane.RESPONSE, null, responseMessage(reqId, data));
     }
 
-    private void handleRenameFile(final JsonObject json) {
-        final String reqId = json.get("requestId").getAsString();
-        final JsonObject data = json.getAsJsonObject("data");
-        final String oldPath = data.get("oldPath").getAsString();
-        final String newPath = data.get("newPath").getAsString();
-        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    fileOps.renameFile(oldPath, newPath);
-                    Map<String, Object> result = new HashMap<String, Object>();
-                    result.put("success", true);
-                    sendResponse(reqId, result);
-                } catch (Exception e) {
-                    sendError(reqId, e.getMessage());
-                }
-            }
-        });
+    // Relayed sibling traffic rides the RESPONSE lane: never dropped, and ahead of our own telemetry
+    // Relay traffic is sent unsequenced: its channels close with the connection, so it is never resent
+    boolean sendRelayFrame(byte[] frame, boolean compressible) {
+        if (!isOpen()) return false;
+        return sendRelay(new OutboundQueue.Frame(OutboundQueue.Lane.RESPONSE, null, frame, true, compressible));
     }
 
-    private void handleExecuteCommand(final JsonObject json) {
-        final String reqId = json.get("requestId").getAsString();
-        final String cmd = json.getAsJsonObject("data").get("command").getAsString();
-        if (!isAllowedCommand(cmd)) {
-            sendError(reqId, "Command not allowed");
+    boolean sendRelayControl(Map<String, Object> msg) {
+        if (!isOpen()) return false;
+        boolean binary = binaryCodec;
+        byte[] payload = binary ? WireCodec.encodeFrame(msg) : PayloadWriter.encodeJson(msg);
+        return sendRelay(new OutboundQueue.Frame(OutboundQueue.Lane.RESPONSE, null, payload, binary, true));
+    }
+
+    private boolean sendRelay(OutboundQueue.Frame frame) {
+        frame.sequenced = false;
+        return outbound.offer(frame);
+    }
+
+    // Already-framed binary payloads; only permessage-deflate applies, never the dictionary
+    boolean sendBinary(OutboundQueue.Lane lane, byte[] payload) {
+        if (!isOpen()) return false;
+        return outbound.offer(new OutboundQueue.Frame(lane, null, payload, true, compressionThreshold("FILE_STREAM") >= 0));
+    }
+
+    private void sendError(String reqId, String error) {
+        enqueue(OutboundQueue.Lane.RESPONSE, null, errorMessage(reqId, error));
+    }
+
+    // Refused without running; the backend may retry the same requestId after retryAfterMs
+    private void sendBusy(String reqId, String error, long retryAfterMs) {
+        Map<String, Object> msg = errorMessage(reqId, error);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> errorData = (Map<String, Object>) msg.get("data");
+        errorData.put("busy", true);
+        errorData.put("retryAfterMs", retryAfterMs);
+        enqueue(OutboundQueue.Lane.RESPONSE, null, msg);
+    }
+
+    private static Map<String, Object> responseMessage(String reqId, Map<String, Object> data) {
+        Map<String, Object> msg = new HashMap<String, Object>();
+        msg.put("type", "RESPONSE");
+        msg.put("requestId", reqId);
+        msg.put("data", data);
+        return msg;
+    }
+
+    private static Map<String, Object> errorMessage(String reqId, String error) {
+        Map<String, Object> errorData = new HashMap<String, Object>();
+        errorData.put("error", error);
+        Map<String, Object> msg = new HashMap<String, Object>();
+        msg.put("type", "ERROR");
+        msg.put("requestId", reqId);
+        msg.put("data", errorData);
+        return msg;
+    }
+
+    // Typed pushes are serialized straight into the frame; the spool always stores the binary form
+    public void sendPush(String type, Payload payload) {
+        WebSocketClient current = plugin.getWsClient();
+        if (current != null && current != this) {
+            current.sendPush(type, payload);
             return;
         }
-        plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    plugin.getServer().dispatchCommand(plugin.getServer().getConsoleSender(), cmd);
-                    Map<String, Object> result = new HashMap<String, Object>();
-                    result.put("output", "Command executed");
-                    sendResponse(reqId, result);
-                } catch (Exception e) {
-                    sendError(reqId, e.getMessage());
-                }
-            }
-        });
+        if (isOpen()) {
+            boolean binary = binaryCodec;
+            byte[] frame = PayloadWriter.encodeMessage(type, payload, binary);
+            if (enqueue(OutboundQueue.Lane.TELEMETRY, COALESCED_PUSHES.contains(type) ? type : null, type, frame, binary)) return;
+        }
+        TelemetrySpool spool = plugin.getSpool();
+        if (spool != null) spool.append(PayloadWriter.encodeMessage(type, payload, true));
     }
 
-    private boolean isAllowedCommand(String cmd) {
-        String l = cmd.toLowerCase().trim();
-        return l.endsWith(" reload") || l.equals("reload") || l.equals("rl")
-            || l.startsWith("plugman ") || l.startsWith("say ") || l.startsWith("kick ")
-            || l.startsWith("whitelist ") || l.startsWith("gamerule ") || l.startsWith("worldborder ");
+    // Pushes made while offline go to the disk spool and are replayed after the next WELCOME
+    public void sendPush(String type, Map<String, Object> data) {
+        WebSocketClient current = plugin.getWsClient();
+        if (current != null && current != this) {
+            current.sendPush(type, data);
+            return;
+        }
+        Map<String, Object> msg = new HashMap<String, Object>();
+        msg.put("type", type);
+        msg.put("data", data);
+        if (isOpen() && enqueue(OutboundQueue.Lane.TELEMETRY, COALESCED_PUSHES.contains(type) ? type : null, msg)) return;
+        TelemetrySpool spool = plugin.getSpool();
+        if (spool != null) spool.append(WireCodec.encodeFrame(msg));
     }
 
-    private void handleQuickAction(final JsonObject json) {
-        final String reqId = json.get("requestId").getAsString();
-        final String type = json.get("type").getAsString();
-        final JsonObject data = json.getAsJsonObject("data");
-        if (plugin.getQuickActions() != null) {
-            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, new Runnable() {
-                @Override
-                public void run() {
-                    Map<String, Object> result = plugin.getQuickActions().handleAction(type, data);
-                    sendResponse(reqId, result);
-                }
-            });
-        } else {
-            sendError(reqId, "Quick actions not available");
+    boolean replaySpooled(byte[] record, long spooledAt) {
+        if (!isOpen()) return false;
+        JsonObject msg = WireCodec.decodeFrame(ByteBuffer.wrap(record));
+        msg.addProperty("spooledAt", spooledAt);
+        boolean binary = binaryCodec;
+        byte[] payload = binary ? WireCodec.encodeFrame(msg) : PayloadWriter.encodeJson(msg);
+        return enqueue(OutboundQueue.Lane.TELEMETRY, null, msg.get("type").getAsString(), payload, binary);
+    }
+
+    private boolean enqueue(OutboundQueue.Lane lane, String coalesceKey, Map<String, Object> msg) {
+        return enqueue(lane, coalesceKey, msg, null);
+    }
+
+    private boolean enqueue(OutboundQueue.Lane lane, String coalesceKey, Map<String, Object> msg, RequestTrace trace) {
+        boolean binary = binaryCodec;
+        byte[] payload = binary ? WireCodec.encodeFrame(msg) : PayloadWriter.encodeJson(msg);
+        return enqueue(lane, coalesceKey, (String) msg.get("type"), payload, binary, trace);
+    }
+
+    private boolean enqueue(OutboundQueue.Lane lane, String coalesceKey, String type, byte[] payload, boolean binary) {
+        return enqueue(lane, coalesceKey, type, payload, binary, null);
+    }
+
+    private boolean enqueue(OutboundQueue.Lane lane, String coalesceKey, String type, byte[] payload, boolean binary, RequestTrace trace) {
+        int threshold = compressionThreshold(type);
+        boolean compress = threshold >= 0 && payload.length >= threshold;
+        if (compress && dictCompression) {
+            payload = binary ? compressor.compress(payload, 1, WireCodec.FLAG_CODEC) : compressor.compress(payload, 0, (byte) 0);
+            binary = true;
+            compress = false;
         }
+        OutboundQueue.Frame frame = new OutboundQueue.Frame(lane, coalesceKey, payload, binary, compress);
+        if (trace != null) {
+            trace.serialized = System.nanoTime();
+            frame.trace = trace;
+        }
+        return Thread.currentThread() == socketThread ? outbound.tryOffer(frame) : outbound.offer(frame);
     }
 
-    private void handleWorldAction(final JsonObject json) {
-        final String reqId = json.get("requestId").getAsString();
-        final String type = json.get("type").getAsString();
-        final JsonObject data = json.has("data") ? json.getAsJsonObject("data") : new JsonObject();
-        if (plugin.getWorldManager() != null) {
-            plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
-                @Override
-                public void run() {
-                    Map<String, Object> result = plugin.getWorldManager().handleAction(type, data);
-                    Map<String, Object> response = new HashMap<String, Object>();
-                    response.put("data", result.toString());
-                    sendResponse(reqId, response);
-                }
-            });
-        } else {
-            sendError(reqId, "World management not available");
+    private int compressionThreshold(String type) {
+        Integer threshold = compressionThresholds.get(type);
+        if (threshold == null) {
+            ModuleConfig config = plugin.getModuleConfig();
+            int fallback = config.getConnectionInt("compression.min-bytes.default", 512);
+            threshold = config.getConnectionInt("compression.min-bytes." + type, fallback);
+            compressionThresholds.put(type, threshold);
         }
+        return threshold;
     }
 
-    private void handlePluginAction(final JsonObject json) {
-        final String reqId = json.get("requestId").getAsString();
-        final String type = json.get("type").getAsString();
-        final JsonObject data = json.has("data") ? json.getAsJsonObject("data") : new JsonObject();
-        if (plugin.getPluginManager() != null) {
-            plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
-                @Override
-                public void run() {
-                    Map<String, Object> result = plugin.getPluginManager().handleAction(type, data);
-                    Map<String, Object> response = new HashMap<String, Object>();
-                    response.put("data", result.toString());
-                    sendResponse(reqId, response);
-                }
-            });
+    void writeFrame(OutboundQueue.Frame frame, long seq) {
+        if (!isOpen()) return;
+        RequestTrace trace = frame.trace;
+        if (trace != null) trace.dequeued = System.nanoTime();
+        DataFrame data;
+        if (frame.binary) {
+            data = frame.compressible ? new BinaryFrame() : new SelectiveDeflateExtension.PlainBinaryFrame();
         } else {
-            sendError(reqId, "Plugin management not available");
+            data = frame.compressible ? new TextFrame() : new SelectiveDeflateExtension.PlainTextFrame();
+        }
+        data.setPayload(ByteBuffer.wrap(seq > 0 ? stamp(frame, seq) : frame.payload));
+        data.setFin(true);
+        try {
+            sendFrame(data);
+            if (trace != null) trace.finish();
+        } catch (WebsocketNotConnectedException ignored) {
         }
     }
 
-    private void sendResponse(String reqId, Map<String, Object> data) {
-        if (isOpen()) {
-            Map<String, Object> msg = new HashMap<String, Object>();
-            msg.put("type", "RESPONSE");
-            msg.put("requestId", reqId);
-            msg.put("data", data);
-            send(gson.toJson(msg));
+    // Binary frames carry the sequence number as a varint after the flags byte, JSON frames as a leading "seq" field
+    private static byte[] stamp(OutboundQueue.Frame frame, long seq) {
+        if (!frame.binary) {
+            byte[] prefix = ("{\"seq\":" + seq + (frame.payload.length > 2 ? "," : "")).getBytes(StandardCharsets.UTF_8);
+            byte[] out = new byte[prefix.length + frame.payload.length - 1];
+            System.arraycopy(prefix, 0, out, 0, prefix.length);
+            System.arraycopy(frame.payload, 1, out, prefix.length, frame.payload.length - 1);
+            return out;
         }
+        WireCodec.Output out = new WireCodec.Output(frame.payload.length + 10);
+        out.write(frame.payload[0] | OutboundQueue.FLAG_SEQUENCED);
+        out.writeVarLong(seq);
+        out.write(frame.payload, 1, frame.payload.length - 1);
+        return out.toByteArray();
     }
 
-    private void sendError(String reqId, String error) {
-        if (isOpen()) {
-            Map<String, Object> errorData = new HashMap<String, Object>();
-            errorData.put("error", error);
-            Map<String, Object> msg = new HashMap<String, Object>();
-            msg.put("type", "ERROR");
-            msg.put("requestId", reqId);
-            msg.put("data", errorData);
-            send(gson.toJson(msg));
+    // Frames kept across a reconnect were encoded for the previous session; one using a codec or dictionary
+    // the new session did not agree to is re-encoded, or null when it cannot be decoded
+    OutboundQueue.Frame conform(OutboundQueue.Frame frame) {
+        if (!frame.binary) return frame;
+        byte flags = frame.payload[0];
+        if ((flags & RelayServer.FLAG_RELAY) != 0) return frame;
+        boolean dict = (flags & FrameCompressor.FLAG_DICT_DEFLATE) != 0;
+        boolean codec = (flags & WireCodec.FLAG_CODEC) != 0;
+        if ((!dict || dictCompression) && (!codec || binaryCodec)) return frame;
+        JsonObject msg;
+        try {
+            msg = decodeBinary(ByteBuffer.wrap(frame.payload));
+        } catch (Exception e) {
+            return null;
         }
+        byte[] payload = binaryCodec ? WireCodec.encodeFrame(msg) : PayloadWriter.encodeJson(msg);
+        // Left to permessage-deflate now that the dictionary is off
+        OutboundQueue.Frame out = new OutboundQueue.Frame(frame.lane, frame.coalesceKey, payload, binaryCodec, frame.compressible || dict);
+        out.trace = frame.trace;
+        out.sequenced = frame.sequenced;
+        return out;
     }
 
-    public void sendPush(String type, Map<String, Object> data) {
-        if (isOpen()) {
-            Map<String, Object> msg = new HashMap<String, Object>();
-            msg.put("type", type);
-            msg.put("data", data);
-            send(gson.toJson(msg));
-        }
+    long getBufferedBytes() {
+        WebSocket conn = getConnection();
+        if (!(conn instanceof WebSocketImpl)) return 0;
+        long total = 0;
+        for (ByteBuffer buf : ((WebSocketImpl) conn).outQueue) total += buf.remaining();
+        return total;
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
+    public RequestExecutor getRequestExecutor() {
+        return requests;
+    }
+
+    public EndpointSelector getEndpoints() {
+        return endpoints;
+    }
+
+    public LatencyTracker getLatencyTracker() {
+        return latency;
+    }
+
+    public FrameCompressor getCompressor() {
+        return compressor;
+    }
+
+    public boolean isDictionaryCompression() {
+        return dictCompression;
+    }
+
+    // Asked by modules holding an older client after a manual reconnect, like sendPush
+    public boolean isSeriesEncoding() {
+        WebSocketClient current = plugin.getWsClient();
+        return current != null && current != this ? current.isSeriesEncoding() : seriesEncoding;
     }
 }
@@ -65,6 +65,7 @@ public class WorldManager {
                             if (world != null) {
                                 Bukkit.dispatchCommand(Bukkit.getConsoleSender(), "gamerule " + rule + " " + value);
                             }
+                            if (plugin.getResponseCache() != null) plugin.getResponseCache().invalidate(ResponseCache.WORLDS);
                         }
                     });
                     result.put("success", true);
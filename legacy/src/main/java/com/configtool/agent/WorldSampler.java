@@ -0,0 +1,168 @@
+package com.configtool.agent;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.event.entity.EntityPickupItemEvent;
+import org.bukkit.event.entity.EntitySpawnEvent;
+import org.bukkit.event.entity.ItemDespawnEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldLoadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// World counters kept on the main thread from chunk and entity events, published once a second as an
+// immutable snapshot so async collectors never touch world state. Each world is recounted now and
+// then, since Spigot has no event for every way an entity can leave a world.
+public class WorldSampler implements Listener {
+    public static final class Snapshot {
+        public final long takenAt;
+        public final int worldCount;
+        public final int chunkCount;
+        public final int entityCount;
+        public final int playerCount;
+
+        Snapshot(long takenAt, int worldCount, int chunkCount, int entityCount, int playerCount) {
+            this.takenAt = takenAt;
+            this.worldCount = worldCount;
+            this.chunkCount = chunkCount;
+            this.entityCount = entityCount;
+            this.playerCount = playerCount;
+        }
+    }
+
+    private static final class Counts {
+        int chunks;
+        int entities;
+    }
+
+    private final ConfigToolAgent plugin;
+    private final long recountMillis;
+    // Main thread only
+    private final Map<String, Counts> worlds = new HashMap<String, Counts>();
+    private final List<String> recountOrder = new ArrayList<String>();
+    private int recountIndex;
+    private long lastRecountPass;
+    private volatile Snapshot snapshot = new Snapshot(0, 0, 0, 0, 0);
+    private BukkitTask task;
+
+    public WorldSampler(ConfigToolAgent plugin, int recountSeconds) {
+        this.plugin = plugin;
+        this.recountMillis = recountSeconds * 1000L;
+    }
+
+    // Must be called on the main thread
+    public void start() {
+        for (World world : Bukkit.getWorlds()) recount(world);
+        lastRecountPass = System.currentTimeMillis();
+        publish();
+        plugin.getServer().getPluginManager().registerEvents(this, plugin);
+        task = new BukkitRunnable() {
+            @Override
+            public void run() { tick(); }
+        }.runTaskTimer(plugin, 20L, 20L);
+    }
+
+    public void stop() {
+        if (task != null) task.cancel();
+    }
+
+    // Never null; the collector reads it from any thread
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        // One world per second while a recount pass is running, so the cost is spread out
+        if (recountMillis > 0 && now - lastRecountPass >= recountMillis) {
+            if (recountIndex == 0) {
+                recountOrder.clear();
+                recountOrder.addAll(worlds.keySet());
+            }
+            if (recountIndex < recountOrder.size()) {
+                World world = Bukkit.getWorld(recountOrder.get(recountIndex));
+                if (world != null) recount(world);
+                recountIndex++;
+            }
+            if (recountIndex >= recountOrder.size()) {
+                recountIndex = 0;
+                lastRecountPass = now;
+            }
+        }
+        publish();
+    }
+
+    // Builds the chunk array and entity list, which is what the events spare the collector from doing
+    private void recount(World world) {
+        Counts counts = counts(world);
+        counts.chunks = world.getLoadedChunks().length;
+        counts.entities = world.getEntities().size();
+    }
+
+    private void publish() {
+        int chunks = 0, entities = 0;
+        for (Counts counts : worlds.values()) {
+            chunks += counts.chunks;
+            entities += counts.entities;
+        }
+        snapshot = new Snapshot(System.currentTimeMillis(), worlds.size(), chunks, entities, Bukkit.getOnlinePlayers().size());
+    }
+
+    private Counts counts(World world) {
+        Counts counts = worlds.get(world.getName());
+        if (counts == null) {
+            counts = new Counts();
+            worlds.put(world.getName(), counts);
+        }
+        return counts;
+    }
+
+    // Entities load and unload with their chunk
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        Counts counts = counts(event.getWorld());
+        counts.chunks++;
+        counts.entities += event.getChunk().getEntities().length;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        Counts counts = counts(event.getWorld());
+        counts.chunks--;
+        counts.entities -= event.getChunk().getEntities().length;
+    }
+
+    // Item spawns included
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntitySpawn(EntitySpawnEvent event) { counts(event.getEntity().getWorld()).entities++; }
+
+    // Players stay in the world when they die
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onEntityDeath(EntityDeathEvent event) {
+        if (!(event.getEntity() instanceof Player)) counts(event.getEntity().getWorld()).entities--;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onItemDespawn(ItemDespawnEvent event) { counts(event.getEntity().getWorld()).entities--; }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onItemPickup(EntityPickupItemEvent event) { counts(event.getItem().getWorld()).entities--; }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldLoad(WorldLoadEvent event) { recount(event.getWorld()); }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onWorldUnload(WorldUnloadEvent event) { worlds.remove(event.getWorld().getName()); }
+}
@@ -4,16 +4,20 @@ import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.plugin.java.JavaPlugin;
-import org.bukkit.scheduler.BukkitRunnable;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 public class ConfigToolAgent extends JavaPlugin implements CommandExecutor {
     private WebSocketClient wsClient;
     private FileOperations fileOps;
-    private String serverUrl;
+    private List<String> serverUrls;
     private String token;
     private ModuleConfig moduleConfig;
-    private BukkitRunnable metricsCollector;
+    private MetricsCollector metricsCollector;
+    private WorldSampler worldSampler;
+    private TickMonitor tickMonitor;
+    private PluginProfiler profiler;
     private QuickActions quickActions;
     private ConsoleInterceptor consoleInterceptor;
     private PlayerTracker playerTracker;
@@ -21,11 +25,17 @@ public class ConfigToolAgent extends JavaPlugin implements CommandExecutor {
     private PerformanceTracker performanceTracker;
     private WorldManager worldManager;
     private PluginManagerAgent pluginManager;
+    private TelemetrySpool spool;
+    private UploadManager uploads;
+    private LinkMonitor link;
+    private ResponseCache cache;
+    private Subscriptions subscriptions;
+    private RelayServer relay;
 
     @Override
     public void onEnable() {
         saveDefaultConfig();
-        serverUrl = getConfig().getString("server-url", "wss://your-backend.fly.dev/agent").trim();
+        serverUrls = readServerUrls();
         token = getConfig().getString("token", "").trim();
 
         if (token.isEmpty() || token.equals("paste-your-token-here")) {
@@ -35,11 +45,34 @@ public class ConfigToolAgent extends JavaPlugin implements CommandExecutor {
 
         fileOps = new FileOperations(getDataFolder().getParentFile(), getLogger());
         moduleConfig = new ModuleConfig(getConfig());
+        uploads = new UploadManager(fileOps, moduleConfig, getLogger());
+        link = new LinkMonitor(moduleConfig);
+        subscriptions = new Subscriptions(this);
+
+        if (moduleConfig.getConnectionBoolean("cache.enabled", true)) {
+            cache = new ResponseCache(this);
+            cache.start(fileOps);
+        }
+
+        if (moduleConfig.getConnectionBoolean("spool.enabled", true)) {
+            spool = new TelemetrySpool(new File(getDataFolder(), "spool"), moduleConfig, getLogger());
+            try {
+                spool.open();
+            } catch (Exception e) {
+                getLogger().warning("Telemetry spool unavailable: " + e.getMessage());
+                spool = null;
+            }
+        }
 
         if (moduleConfig.isEnabled("quick-actions")) {
             quickActions = new QuickActions(this);
         }
 
+        if (moduleConfig.getConnectionBoolean("relay.enabled", false)) {
+            relay = new RelayServer(this, moduleConfig, getLogger());
+            relay.start();
+        }
+
         getCommand("configtool").setExecutor(this);
         connect();
 
@@ -59,15 +92,15 @@ public class ConfigToolAgent extends JavaPlugin implements CommandExecutor {
         }
 
         if (moduleConfig.isEnabled("economy")) {
-            economyTracker = new EconomyTracker(this, wsClient);
-            int intervalTicks = moduleConfig.getInt("economy", "snapshot-interval-seconds", 300) * 20;
-            economyTracker.runTaskTimerAsynchronously(this, 100L, intervalTicks);
+            economyTracker = new EconomyTracker(this, wsClient, moduleConfig.getEconomySnapshotIntervalSeconds());
+            economyTracker.runTaskTimerAsynchronously(this, 100L, 20L);
         }
 
         if (moduleConfig.isEnabled("performance")) {
-            performanceTracker = new PerformanceTracker(this, wsClient);
-            int intervalTicks = moduleConfig.getInt("performance", "tick-sample-interval-ticks", 600);
-            performanceTracker.runTaskTimerAsynchronously(this, 200L, intervalTicks);
+            profiler = new PluginProfiler(this);
+            profiler.setEnabled(moduleConfig.isPluginTimingEnabled());
+            performanceTracker = new PerformanceTracker(this, wsClient, moduleConfig.getTickSampleIntervalTicks());
+            performanceTracker.runTaskTimerAsynchronously(this, 200L, 20L);
         }
 
         if (moduleConfig.isEnabled("world-management")) {
@@ -81,36 +114,61 @@ public class ConfigToolAgent extends JavaPlugin implements CommandExecutor {
 
     @Override
     public void onDisable() {
-        if (metricsCollector != null) { metricsCollector.cancel(); metricsCollector = null; }
+        if (metricsCollector != null) { metricsCollector.stop(); metricsCollector = null; }
+        if (worldSampler != null) { worldSampler.stop(); worldSampler = null; }
+        tickMonitor = null;
         if (consoleInterceptor != null) { consoleInterceptor.stop(); consoleInterceptor = null; }
         if (economyTracker != null) { economyTracker.cancel(); economyTracker = null; }
         if (performanceTracker != null) { performanceTracker.cancel(); performanceTracker = null; }
+        // Other plugins' listeners and tasks must not keep our wrappers after we unload
+        if (profiler != null) { profiler.setEnabled(false); profiler = null; }
         if (playerTracker != null) { playerTracker.shutdown(); playerTracker = null; }
         disconnect();
+        if (relay != null) { relay.shutdown(); relay = null; }
+        if (spool != null) { spool.close(); spool = null; }
+        if (uploads != null) { uploads.close(); uploads = null; }
         getLogger().info("ConfigTool Agent disabled!");
     }
 
     private void startMetricsCollector() {
         if (metricsCollector != null) {
-            metricsCollector.cancel();
+            metricsCollector.stop();
+        }
+        if (worldSampler == null) {
+            worldSampler = new WorldSampler(this, moduleConfig.getWorldRecountSeconds());
+            worldSampler.start();
         }
-        metricsCollector = new MetricsCollector(this, wsClient);
-        int intervalTicks = moduleConfig.getMetricsIntervalSeconds() * 20;
-        metricsCollector.runTaskTimerAsynchronously(this, 20L, intervalTicks);
+        if (tickMonitor == null) {
+            int historyTicks = moduleConfig.isIncidentsEnabled() ? IncidentRecorder.historyTicks(moduleConfig) : 0;
+            tickMonitor = new TickMonitor(this, moduleConfig.getTickBudgetMillis(), historyTicks);
+            tickMonitor.start();
+        }
+        metricsCollector = new MetricsCollector(this, wsClient, worldSampler, tickMonitor, moduleConfig);
+        metricsCollector.start();
     }
 
     public void connect() {
-        if (wsClient != null && wsClient.isOpen()) return;
+        if (wsClient != null) return;
         try {
-            wsClient = new WebSocketClient(this, serverUrl + "?token=" + token, token, fileOps);
-            wsClient.connect();
+            wsClient = new WebSocketClient(this, new EndpointSelector(serverUrls, token, moduleConfig, getLogger()), token, fileOps);
+            wsClient.start();
         } catch (Exception e) {
             getLogger().severe("Failed to connect: " + e.getMessage());
         }
     }
 
+    // server-urls lists several backends to fail over between; server-url is the single-endpoint form
+    private List<String> readServerUrls() {
+        List<String> urls = new ArrayList<>();
+        for (String url : getConfig().getStringList("server-urls")) {
+            if (url != null && !url.isBlank()) urls.add(url.trim());
+        }
+        if (urls.isEmpty()) urls.add(getConfig().getString("server-url", "wss://your-backend.fly.dev/agent").trim());
+        return urls;
+    }
+
     public void disconnect() {
-        if (wsClient != null) { wsClient.close(); wsClient = null; }
+        if (wsClient != null) { wsClient.shutdown(); wsClient = null; }
     }
 
     public void reconnect() {
@@ -127,6 +185,14 @@ public class ConfigToolAgent extends JavaPlugin implements CommandExecutor {
     }
 
     public WebSocketClient getWsClient() { return wsClient; }
+    public TelemetrySpool getSpool() { return spool; }
+    public UploadManager getUploads() { return uploads; }
+    public LinkMonitor getLinkMonitor() { return link; }
+    public ResponseCache getResponseCache() { return cache; }
+    public Subscriptions getSubscriptions() { return subscriptions; }
+    public RelayServer getRelay() { return relay; }
+    public PluginProfiler getProfiler() { return profiler; }
+    public MetricsStore getMetricsStore() { return metricsCollector != null ? metricsCollector.getStore() : null; }
     public WorldManager getWorldManager() { return worldManager; }
     public PluginManagerAgent getPluginManager() { return pluginManager; }
 
@@ -138,15 +204,58 @@ public class ConfigToolAgent extends JavaPlugin implements CommandExecutor {
         }
         switch (args[0].toLowerCase()) {
             case "reconnect" -> { reconnect(); sender.sendMessage("\u00A7aReconnecting..."); }
-            case "status" -> sender.sendMessage("\u00A77Status: " + (wsClient != null && wsClient.isOpen() ? "\u00A7aConnected" : "\u00A7cDisconnected"));
+            case "status" -> {
+                sender.sendMessage("\u00A77Status: " + (wsClient != null && wsClient.isOpen() ? "\u00A7aConnected" : "\u00A7cDisconnected"));
+                if (link != null && link.isMeasured()) {
+                    sender.sendMessage("\u00A77Link: \u00A7f" + Math.round(link.getRttMs()) + " ms RTT, " + Math.round(link.getJitterMs())
+                        + " ms jitter, telemetry cadence x" + String.format("%.1f", link.getCadenceFactor()));
+                }
+                if (wsClient != null) {
+                    OutboundQueue queue = wsClient.getOutboundQueue();
+                    sender.sendMessage("\u00A77Outbound: \u00A7f" + queue.getQueuedFrames() + " queued, " + queue.getUnackedFrames() + " unacked, " + queue.getDroppedFrames() + " dropped");
+                    EndpointSelector endpoints = wsClient.getEndpoints();
+                    if (endpoints.size() > 1) {
+                        double latency = endpoints.getLatencyMs(wsClient.getURI());
+                        sender.sendMessage("\u00A77Endpoint: \u00A7f" + endpoints.describe(wsClient.getURI())
+                            + (latency >= 0 ? " (" + Math.round(latency) + " ms connect)" : "") + ", " + endpoints.size() + " configured");
+                    }
+                    RequestExecutor requests = wsClient.getRequestExecutor();
+                    sender.sendMessage("\u00A77Requests: \u00A7f" + requests.getRunning() + " running, " + requests.getQueued() + " queued"
+                        + (requests.isVirtualThreads() ? " (virtual threads)" : ""));
+                    if (wsClient.isDictionaryCompression()) {
+                        sender.sendMessage("\u00A77Compression: \u00A7f" + Math.round(wsClient.getCompressor().getRatio() * 100) + "% of raw size");
+                    }
+                }
+                if (relay != null) {
+                    sender.sendMessage("\u00A77Relay: \u00A7f" + relay.getChannelCount() + " sibling agents on port " + relay.getPort());
+                }
+                if (spool != null) {
+                    sender.sendMessage("\u00A77Spool: \u00A7f" + (spool.getPendingBytes() / 1024) + " KB pending"
+                        + (spool.isReplaying() ? ", replaying" : "") + (spool.getDroppedSegments() > 0 ? ", " + spool.getDroppedSegments() + " segments dropped" : ""));
+                }
+            }
+            case "latency" -> {
+                List<String> lines = wsClient != null ? wsClient.getLatencyTracker().describe() : List.of();
+                if (lines.isEmpty()) sender.sendMessage("\u00A77No requests recorded yet");
+                for (String line : lines) sender.sendMessage("\u00A77" + line);
+            }
+            case "timing" -> {
+                if (profiler == null) {
+                    sender.sendMessage("\u00A7cPerformance module is disabled");
+                } else {
+                    if (args.length > 1) profiler.setEnabled(args[1].equalsIgnoreCase("on"));
+                    sender.sendMessage("\u00A77Plugin timing: " + (profiler.isEnabled() ? "\u00A7aon" : "\u00A7coff"));
+                }
+            }
             case "reload" -> {
                 reloadConfig();
-                serverUrl = getConfig().getString("server-url");
+                serverUrls = readServerUrls();
                 token = getConfig().getString("token");
                 moduleConfig = new ModuleConfig(getConfig());
+                if (uploads != null) uploads.configure(moduleConfig);
                 sender.sendMessage("\u00A7aConfig reloaded");
             }
-            default -> sender.sendMessage("\u00A7cUsage: /configtool [reconnect|status|reload]");
+            default -> sender.sendMessage("\u00A7cUsage: /configtool [reconnect|status|latency|timing|reload]");
         }
         return true;
     }
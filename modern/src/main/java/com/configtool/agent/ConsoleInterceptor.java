@@ -9,12 +9,29 @@ import java.util.logging.Handler;
 import java.util.logging.LogRecord;
 
 public class ConsoleInterceptor {
+    private static final class Entry {
+        final String logLevel;
+        final String message;
+        final String source;
+        final long recordedAt;
+
+        Entry(String logLevel, String message, String source, long recordedAt) {
+            this.logLevel = logLevel;
+            this.message = message;
+            this.source = source;
+            this.recordedAt = recordedAt;
+        }
+    }
+
+    private static final int BASE_BATCH = 200;
+
     private final ConfigToolAgent plugin;
     private final WebSocketClient wsClient;
     private final int bufferSize;
     private final int flushIntervalSeconds;
-    private final ConcurrentLinkedQueue<Map<String, Object>> buffer = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Entry> buffer = new ConcurrentLinkedQueue<>();
     private Handler logHandler;
+    private volatile long lastFlush = System.currentTimeMillis();
 
     public ConsoleInterceptor(ConfigToolAgent plugin, WebSocketClient wsClient, int bufferSize, int flushIntervalSeconds) {
         this.plugin = plugin;
@@ -30,12 +47,7 @@ public class ConsoleInterceptor {
                 if (record == null || record.getMessage() == null) return;
                 String msg = record.getMessage();
                 String level = classifyLevel(record, msg);
-                Map<String, Object> entry = new HashMap<>();
-                entry.put("logLevel", level);
-                entry.put("message", msg);
-                entry.put("source", record.getLoggerName());
-                entry.put("recordedAt", System.currentTimeMillis());
-                buffer.add(entry);
+                buffer.add(new Entry(level, msg, record.getLoggerName(), System.currentTimeMillis()));
                 while (buffer.size() > bufferSize) buffer.poll();
             }
             @Override public void flush() {}
@@ -43,23 +55,49 @@ public class ConsoleInterceptor {
         };
         Bukkit.getLogger().getParent().addHandler(logHandler);
 
+        // Checked every second so the interval can follow the measured link
         new BukkitRunnable() {
             @Override
             public void run() {
-                flush();
+                if (isDue()) flush();
             }
-        }.runTaskTimerAsynchronously(plugin, flushIntervalSeconds * 20L, flushIntervalSeconds * 20L);
+        }.runTaskTimerAsynchronously(plugin, 20L, 20L);
+    }
+
+    // While paused the buffer keeps the newest lines, sent as soon as someone subscribes
+    private boolean isDue() {
+        Subscriptions subscriptions = plugin.getSubscriptions();
+        if (subscriptions.isPaused(Subscriptions.CONSOLE)) return false;
+        return subscriptions.isDue(Subscriptions.CONSOLE, flushIntervalSeconds * 1000L, lastFlush) || buffer.size() >= batchLimit();
+    }
+
+    private int batchLimit() {
+        LinkMonitor link = plugin.getLinkMonitor();
+        return link != null ? link.scaleBatch(BASE_BATCH) : BASE_BATCH;
     }
 
     public void flush() {
-        if (buffer.isEmpty() || wsClient == null || !wsClient.isOpen()) return;
-        List<Map<String, Object>> batch = new ArrayList<>();
-        Map<String, Object> entry;
-        while ((entry = buffer.poll()) != null && batch.size() < 200) {
+        lastFlush = System.currentTimeMillis();
+        if (buffer.isEmpty() || wsClient == null) return;
+        int limit = batchLimit();
+        List<Entry> batch = new ArrayList<>();
+        Entry entry;
+        while (batch.size() < limit && (entry = buffer.poll()) != null) {
             batch.add(entry);
         }
         if (!batch.isEmpty()) {
-            wsClient.sendPush("CONSOLE_BATCH", Map.of("entries", batch));
+            wsClient.sendPush("CONSOLE_BATCH", out -> {
+                out.beginObject(1).name("entries").beginArray(batch.size());
+                for (Entry e : batch) {
+                    out.beginObject(4)
+                        .name("logLevel").value(e.logLevel)
+                        .name("message").value(e.message)
+                        .name("source").value(e.source)
+                        .name("recordedAt").value(e.recordedAt)
+                        .endObject();
+                }
+                out.endArray().endObject();
+            });
         }
     }
 
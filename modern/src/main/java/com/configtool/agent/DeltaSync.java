@@ -0,0 +1,183 @@
+package com.configtool.agent;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// rsync-style delta transfer. The backend describes its copy as per-block signatures (rolling
+// weak checksum + MD5); the agent answers with ops that either copy a run of the backend's
+// blocks or carry literal bytes. The same op format is accepted for delta writes.
+public final class DeltaSync {
+    public static final int MIN_BLOCK = 256;
+    public static final int MAX_BLOCK = 64 * 1024;
+
+    private DeltaSync() {}
+
+    private static final class Block {
+        final int index;
+        final String strong;
+        final int length;
+
+        Block(int index, String strong, int length) {
+            this.index = index;
+            this.strong = strong;
+            this.length = length;
+        }
+    }
+
+    public static List<Map<String, Object>> diff(byte[] data, int blockSize, JsonArray signatures) {
+        checkBlockSize(blockSize);
+        Map<Integer, List<Block>> byWeak = new HashMap<>();
+        Block tailBlock = null;
+        for (int i = 0; i < signatures.size(); i++) {
+            JsonObject sig = signatures.get(i).getAsJsonObject();
+            int length = sig.has("size") ? sig.get("size").getAsInt() : blockSize;
+            Block block = new Block(i, sig.get("strong").getAsString(), length);
+            if (length == blockSize) {
+                // Unsigned on the wire; only the low 32 bits matter
+                byWeak.computeIfAbsent((int) sig.get("weak").getAsLong(), w -> new ArrayList<>()).add(block);
+            } else if (i == signatures.size() - 1) {
+                tailBlock = block;
+            }
+        }
+
+        MessageDigest md5 = digest("MD5");
+        List<Map<String, Object>> ops = new ArrayList<>();
+        int n = data.length;
+        int pos = 0;
+        int literalStart = 0;
+        int a = 0, b = 0;
+        boolean primed = false;
+        while (pos + blockSize <= n) {
+            if (!primed) {
+                int[] sums = sums(data, pos, blockSize);
+                a = sums[0];
+                b = sums[1];
+                primed = true;
+            }
+            Block match = find(byWeak.get(a | (b << 16)), md5, data, pos, blockSize);
+            if (match != null) {
+                addLiteral(ops, data, literalStart, pos);
+                addCopy(ops, match.index);
+                pos += blockSize;
+                literalStart = pos;
+                primed = false;
+                continue;
+            }
+            if (pos + blockSize < n) {
+                int out = data[pos] & 0xFF;
+                int in = data[pos + blockSize] & 0xFF;
+                a = (a - out + in) & 0xFFFF;
+                b = (b - blockSize * out + a) & 0xFFFF;
+            }
+            pos++;
+        }
+        // The backend's last block is usually short and can only match the very end of the file
+        if (tailBlock != null && tailBlock.length > 0 && n - tailBlock.length >= literalStart
+                && strong(md5, data, n - tailBlock.length, tailBlock.length).equals(tailBlock.strong)) {
+            addLiteral(ops, data, literalStart, n - tailBlock.length);
+            addCopy(ops, tailBlock.index);
+        } else {
+            addLiteral(ops, data, literalStart, n);
+        }
+        return ops;
+    }
+
+    public static byte[] patch(byte[] base, int blockSize, JsonArray ops) {
+        checkBlockSize(blockSize);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(base.length);
+        for (JsonElement element : ops) {
+            JsonObject op = element.getAsJsonObject();
+            if (op.has("literal")) {
+                byte[] literal = Base64.getDecoder().decode(op.get("literal").getAsString());
+                out.write(literal, 0, literal.length);
+                continue;
+            }
+            long start = (long) op.get("block").getAsInt() * blockSize;
+            long end = start + (long) (op.has("count") ? op.get("count").getAsInt() : 1) * blockSize;
+            if (start < 0 || start >= base.length) throw new IllegalArgumentException("Delta references a block beyond the base file");
+            out.write(base, (int) start, (int) (Math.min(end, base.length) - start));
+        }
+        return out.toByteArray();
+    }
+
+    public static String hash(byte[] data) {
+        return hex(digest("SHA-256").digest(data));
+    }
+
+    private static void checkBlockSize(int blockSize) {
+        if (blockSize < MIN_BLOCK || blockSize > MAX_BLOCK) throw new IllegalArgumentException("Block size must be between " + MIN_BLOCK + " and " + MAX_BLOCK);
+    }
+
+    private static int[] sums(byte[] data, int off, int len) {
+        int a = 0, b = 0;
+        for (int i = 0; i < len; i++) {
+            int x = data[off + i] & 0xFF;
+            a += x;
+            b += (len - i) * x;
+        }
+        return new int[] { a & 0xFFFF, b & 0xFFFF };
+    }
+
+    private static Block find(List<Block> candidates, MessageDigest md5, byte[] data, int off, int len) {
+        if (candidates == null) return null;
+        String strong = strong(md5, data, off, len);
+        for (Block block : candidates) {
+            if (block.strong.equals(strong)) return block;
+        }
+        return null;
+    }
+
+    private static String strong(MessageDigest md5, byte[] data, int off, int len) {
+        md5.reset();
+        md5.update(data, off, len);
+        return hex(md5.digest());
+    }
+
+    // Consecutive blocks collapse into one op
+    private static void addCopy(List<Map<String, Object>> ops, int index) {
+        if (!ops.isEmpty()) {
+            Map<String, Object> last = ops.get(ops.size() - 1);
+            if (last.containsKey("block") && (int) last.get("block") + (int) last.get("count") == index) {
+                last.put("count", (int) last.get("count") + 1);
+                return;
+            }
+        }
+        Map<String, Object> op = new HashMap<>();
+        op.put("block", index);
+        op.put("count", 1);
+        ops.add(op);
+    }
+
+    private static void addLiteral(List<Map<String, Object>> ops, byte[] data, int from, int to) {
+        if (to <= from) return;
+        byte[] literal = new byte[to - from];
+        System.arraycopy(data, from, literal, 0, literal.length);
+        Map<String, Object> op = new HashMap<>();
+        op.put("literal", Base64.getEncoder().encodeToString(literal));
+        ops.add(op);
+    }
+
+    private static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte x : bytes) sb.append(Character.forDigit((x >> 4) & 0xF, 16)).append(Character.forDigit(x & 0xF, 16));
+        return sb.toString();
+    }
+}
@@ -9,11 +9,14 @@ import java.util.*;
 public class EconomyTracker extends BukkitRunnable {
     private final ConfigToolAgent plugin;
     private final WebSocketClient wsClient;
+    private final int intervalSeconds;
     private Object economy;
+    private long lastRun;
 
-    public EconomyTracker(ConfigToolAgent plugin, WebSocketClient wsClient) {
+    public EconomyTracker(ConfigToolAgent plugin, WebSocketClient wsClient, int intervalSeconds) {
         this.plugin = plugin;
         this.wsClient = wsClient;
+        this.intervalSeconds = intervalSeconds;
         detectVault();
     }
 
@@ -31,7 +34,11 @@ public class EconomyTracker extends BukkitRunnable {
 
     @Override
     public void run() {
-        if (wsClient == null || !wsClient.isOpen() || economy == null) return;
+        if (wsClient == null || economy == null) return;
+        // Scheduled every second; snapshots follow the subscription
+        long now = System.currentTimeMillis();
+        if (!plugin.getSubscriptions().isDue(Subscriptions.ECONOMY, intervalSeconds * 1000L, lastRun)) return;
+        lastRun = now;
         try {
             Map<String, Object> snapshot = new HashMap<>();
             double totalMoney = 0;
@@ -0,0 +1,105 @@
+package com.configtool.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Application-level frame compression: raw deflate primed with a dictionary built from typical
+// agent payloads, so even a single small CONSOLE_BATCH compresses well. Both ends must use the
+// exact same dictionary bytes, which is why it is versioned and must never be edited in place.
+public class FrameCompressor {
+    public static final String VERSION = "dict-v1";
+    public static final byte FLAG_DICT_DEFLATE = 0x02;
+
+    private static final byte[] DICTIONARY = String.join("",
+        "{\"type\":\"ECONOMY_SNAPSHOT\",\"data\":{\"totalMoney\":,\"topBalances\":[{\"name\":\"balance\":",
+        "{\"type\":\"PERFORMANCE_DATA\",\"data\":{\"pluginTicks\":[{\"pluginName\":\"tickTimeMs\":0.0},",
+        "\"files\":[{\"path\":\"plugins/\",\"name\":\"isDirectory\":false,\"size\":.yml\"},\"total\":\"offset\":0,\"hasMore\":false",
+        "{\"type\":\"RESPONSE\",\"requestId\":\"\",\"data\":{\"success\":true,\"output\":\"",
+        "{\"type\":\"METRICS_BATCH\",\"data\":{\"tps\":20.0,\"cpuPercent\":\"ramUsedMb\":\"ramMaxMb\":\"diskUsedMb\":",
+        "\"diskTotalMb\":\"playerCount\":\"maxPlayers\":\"chunkCount\":\"entityCount\":\"uptimeSeconds\":\"gcCount\":\"gcTimeMs\":",
+        "[Server thread/INFO]: UUID of player  is  joined the game left the game lost connection: Disconnected",
+        " issued server command: /spawn/home/tpa/msg/warp/back/balance/pay/help/list",
+        "\"eventType\":\"ADVANCEMENT\",\"eventData\":\"story/minecraft:",
+        "\"eventType\":\"DEATH\",\"eventData\":\" was slain by Zombie fell from a high place drowned",
+        "\"eventType\":\"COMMAND\",\"eventData\":\"/",
+        "\"eventType\":\"CHAT\",\"eventData\":\"",
+        "\"eventType\":\"JOIN\",\"ipHash\":\"",
+        "\"eventType\":\"LEAVE\",",
+        "{\"type\":\"PLAYER_EVENT\",\"data\":{\"events\":[{\"playerUuid\":\"-4\",\"playerName\":\"",
+        "\"worldName\":\"world_nether\",\"worldName\":\"world_the_end\",\"worldName\":\"world\",\"x\":.5,\"y\":64.0,\"z\":.5}",
+        "\"logLevel\":\"WARN\",\"logLevel\":\"ERROR\",\"logLevel\":\"CHAT\",\"source\":\"Minecraft\",\"source\":\"",
+        "{\"type\":\"CONSOLE_BATCH\",\"data\":{\"entries\":[{\"logLevel\":\"INFO\",\"message\":\"",
+        "\",\"source\":\"\",\"recordedAt\":17"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+
+    // frame is an outgoing body starting at offset; the result is [flags | FLAG_DICT_DEFLATE][deflated body]
+    public byte[] compress(byte[] frame, int offset, byte flags) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(frame, offset, frame.length - offset);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, (frame.length - offset) / 3));
+            out.write(flags | FLAG_DICT_DEFLATE);
+            byte[] buf = new byte[4096];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                out.write(buf, 0, n);
+            }
+            rawBytes.addAndGet(frame.length);
+            compressedBytes.addAndGet(out.size());
+            return out.toByteArray();
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+    }
+
+    public byte[] decompress(ByteBuffer in) throws DataFormatException {
+        byte[] input = new byte[in.remaining()];
+        in.get(input);
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) inflater = new Inflater(true);
+        try {
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(input);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 3);
+            byte[] buf = new byte[4096];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated compressed frame");
+                }
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.reset();
+            inflaters.offer(inflater);
+        }
+    }
+
+    public double getRatio() {
+        long raw = rawBytes.get();
+        return raw == 0 ? 1.0 : (double) compressedBytes.get() / raw;
+    }
+
+    public void close() {
+        Deflater d;
+        while ((d = deflaters.poll()) != null) d.end();
+        Inflater i;
+        while ((i = inflaters.poll()) != null) i.end();
+    }
+}
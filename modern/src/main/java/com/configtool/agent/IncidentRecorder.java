@@ -0,0 +1,151 @@
+package com.configtool.agent;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Detail around lag spikes. Each 1s sample is checked against the TPS and MSPT thresholds; a breach
+// starts a capture that lasts until the server has been healthy for post-seconds, or max-seconds at
+// most. The capture then goes out as one INCIDENT push: the 1s samples from pre-seconds before the
+// trigger, every tick's duration, and the busiest threads by CPU time. Samples and ticks already sit
+// in bounded rings, so the only extra work while healthy is the threshold check.
+public class IncidentRecorder {
+    private static final int TOP_THREADS = 10;
+
+    private final ConfigToolAgent plugin;
+    private final WebSocketClient wsClient;
+    private final MetricsStore store;
+    private final TickMonitor ticks;
+    private final int tpsIndex;
+    private final int msptIndex;
+    private final int tickCountIndex;
+    private final double tpsThreshold;
+    private final double msptThreshold;
+    private final long preMillis;
+    private final long postMillis;
+    private final long maxMillis;
+    private final long cooldownMillis;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    // Only touched from the collector's task; triggeredAt is 0 while no capture runs
+    private long triggeredAt;
+    private long lastBreach;
+    private long cooldownUntil;
+    private String reason;
+    private double threshold;
+    private double peak;
+    private Map<Long, Long> threadCpuAtTrigger;
+    // Set by the first second with a finished tick, so the wait before the server starts ticking is no stall
+    private boolean ticking;
+
+    public IncidentRecorder(ConfigToolAgent plugin, WebSocketClient wsClient, MetricsStore store, TickMonitor ticks,
+                            String[] fields, ModuleConfig config) {
+        this.plugin = plugin;
+        this.wsClient = wsClient;
+        this.store = store;
+        this.ticks = ticks;
+        this.tpsIndex = Arrays.asList(fields).indexOf("tps");
+        this.msptIndex = Arrays.asList(fields).indexOf("msptP95");
+        this.tickCountIndex = Arrays.asList(fields).indexOf("tickCount");
+        this.tpsThreshold = config.getIncidentTpsThreshold();
+        this.msptThreshold = config.getIncidentMsptThreshold();
+        this.preMillis = config.getIncidentPreSeconds() * 1000L;
+        this.postMillis = config.getIncidentPostSeconds() * 1000L;
+        this.maxMillis = config.getIncidentMaxSeconds() * 1000L;
+        this.cooldownMillis = config.getIncidentCooldownSeconds() * 1000L;
+    }
+
+    // Ticks the capture can span, for sizing the tick history
+    public static int historyTicks(ModuleConfig config) {
+        return (config.getIncidentPreSeconds() + config.getIncidentMaxSeconds()) * 20;
+    }
+
+    // Called with every 1s sample, after it is recorded in the store
+    public void check(long now, double[] sample) {
+        double tps = sample[tpsIndex];
+        // A second without one finished tick means the main thread is stuck in a tick of at least that long
+        boolean stalled = sample[tickCountIndex] == 0;
+        if (!stalled) ticking = true;
+        else if (!ticking) return;
+        double mspt = stalled ? 1000 : sample[msptIndex];
+        boolean tpsLow = tpsThreshold > 0 && tps < tpsThreshold;
+        boolean msptHigh = msptThreshold > 0 && mspt >= msptThreshold;
+        if (triggeredAt == 0) {
+            if ((!tpsLow && !msptHigh) || now < cooldownUntil) return;
+            triggeredAt = lastBreach = now;
+            reason = msptHigh ? "mspt" : "tps";
+            threshold = msptHigh ? msptThreshold : tpsThreshold;
+            peak = msptHigh ? mspt : tps;
+            threadCpuAtTrigger = threadCpu();
+            plugin.getLogger().info("Capturing incident: " + reason + " at " + peak);
+            return;
+        }
+        if (tpsLow || msptHigh) {
+            lastBreach = now;
+            peak = reason.equals("mspt") ? Math.max(peak, mspt) : Math.min(peak, tps);
+        }
+        if (now - lastBreach >= postMillis || now - triggeredAt >= maxMillis) finish(now);
+    }
+
+    private void finish(long now) {
+        long from = triggeredAt - preMillis;
+        Map<String, Object> data = new HashMap<>();
+        data.put("reason", reason);
+        data.put("threshold", threshold);
+        data.put("peak", peak);
+        data.put("triggeredAt", triggeredAt);
+        data.put("start", from);
+        data.put("end", now);
+        data.put("metrics", store.range(from, now, 1000, null, wsClient.isSeriesEncoding()));
+
+        List<long[]> history = ticks.history(from, now);
+        List<Long> tickTimes = new ArrayList<>(history.size());
+        List<Double> tickMs = new ArrayList<>(history.size());
+        for (long[] tick : history) {
+            tickTimes.add(tick[0]);
+            tickMs.add(Math.round(tick[1] / 10.0) / 100.0);
+        }
+        data.put("ticks", Map.of("timestamps", tickTimes, "tickMs", tickMs));
+        data.put("threads", topThreads(now - triggeredAt));
+
+        wsClient.sendPush("INCIDENT", data);
+        plugin.getLogger().info("Incident captured: " + (now - triggeredAt) / 1000 + "s, " + history.size() + " ticks");
+        triggeredAt = 0;
+        threadCpuAtTrigger = null;
+        cooldownUntil = now + cooldownMillis;
+    }
+
+    private Map<Long, Long> threadCpu() {
+        Map<Long, Long> cpu = new HashMap<>();
+        if (!threads.isThreadCpuTimeSupported() || !threads.isThreadCpuTimeEnabled()) return cpu;
+        for (long id : threads.getAllThreadIds()) {
+            long nanos = threads.getThreadCpuTime(id);
+            if (nanos >= 0) cpu.put(id, nanos);
+        }
+        return cpu;
+    }
+
+    // CPU time per thread since the trigger, busiest first; threads started since count from zero
+    private List<Map<String, Object>> topThreads(long elapsedMillis) {
+        Map<Long, Long> now = threadCpu();
+        List<long[]> used = new ArrayList<>();
+        for (Map.Entry<Long, Long> entry : now.entrySet()) {
+            long delta = entry.getValue() - threadCpuAtTrigger.getOrDefault(entry.getKey(), 0L);
+            if (delta > 0) used.add(new long[] {entry.getKey(), delta});
+        }
+        used.sort((a, b) -> Long.compare(b[1], a[1]));
+        List<Map<String, Object>> top = new ArrayList<>();
+        for (long[] thread : used.subList(0, Math.min(TOP_THREADS, used.size()))) {
+            ThreadInfo info = threads.getThreadInfo(thread[0]);
+            if (info == null) continue;
+            double cpuMs = thread[1] / 1_000_000.0;
+            top.add(Map.of("name", info.getThreadName(), "cpuMs", Math.round(cpuMs * 100) / 100.0,
+                "cpuPercent", elapsedMillis > 0 ? Math.round(cpuMs * 1000 / elapsedMillis) / 10.0 : 0.0));
+        }
+        return top;
+    }
+}
@@ -0,0 +1,103 @@
+package com.configtool.agent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Per request type, one histogram per RequestTrace stage. The breakdown shows whether slow
+// requests wait for the executor, the main thread, their own work (usually disk) or the link.
+public class LatencyTracker {
+    private static final RequestTrace.Stage[] STAGES = RequestTrace.Stage.values();
+
+    private final Map<String, LogHistogram[]> types = new ConcurrentHashMap<>();
+
+    public RequestTrace begin(String type, long receivedNanos) {
+        return new RequestTrace(this, type, receivedNanos);
+    }
+
+    void record(String type, long[] micros) {
+        LogHistogram[] stages = types.computeIfAbsent(type, t -> {
+            LogHistogram[] created = new LogHistogram[STAGES.length];
+            for (int i = 0; i < created.length; i++) created[i] = new LogHistogram();
+            return created;
+        });
+        for (int i = 0; i < micros.length; i++) {
+            if (micros[i] >= 0) stages[i].record(micros[i]);
+        }
+    }
+
+    public void reset() {
+        types.clear();
+    }
+
+    // type == null returns every type
+    public Map<String, Object> getStats(String type) {
+        Map<String, Object> result = new HashMap<>();
+        for (Map.Entry<String, LogHistogram[]> entry : types.entrySet()) {
+            if (type != null && !type.equals(entry.getKey())) continue;
+            Map<String, Object> stages = new HashMap<>();
+            for (RequestTrace.Stage stage : STAGES) {
+                LogHistogram histogram = entry.getValue()[stage.ordinal()];
+                if (histogram.getCount() == 0) continue;
+                stages.put(stageName(stage), Map.of(
+                    "count", histogram.getCount(),
+                    "meanMs", millis(histogram.getMean()),
+                    "p50Ms", millis(histogram.percentile(0.50)),
+                    "p90Ms", millis(histogram.percentile(0.90)),
+                    "p99Ms", millis(histogram.percentile(0.99)),
+                    "maxMs", millis(histogram.getMax())
+                ));
+            }
+            result.put(entry.getKey(), stages);
+        }
+        return result;
+    }
+
+    // One line per type, busiest first: total percentiles and the stage that costs the most
+    public List<String> describe() {
+        List<Map.Entry<String, LogHistogram[]>> entries = new ArrayList<>(types.entrySet());
+        entries.sort((a, b) -> Long.compare(total(b.getValue()).getCount(), total(a.getValue()).getCount()));
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, LogHistogram[]> entry : entries) {
+            LogHistogram total = total(entry.getValue());
+            RequestTrace.Stage slowest = null;
+            double slowestTotal = 0;
+            for (RequestTrace.Stage stage : STAGES) {
+                if (stage == RequestTrace.Stage.TOTAL) continue;
+                LogHistogram histogram = entry.getValue()[stage.ordinal()];
+                double spent = histogram.getMean() * histogram.getCount();
+                if (spent > slowestTotal) {
+                    slowestTotal = spent;
+                    slowest = stage;
+                }
+            }
+            lines.add(entry.getKey() + " x" + total.getCount() + ": p50 " + millis(total.percentile(0.50)) + " ms, p99 "
+                + millis(total.percentile(0.99)) + " ms, max " + millis(total.getMax()) + " ms"
+                + (slowest != null ? ", mostly " + stageName(slowest) : ""));
+        }
+        return lines;
+    }
+
+    private static LogHistogram total(LogHistogram[] stages) {
+        return stages[RequestTrace.Stage.TOTAL.ordinal()];
+    }
+
+    private static String stageName(RequestTrace.Stage stage) {
+        return switch (stage) {
+            case PARSE -> "parse";
+            case QUEUE -> "queue";
+            case MAIN_THREAD -> "mainThread";
+            case HANDLER -> "handler";
+            case SERIALIZE -> "serialize";
+            case SEND_QUEUE -> "sendQueue";
+            case WRITE -> "write";
+            case TOTAL -> "total";
+        };
+    }
+
+    private static double millis(double micros) {
+        return Math.round(micros / 10.0) / 100.0;
+    }
+}
@@ -0,0 +1,111 @@
+package com.configtool.agent;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Measures the link to the backend from timestamped heartbeats and their ACKs, smoothed the same
+// way TCP does it (RFC 6298). Telemetry senders scale their flush interval and batch size by the
+// cadence factor: a slow, jittery or congested link gets fewer, larger batches.
+public class LinkMonitor {
+    private final long heartbeatSeconds;
+    private final double targetRttMs;
+    private final double minFactor;
+    private final double maxFactor;
+    private long nextProbeId;
+    private long pendingProbeId = -1;
+    private long pendingSentNanos;
+    private double srtt = -1;
+    private double rttvar;
+    private double lastRtt = -1;
+    private double minRtt = -1;
+    private long samples;
+    private long lostProbes;
+    private boolean congested;
+
+    public LinkMonitor(ModuleConfig config) {
+        this.heartbeatSeconds = Math.max(1, config.getConnectionInt("link.heartbeat-seconds", 15));
+        this.targetRttMs = Math.max(1, config.getConnectionInt("link.target-rtt-ms", 100));
+        this.minFactor = Math.max(10, config.getConnectionInt("link.min-cadence-percent", 50)) / 100.0;
+        this.maxFactor = Math.max(minFactor, config.getConnectionInt("link.max-cadence-percent", 400) / 100.0);
+    }
+
+    public long getHeartbeatSeconds() { return heartbeatSeconds; }
+
+    // Only the newest heartbeat is tracked; an older one still unanswered counts as lost
+    public synchronized long nextProbe() {
+        if (pendingProbeId >= 0) lostProbes++;
+        pendingProbeId = nextProbeId++;
+        pendingSentNanos = System.nanoTime();
+        return pendingProbeId;
+    }
+
+    // probeId < 0 is an ACK from a backend that does not echo the id; it answers the newest heartbeat
+    public synchronized void acknowledge(long probeId) {
+        if (pendingProbeId < 0 || (probeId >= 0 && probeId != pendingProbeId)) return;
+        sample((System.nanoTime() - pendingSentNanos) / 1_000_000.0);
+        pendingProbeId = -1;
+    }
+
+    private void sample(double rtt) {
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+            srtt = 0.875 * srtt + 0.125 * rtt;
+        }
+        lastRtt = rtt;
+        minRtt = minRtt < 0 ? rtt : Math.min(minRtt, rtt);
+        samples++;
+    }
+
+    public synchronized void setCongested(boolean congested) {
+        this.congested = congested;
+    }
+
+    // A new connection may take a different route, so earlier samples no longer apply
+    public synchronized void reset() {
+        pendingProbeId = -1;
+        srtt = -1;
+        rttvar = 0;
+        lastRtt = -1;
+        minRtt = -1;
+        congested = false;
+    }
+
+    // 1.0 until measured; otherwise the pessimistic RTT against the target, doubled while congested
+    public synchronized double getCadenceFactor() {
+        double factor = srtt < 0 ? 1.0 : (srtt + 2 * rttvar) / targetRttMs;
+        if (congested) factor = Math.max(factor, 1.0) * 2;
+        return Math.max(minFactor, Math.min(maxFactor, factor));
+    }
+
+    public long scaleInterval(long baseMillis) {
+        return Math.round(baseMillis * getCadenceFactor());
+    }
+
+    public int scaleBatch(int base) {
+        return Math.max(1, (int) Math.round(base * getCadenceFactor()));
+    }
+
+    public synchronized boolean isMeasured() { return srtt >= 0; }
+    public synchronized double getRttMs() { return srtt; }
+    public synchronized double getJitterMs() { return rttvar; }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("rttMs", round(srtt));
+        stats.put("jitterMs", round(rttvar));
+        stats.put("lastRttMs", round(lastRtt));
+        stats.put("minRttMs", round(minRtt));
+        stats.put("samples", samples);
+        stats.put("lostProbes", lostProbes);
+        stats.put("congested", congested);
+        stats.put("cadence", round(getCadenceFactor()));
+        return stats;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10) / 10.0;
+    }
+}
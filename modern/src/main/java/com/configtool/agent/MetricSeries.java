@@ -0,0 +1,129 @@
+package com.configtool.agent;
+
+import java.util.Arrays;
+
+// Samples of a fixed set of metrics, encoded column by column as in Facebook's Gorilla: timestamps
+// as delta-of-delta, each column's doubles XORed with the previous value so repeats take one bit
+// and slowly moving values only their changed middle bits. The block layout is:
+//   timestamps: first as 64 bits, then per sample a delta-of-delta code
+//     '0' = 0, '10' + 7 bits, '110' + 9 bits, '1110' + 12 bits, '1111' + 32 bits (two's complement)
+//   then per column: first value as 64 bits, then per sample
+//     '0' = same as previous, '10' + meaningful bits within the previous window,
+//     '11' + 5 bits leading zeros + 6 bits length - 1 + meaningful bits
+// Bits are written most significant first; the last byte is padded with zeros.
+public class MetricSeries {
+    public static final String VERSION = "gorilla-1";
+
+    private final String[] fields;
+    private final int capacity;
+    private final long[] timestamps;
+    private final double[][] values;
+    private int size;
+
+    public MetricSeries(String[] fields, int capacity) {
+        this.fields = fields;
+        this.capacity = capacity;
+        this.timestamps = new long[capacity];
+        this.values = new double[fields.length][capacity];
+    }
+
+    public String[] getFields() { return fields; }
+    public int size() { return size; }
+    public boolean isFull() { return size >= capacity; }
+    public long getStart() { return size > 0 ? timestamps[0] : 0; }
+    public long getEnd() { return size > 0 ? timestamps[size - 1] : 0; }
+
+    public void add(long timestamp, double[] sample) {
+        if (size >= capacity) throw new IllegalStateException("Series full");
+        timestamps[size] = timestamp;
+        for (int i = 0; i < fields.length; i++) values[i][size] = sample[i];
+        size++;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public byte[] encode() {
+        BitWriter out = new BitWriter(16 + size * (2 + fields.length));
+        if (size == 0) return out.toByteArray();
+        out.write(timestamps[0], 64);
+        long previousDelta = 0;
+        for (int i = 1; i < size; i++) {
+            long delta = timestamps[i] - timestamps[i - 1];
+            long dod = delta - previousDelta;
+            previousDelta = delta;
+            if (dod == 0) {
+                out.write(0, 1);
+            } else if (dod >= -64 && dod <= 63) {
+                out.write(0b10, 2);
+                out.write(dod, 7);
+            } else if (dod >= -256 && dod <= 255) {
+                out.write(0b110, 3);
+                out.write(dod, 9);
+            } else if (dod >= -2048 && dod <= 2047) {
+                out.write(0b1110, 4);
+                out.write(dod, 12);
+            } else {
+                out.write(0b1111, 4);
+                out.write(dod, 32);
+            }
+        }
+        for (double[] column : values) encodeColumn(out, column);
+        return out.toByteArray();
+    }
+
+    private void encodeColumn(BitWriter out, double[] column) {
+        long previous = Double.doubleToLongBits(column[0]);
+        out.write(previous, 64);
+        int windowLeading = -1;
+        int windowTrailing = 0;
+        for (int i = 1; i < size; i++) {
+            long bits = Double.doubleToLongBits(column[i]);
+            long xor = bits ^ previous;
+            previous = bits;
+            if (xor == 0) {
+                out.write(0, 1);
+                continue;
+            }
+            // 5 bits of leading zeros, so at most 31
+            int leading = Math.min(31, Long.numberOfLeadingZeros(xor));
+            int trailing = Long.numberOfTrailingZeros(xor);
+            if (windowLeading >= 0 && leading >= windowLeading && trailing >= windowTrailing) {
+                out.write(0b10, 2);
+                out.write(xor >>> windowTrailing, 64 - windowLeading - windowTrailing);
+            } else {
+                int length = 64 - leading - trailing;
+                out.write(0b11, 2);
+                out.write(leading, 5);
+                out.write(length - 1, 6);
+                out.write(xor >>> trailing, length);
+                windowLeading = leading;
+                windowTrailing = trailing;
+            }
+        }
+    }
+
+    private static final class BitWriter {
+        private byte[] buffer;
+        private long bitCount;
+
+        BitWriter(int initialBytes) {
+            buffer = new byte[Math.max(16, initialBytes)];
+        }
+
+        // The low `bits` bits of value
+        void write(long value, int bits) {
+            for (int i = bits - 1; i >= 0; i--) {
+                int index = (int) (bitCount >>> 3);
+                if (index >= buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                if (((value >>> i) & 1) != 0) buffer[index] |= (byte) (0x80 >>> (bitCount & 7));
+                bitCount++;
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, (int) ((bitCount + 7) >>> 3));
+        }
+    }
+}
@@ -1,63 +1,206 @@
 package com.configtool.agent;
 
 import org.bukkit.Bukkit;
-import org.bukkit.World;
-import org.bukkit.scheduler.BukkitRunnable;
 
 import java.io.File;
 import java.lang.management.GarbageCollectorMXBean;
 import java.lang.management.ManagementFactory;
 import java.lang.management.OperatingSystemMXBean;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.configtool.agent.MetricsStore.Rollup.*;
+
+public class MetricsCollector implements Runnable {
+    // METRICS_BATCH keys in order; also the columns of METRICS_SERIES
+    private static final String[] FIELDS = {
+        "tps", "cpuPercent", "ramUsedMb", "ramMaxMb", "diskUsedMb", "diskTotalMb", "playerCount", "maxPlayers",
+        "chunkCount", "entityCount", "uptimeSeconds", "gcCount", "gcTimeMs",
+        "tickCount", "ticksOverBudget", "msptP50", "msptP95", "msptP99", "msptMax"
+    };
+    // How the store combines samples into its coarser tiers; the tick percentiles there are an upper
+    // bound, while METRICS_BATCH and METRICS_SERIES recompute them over the window they cover
+    private static final MetricsStore.Rollup[] ROLLUPS = {
+        AVG, AVG, AVG, LAST, LAST, LAST, AVG, LAST,
+        AVG, AVG, LAST, LAST, LAST,
+        SUM, SUM, AVG, MAX, MAX, MAX
+    };
+    private static final Set<String> DECIMAL = Set.of("tps", "cpuPercent", "msptP50", "msptP95", "msptP99", "msptMax");
 
-public class MetricsCollector extends BukkitRunnable {
     private final ConfigToolAgent plugin;
     private final WebSocketClient wsClient;
+    private final WorldSampler sampler;
+    private final TickMonitor ticks;
+    private final MetricsStore store;
+    private final IncidentRecorder incidents;
+    private final int intervalSeconds;
+    private final int sampleSeconds;
+    private final long flushMillis;
+    private final MetricSeries series;
+    private long lastRun;
+    private ScheduledExecutorService timer;
 
-    public MetricsCollector(ConfigToolAgent plugin, WebSocketClient wsClient) {
+    public MetricsCollector(ConfigToolAgent plugin, WebSocketClient wsClient, WorldSampler sampler, TickMonitor ticks, ModuleConfig config) {
         this.plugin = plugin;
         this.wsClient = wsClient;
+        this.sampler = sampler;
+        this.ticks = ticks;
+        this.store = new MetricsStore(FIELDS, ROLLUPS, config);
+        this.incidents = wsClient != null && config.isIncidentsEnabled()
+            ? new IncidentRecorder(plugin, wsClient, store, ticks, FIELDS, config) : null;
+        this.intervalSeconds = config.getMetricsIntervalSeconds();
+        this.sampleSeconds = Math.max(1, config.getSeriesSampleSeconds());
+        this.flushMillis = config.getSeriesFlushSeconds() * 1000L;
+        this.series = new MetricSeries(FIELDS, Math.max(1, config.getSeriesFlushSeconds() / sampleSeconds) + 1);
+    }
+
+    // A wall-clock timer rather than a Bukkit async task: Bukkit starts those from the tick loop, so
+    // under lag the 1s samples would slow down with the very ticks they are meant to record
+    public void start() {
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ConfigTool-Metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(this, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (timer != null) timer.shutdownNow();
+    }
+
+    // Scheduled every second; samples as often as the subscription and the measured link allow
+    private boolean isDue(long configuredMillis) {
+        long now = System.currentTimeMillis();
+        if (!plugin.getSubscriptions().isDue(Subscriptions.METRICS, configuredMillis, lastRun)) return false;
+        lastRun = now;
+        return true;
     }
 
+    public MetricsStore getStore() { return store; }
+
+    // An exception would end a fixed-rate schedule, so it is logged here instead
     @Override
     public void run() {
-        if (wsClient == null || !wsClient.isOpen()) return;
+        try {
+            collect();
+        } catch (RuntimeException e) {
+            plugin.getLogger().warning("Metrics collection failed: " + e.getMessage());
+        }
+    }
 
-        Map<String, Object> metrics = new HashMap<>();
-        metrics.put("tps", getTps());
-        metrics.put("cpuPercent", getCpuUsage());
+    private void collect() {
+        // Sampled every second whatever is sent, so the store has full history; what is sent combines
+        // the samples since the previous send
+        long now = System.currentTimeMillis();
+        double[] sample = sample();
+        store.record(now, sample);
+        if (wsClient == null) return;
+        if (incidents != null) incidents.check(now, sample);
+        long since = lastRun;
+        if (!wsClient.isSeriesEncoding()) {
+            // Samples collected for a backend that has since been replaced by one without series support
+            series.clear();
+            if (isDue(intervalSeconds * 1000L)) {
+                double[] values = summarize(since, now);
+                if (values != null) sendBatch(values);
+            }
+            return;
+        }
+        if (isDue(sampleSeconds * 1000L)) {
+            double[] values = summarize(since, now);
+            if (values != null) series.add(now, values);
+        }
+        if (series.size() > 0 && (series.isFull() || System.currentTimeMillis() - series.getStart() >= flushMillis)) {
+            sendSeries();
+        }
+    }
+
+    // The samples since the previous send combined, with the tick fields taken over that whole window:
+    // a maximum or average of per-second percentiles is not the window's percentile
+    private double[] summarize(long since, long now) {
+        double[] values = store.summarize(since, now);
+        TickMonitor.Window report = ticks.drainReport();
+        if (values != null) putTicks(values, report);
+        return values;
+    }
+
+    private double[] sample() {
+        double[] v = new double[FIELDS.length];
+        v[0] = getTps();
+        v[1] = getCpuUsage();
 
         Runtime rt = Runtime.getRuntime();
-        metrics.put("ramUsedMb", (rt.totalMemory() - rt.freeMemory()) / (1024 * 1024));
-        metrics.put("ramMaxMb", rt.maxMemory() / (1024 * 1024));
+        v[2] = (rt.totalMemory() - rt.freeMemory()) / (1024 * 1024);
+        v[3] = rt.maxMemory() / (1024 * 1024);
 
         File serverDir = plugin.getDataFolder().getParentFile().getParentFile();
-        metrics.put("diskUsedMb", (serverDir.getTotalSpace() - serverDir.getFreeSpace()) / (1024 * 1024));
-        metrics.put("diskTotalMb", serverDir.getTotalSpace() / (1024 * 1024));
-
-        metrics.put("playerCount", Bukkit.getOnlinePlayers().size());
-        metrics.put("maxPlayers", Bukkit.getMaxPlayers());
+        v[4] = (serverDir.getTotalSpace() - serverDir.getFreeSpace()) / (1024 * 1024);
+        v[5] = serverDir.getTotalSpace() / (1024 * 1024);
 
-        int chunks = 0, entities = 0;
-        for (World w : Bukkit.getWorlds()) {
-            chunks += w.getLoadedChunks().length;
-            entities += w.getEntities().size();
-        }
-        metrics.put("chunkCount", chunks);
-        metrics.put("entityCount", entities);
+        // World state is only read on the main thread; this runs async and takes the latest snapshot
+        WorldSampler.Snapshot world = sampler.getSnapshot();
+        v[6] = world.playerCount;
+        v[7] = Bukkit.getMaxPlayers();
+        v[8] = world.chunkCount;
+        v[9] = world.entityCount;
 
-        metrics.put("uptimeSeconds", ManagementFactory.getRuntimeMXBean().getUptime() / 1000);
+        v[10] = ManagementFactory.getRuntimeMXBean().getUptime() / 1000;
 
         long gcCount = 0, gcTime = 0;
         for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
             gcCount += gc.getCollectionCount();
             gcTime += gc.getCollectionTime();
         }
-        metrics.put("gcCount", gcCount);
-        metrics.put("gcTimeMs", gcTime);
+        v[11] = gcCount;
+        v[12] = gcTime;
+
+        putTicks(v, ticks.drain());
+        return v;
+    }
+
+    private static void putTicks(double[] v, TickMonitor.Window mspt) {
+        v[13] = mspt.ticks;
+        v[14] = mspt.overBudget;
+        v[15] = mspt.p50;
+        v[16] = mspt.p95;
+        v[17] = mspt.p99;
+        v[18] = mspt.max;
+    }
+
+    private void sendBatch(double[] v) {
+        wsClient.sendPush("METRICS_BATCH", out -> {
+            out.beginObject(FIELDS.length);
+            for (int i = 0; i < FIELDS.length; i++) {
+                out.name(FIELDS[i]);
+                if (DECIMAL.contains(FIELDS[i])) out.value(v[i]);
+                else out.value(Math.round(v[i]));
+            }
+            out.endObject();
+        });
+    }
 
-        wsClient.sendPush("METRICS_BATCH", metrics);
+    // Minutes of samples in fewer bytes than one METRICS_BATCH per interval
+    private void sendSeries() {
+        String block = Base64.getEncoder().encodeToString(series.encode());
+        int count = series.size();
+        long start = series.getStart(), end = series.getEnd();
+        series.clear();
+        wsClient.sendPush("METRICS_SERIES", out -> {
+            out.beginObject(6)
+                .name("encoding").value(MetricSeries.VERSION)
+                .name("start").value(start)
+                .name("end").value(end)
+                .name("count").value(count)
+                .name("fields").beginArray(FIELDS.length);
+            for (String field : FIELDS) out.value(field);
+            out.endArray()
+                .name("block").value(block)
+                .endObject();
+        });
     }
 
     private double getTps() {
@@ -0,0 +1,221 @@
+package com.configtool.agent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Metric history kept by the agent: 1s samples plus 10s, 1m and 10m rollups, each tier a fixed ring
+// of primitive arrays sized from its retention, so memory is bounded whatever the uptime. Rollups are
+// built from the 1s samples as they arrive, combining each field as its Rollup says.
+public class MetricsStore {
+    public enum Rollup { AVG, MAX, SUM, LAST }
+
+    private static final long[] RESOLUTIONS = {1000, 10_000, 60_000, 600_000};
+    private static final String[] TIER_NAMES = {"1s", "10s", "1m", "10m"};
+    private static final int[] DEFAULT_RETENTION_MINUTES = {15, 360, 2880, 43200};
+
+    // Combines samples into one value per field
+    private static final class Accumulator {
+        final double[] sum;
+        final double[] max;
+        final double[] last;
+        long start = -1;
+        int count;
+
+        Accumulator(int fields) {
+            sum = new double[fields];
+            max = new double[fields];
+            last = new double[fields];
+        }
+
+        void add(double[] values, int offset) {
+            for (int i = 0; i < sum.length; i++) {
+                double v = values[offset + i];
+                sum[i] += v;
+                max[i] = count == 0 ? v : Math.max(max[i], v);
+                last[i] = v;
+            }
+            count++;
+        }
+
+        double[] result(Rollup[] rollups) {
+            double[] out = new double[sum.length];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = switch (rollups[i]) {
+                    case AVG -> sum[i] / count;
+                    case MAX -> max[i];
+                    case SUM -> sum[i];
+                    case LAST -> last[i];
+                };
+            }
+            return out;
+        }
+
+        void reset(long start) {
+            this.start = start;
+            count = 0;
+            Arrays.fill(sum, 0);
+        }
+    }
+
+    private static final class Tier {
+        final long resolution;
+        final int capacity;
+        final long[] times;
+        // capacity rows of one value per field
+        final double[] values;
+        final Accumulator pending;
+        int next;
+        int size;
+
+        Tier(long resolution, int capacity, int fields) {
+            this.resolution = resolution;
+            this.capacity = capacity;
+            this.times = new long[capacity];
+            this.values = new double[capacity * fields];
+            this.pending = new Accumulator(fields);
+        }
+
+        void append(long time, double[] row) {
+            times[next] = time;
+            System.arraycopy(row, 0, values, next * row.length, row.length);
+            next = (next + 1) % capacity;
+            if (size < capacity) size++;
+        }
+
+        // Index of the i-th oldest row
+        int slot(int i) {
+            return (next - size + i + capacity) % capacity;
+        }
+
+        long oldest() {
+            return size > 0 ? times[slot(0)] : Long.MAX_VALUE;
+        }
+    }
+
+    private final String[] fields;
+    private final Rollup[] rollups;
+    private final Tier[] tiers;
+
+    public MetricsStore(String[] fields, Rollup[] rollups, ModuleConfig config) {
+        this.fields = fields;
+        this.rollups = rollups;
+        this.tiers = new Tier[RESOLUTIONS.length];
+        for (int i = 0; i < tiers.length; i++) {
+            int minutes = config.getInt("dashboard", "store.retention-minutes." + TIER_NAMES[i], DEFAULT_RETENTION_MINUTES[i]);
+            int capacity = (int) Math.max(1, minutes * 60_000L / RESOLUTIONS[i]);
+            tiers[i] = new Tier(RESOLUTIONS[i], capacity, fields.length);
+        }
+    }
+
+    public synchronized void record(long time, double[] sample) {
+        tiers[0].append(time, sample);
+        for (int i = 1; i < tiers.length; i++) {
+            Tier tier = tiers[i];
+            long bucket = time - time % tier.resolution;
+            if (tier.pending.start != bucket) {
+                if (tier.pending.count > 0) tier.append(tier.pending.start, tier.pending.result(rollups));
+                tier.pending.reset(bucket);
+            }
+            tier.pending.add(sample, 0);
+        }
+    }
+
+    // 1s samples in (from, to] combined into one row, or null if there are none
+    public synchronized double[] summarize(long from, long to) {
+        Tier raw = tiers[0];
+        Accumulator acc = new Accumulator(fields.length);
+        for (int i = 0; i < raw.size; i++) {
+            int slot = raw.slot(i);
+            if (raw.times[slot] > from && raw.times[slot] <= to) acc.add(raw.values, slot * fields.length);
+        }
+        return acc.count > 0 ? acc.result(rollups) : null;
+    }
+
+    // Points in [from, to], from the finest tier that still covers from and is no finer than step,
+    // combined further when step is coarser than the tier. compressed returns a MetricSeries block
+    // instead of timestamps and per-field columns.
+    public synchronized Map<String, Object> range(long from, long to, long step, List<String> wanted, boolean compressed) {
+        Tier tier = tiers[tiers.length - 1];
+        for (Tier candidate : tiers) {
+            if (candidate.resolution >= step && candidate.oldest() <= from) {
+                tier = candidate;
+                break;
+            }
+        }
+        if (tier.oldest() > from) {
+            // Nothing reaches back that far; take the finest tier at the requested step that has data
+            for (Tier candidate : tiers) {
+                if (candidate.resolution >= step && candidate.size > 0) {
+                    tier = candidate;
+                    break;
+                }
+            }
+        }
+        long bucketSize = Math.max(step, tier.resolution);
+        List<Long> times = new ArrayList<>();
+        List<double[]> rows = new ArrayList<>();
+        Accumulator acc = new Accumulator(fields.length);
+        for (int i = 0; i < tier.size; i++) {
+            int slot = tier.slot(i);
+            long time = tier.times[slot];
+            if (time < from || time > to) continue;
+            long bucket = time - time % bucketSize;
+            if (acc.count > 0 && acc.start != bucket) {
+                times.add(acc.start);
+                rows.add(acc.result(rollups));
+            }
+            if (acc.count == 0 || acc.start != bucket) acc.reset(bucket);
+            acc.add(tier.values, slot * fields.length);
+        }
+        if (acc.count > 0) {
+            times.add(acc.start);
+            rows.add(acc.result(rollups));
+        }
+
+        List<Integer> selected = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (int f = 0; f < fields.length; f++) {
+            if (wanted != null && !wanted.contains(fields[f])) continue;
+            selected.add(f);
+            names.add(fields[f]);
+        }
+        Map<String, Object> result = new HashMap<>();
+        result.put("resolutionSeconds", bucketSize / 1000);
+        result.put("fields", names);
+        result.put("count", rows.size());
+        if (compressed) {
+            MetricSeries series = new MetricSeries(names.toArray(new String[0]), Math.max(1, rows.size()));
+            double[] picked = new double[selected.size()];
+            for (int r = 0; r < rows.size(); r++) {
+                for (int c = 0; c < picked.length; c++) picked[c] = rows.get(r)[selected.get(c)];
+                series.add(times.get(r), picked);
+            }
+            result.put("encoding", MetricSeries.VERSION);
+            result.put("block", Base64.getEncoder().encodeToString(series.encode()));
+        } else {
+            List<List<Double>> columns = new ArrayList<>();
+            for (int f : selected) {
+                List<Double> column = new ArrayList<>(rows.size());
+                for (double[] row : rows) column.add(row[f]);
+                columns.add(column);
+            }
+            result.put("timestamps", times);
+            result.put("series", columns);
+        }
+        return result;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        for (int i = 0; i < tiers.length; i++) {
+            Tier tier = tiers[i];
+            stats.put(TIER_NAMES[i], Map.of("size", tier.size, "capacity", tier.capacity,
+                "oldest", tier.size > 0 ? tier.oldest() : 0));
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,381 @@
+package com.configtool.agent;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Logger;
+
+public class OutboundQueue {
+    public enum Lane { CONTROL, RESPONSE, TELEMETRY, BULK }
+
+    public static final byte FLAG_SEQUENCED = 0x04;
+
+    public static final class Frame {
+        final Lane lane;
+        final String coalesceKey;
+        final byte[] payload;
+        final boolean binary;
+        final boolean compressible;
+        // Set for request replies, so the write completes the request's latency trace
+        RequestTrace trace;
+        // Cleared for relay traffic, which belongs to sibling connections that do not survive a reconnect
+        boolean sequenced = true;
+
+        public Frame(Lane lane, String coalesceKey, byte[] payload, boolean binary, boolean compressible) {
+            this.lane = lane;
+            this.coalesceKey = coalesceKey;
+            this.payload = payload;
+            this.binary = binary;
+            this.compressible = compressible;
+        }
+    }
+
+    private static final class Sent {
+        final long seq;
+        final Frame frame;
+
+        Sent(long seq, Frame frame) {
+            this.seq = seq;
+            this.frame = frame;
+        }
+    }
+
+    private static final long RESPONSE_WAIT_MS = 10_000;
+    private static final long BULK_WAIT_MS = 30_000;
+    private static final long CONGESTED_POLL_MS = 10;
+
+    private final WebSocketClient client;
+    private final Logger logger;
+    private final Object lock = new Object();
+    private final Map<Lane, ArrayDeque<Frame>> lanes = new EnumMap<>(Lane.class);
+    private final long[] budgets = new long[Lane.values().length];
+    private final long[] queuedBytes = new long[Lane.values().length];
+    private final long[] sent = new long[Lane.values().length];
+    private final long[] dropped = new long[Lane.values().length];
+    private final long[] coalesced = new long[Lane.values().length];
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final ArrayDeque<Sent> unacked = new ArrayDeque<>();
+    private final ArrayDeque<Sent> retransmit = new ArrayDeque<>();
+    private final long unackedBudget;
+    private long unackedBytes;
+    private long lastSeq;
+    private long ackedSeq;
+    private long evicted;
+    private long retransmitted;
+    private boolean congested;
+    private boolean handshaking;
+    private boolean closed;
+    private volatile boolean running;
+    private volatile Thread writer;
+
+    public OutboundQueue(WebSocketClient client, ModuleConfig config, Logger logger) {
+        this.client = client;
+        this.logger = logger;
+        for (Lane lane : Lane.values()) lanes.put(lane, new ArrayDeque<>());
+        budgets[Lane.CONTROL.ordinal()] = config.getConnectionInt("queue.control-kb", 64) * 1024L;
+        budgets[Lane.RESPONSE.ordinal()] = config.getConnectionInt("queue.response-kb", 4096) * 1024L;
+        budgets[Lane.TELEMETRY.ordinal()] = config.getConnectionInt("queue.telemetry-kb", 1024) * 1024L;
+        budgets[Lane.BULK.ordinal()] = config.getConnectionInt("queue.bulk-kb", 2048) * 1024L;
+        highWatermark = config.getConnectionInt("queue.high-watermark-kb", 512) * 1024L;
+        lowWatermark = config.getConnectionInt("queue.low-watermark-kb", 128) * 1024L;
+        unackedBudget = config.getConnectionInt("resume.buffer-kb", 4096) * 1024L;
+    }
+
+    // Until the session is established only CONTROL frames go out, so retransmissions are
+    // always written ahead of anything queued while the connection was down.
+    public void start() {
+        synchronized (lock) {
+            if (running || closed) return;
+            running = true;
+            congested = false;
+            handshaking = true;
+            writer = new Thread(this::drain, "ConfigTool-Outbound");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    // Connection lost: stop writing but keep queued and unacknowledged frames for the next session
+    public void pause() {
+        synchronized (lock) {
+            running = false;
+            clearLane(Lane.CONTROL);
+            lock.notifyAll();
+        }
+    }
+
+    public void stop() {
+        synchronized (lock) {
+            running = false;
+            closed = true;
+            for (Lane lane : Lane.values()) clearLane(lane);
+            unacked.clear();
+            retransmit.clear();
+            unackedBytes = 0;
+            lock.notifyAll();
+        }
+    }
+
+    private void clearLane(Lane lane) {
+        dropped[lane.ordinal()] += lanes.get(lane).size();
+        lanes.get(lane).clear();
+        queuedBytes[lane.ordinal()] = 0;
+    }
+
+    // resumed: the backend still has our session and has received everything up to ackSeq.
+    // Otherwise sequence numbers restart and only telemetry is worth sending again.
+    public void beginSession(boolean resumed, long ackSeq) {
+        synchronized (lock) {
+            if (!handshaking) return;
+            ArrayDeque<Sent> pending = new ArrayDeque<>(unacked);
+            pending.addAll(retransmit);
+            unacked.clear();
+            retransmit.clear();
+            unackedBytes = 0;
+            // Replies and stream chunks answer requests of a session the backend no longer has
+            if (!resumed) {
+                clearLane(Lane.RESPONSE);
+                clearLane(Lane.BULK);
+            }
+            // Kept frames were encoded for the previous session, which may have agreed to a codec or
+            // dictionary this one did not
+            for (Lane lane : Lane.values()) conformLane(lane);
+            if (resumed) {
+                ackedSeq = Math.max(ackedSeq, Math.min(ackSeq, lastSeq));
+                for (Sent sent : pending) {
+                    if (sent.seq <= ackedSeq) continue;
+                    Frame frame = client.conform(sent.frame);
+                    if (frame == null) dropped[sent.frame.lane.ordinal()]++;
+                    else retransmit.addLast(frame == sent.frame ? sent : new Sent(sent.seq, frame));
+                }
+                retransmitted += retransmit.size();
+            } else {
+                lastSeq = 0;
+                ackedSeq = 0;
+                ArrayDeque<Frame> telemetry = lanes.get(Lane.TELEMETRY);
+                for (Iterator<Sent> it = pending.descendingIterator(); it.hasNext(); ) {
+                    Frame frame = it.next().frame;
+                    Frame conformed = frame.lane == Lane.TELEMETRY ? client.conform(frame) : null;
+                    if (conformed != null) {
+                        telemetry.addFirst(conformed);
+                        queuedBytes[Lane.TELEMETRY.ordinal()] += conformed.payload.length;
+                        retransmitted++;
+                    } else {
+                        dropped[frame.lane.ordinal()]++;
+                    }
+                }
+            }
+            handshaking = false;
+            lock.notifyAll();
+        }
+    }
+
+    private void conformLane(Lane lane) {
+        int i = lane.ordinal();
+        ArrayDeque<Frame> queue = lanes.get(lane);
+        queuedBytes[i] = 0;
+        for (int n = queue.size(); n > 0; n--) {
+            Frame frame = client.conform(queue.pollFirst());
+            if (frame == null) {
+                dropped[i]++;
+                continue;
+            }
+            queue.addLast(frame);
+            queuedBytes[i] += frame.payload.length;
+        }
+    }
+
+    public void acknowledge(long seq) {
+        synchronized (lock) {
+            if (seq <= ackedSeq) return;
+            ackedSeq = Math.min(seq, lastSeq);
+            while (!unacked.isEmpty() && unacked.peekFirst().seq <= ackedSeq) {
+                unackedBytes -= unacked.pollFirst().frame.payload.length;
+            }
+        }
+    }
+
+    public long getLastSeq() {
+        synchronized (lock) { return lastSeq; }
+    }
+
+    // CONTROL and TELEMETRY drop their oldest frames when over budget; RESPONSE and BULK block
+    // the producer until the writer frees space and give up after a timeout.
+    public boolean offer(Frame frame) {
+        return offer(frame, true);
+    }
+
+    // As offer, but a full RESPONSE or BULK lane drops the frame instead of blocking: for the socket
+    // thread, which must keep reading ACKs and PONGs for the writer to make progress at all
+    public boolean tryOffer(Frame frame) {
+        return offer(frame, false);
+    }
+
+    private boolean offer(Frame frame, boolean block) {
+        int i = frame.lane.ordinal();
+        ArrayDeque<Frame> queue = lanes.get(frame.lane);
+        synchronized (lock) {
+            if (closed) return false;
+            if (frame.coalesceKey != null && replaceQueued(queue, frame)) {
+                coalesced[i]++;
+                return true;
+            }
+            long deadline = System.currentTimeMillis() + (frame.lane == Lane.BULK ? BULK_WAIT_MS : RESPONSE_WAIT_MS);
+            while (!queue.isEmpty() && queuedBytes[i] + frame.payload.length > budgets[i]) {
+                if (frame.lane == Lane.CONTROL || frame.lane == Lane.TELEMETRY) {
+                    Frame oldest = queue.pollFirst();
+                    queuedBytes[i] -= oldest.payload.length;
+                    dropped[i]++;
+                    continue;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (!block || remaining <= 0 || closed) {
+                    dropped[i]++;
+                    return false;
+                }
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped[i]++;
+                    return false;
+                }
+                if (closed) return false;
+            }
+            queue.addLast(frame);
+            queuedBytes[i] += frame.payload.length;
+            lock.notifyAll();
+            return true;
+        }
+    }
+
+    private boolean replaceQueued(ArrayDeque<Frame> queue, Frame frame) {
+        int i = frame.lane.ordinal();
+        for (Iterator<Frame> it = queue.iterator(); it.hasNext(); ) {
+            Frame queued = it.next();
+            if (frame.coalesceKey.equals(queued.coalesceKey)) {
+                it.remove();
+                queuedBytes[i] -= queued.payload.length;
+                queue.addLast(frame);
+                queuedBytes[i] += frame.payload.length;
+                lock.notifyAll();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drain() {
+        while (running && writer == Thread.currentThread()) {
+            Sent next;
+            synchronized (lock) {
+                next = poll();
+                if (next == null) {
+                    try {
+                        lock.wait(congested ? CONGESTED_POLL_MS : 1000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+                sent[next.frame.lane.ordinal()]++;
+                lock.notifyAll();
+            }
+            try {
+                client.writeFrame(next.frame, next.seq);
+            } catch (Exception e) {
+                logger.warning("Outbound write failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private Sent poll() {
+        long buffered = client.getBufferedBytes();
+        if (congested && buffered <= lowWatermark) congested = false;
+        else if (!congested && buffered >= highWatermark) congested = true;
+        Frame control = lanes.get(Lane.CONTROL).pollFirst();
+        if (control != null) {
+            queuedBytes[Lane.CONTROL.ordinal()] -= control.payload.length;
+            return new Sent(0, control);
+        }
+        if (handshaking) return null;
+        if (!retransmit.isEmpty()) return congested ? null : track(retransmit.pollFirst());
+        for (Lane lane : Lane.values()) {
+            if (congested && lane.ordinal() >= Lane.TELEMETRY.ordinal()) break;
+            Frame frame = lanes.get(lane).pollFirst();
+            if (frame != null) {
+                queuedBytes[lane.ordinal()] -= frame.payload.length;
+                return frame.sequenced ? track(new Sent(++lastSeq, frame)) : new Sent(0, frame);
+            }
+        }
+        return null;
+    }
+
+    // Keeps sent frames until acknowledged; past the budget the oldest can no longer be resent
+    private Sent track(Sent sent) {
+        unacked.addLast(sent);
+        unackedBytes += sent.frame.payload.length;
+        while (unackedBytes > unackedBudget && unacked.size() > 1) {
+            unackedBytes -= unacked.pollFirst().frame.payload.length;
+            evicted++;
+        }
+        return sent;
+    }
+
+    // Replayed backlog only tops up the telemetry lane instead of overflowing it
+    public boolean isTelemetryBacklogged() {
+        synchronized (lock) {
+            int i = Lane.TELEMETRY.ordinal();
+            return congested || queuedBytes[i] > budgets[i] / 2;
+        }
+    }
+
+    public int getQueuedFrames() {
+        synchronized (lock) {
+            int total = 0;
+            for (ArrayDeque<Frame> queue : lanes.values()) total += queue.size();
+            return total;
+        }
+    }
+
+    public int getUnackedFrames() {
+        synchronized (lock) { return unacked.size() + retransmit.size(); }
+    }
+
+    public long getDroppedFrames() {
+        synchronized (lock) {
+            long total = 0;
+            for (long d : dropped) total += d;
+            return total;
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        synchronized (lock) {
+            for (Lane lane : Lane.values()) {
+                int i = lane.ordinal();
+                stats.put(lane.name().toLowerCase(), Map.of(
+                    "queued", lanes.get(lane).size(),
+                    "queuedBytes", queuedBytes[i],
+                    "sent", sent[i],
+                    "dropped", dropped[i],
+                    "coalesced", coalesced[i]
+                ));
+            }
+            stats.put("congested", congested);
+            stats.put("session", Map.of(
+                "lastSeq", lastSeq,
+                "ackedSeq", ackedSeq,
+                "unacked", unacked.size(),
+                "unackedBytes", unackedBytes,
+                "evicted", evicted,
+                "retransmitted", retransmitted
+            ));
+        }
+        return stats;
+    }
+}
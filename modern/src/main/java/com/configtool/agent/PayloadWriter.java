@@ -0,0 +1,278 @@
+package com.configtool.agent;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+
+import java.util.List;
+import java.util.Map;
+
+// Streams a message into a per-thread reused buffer, either as JSON text or in the WireCodec binary
+// form. The only allocation per message is the final byte[] handed to the outbound queue.
+public final class PayloadWriter {
+    private static final ThreadLocal<PayloadWriter> JSON = ThreadLocal.withInitial(() -> new PayloadWriter(false));
+    private static final ThreadLocal<PayloadWriter> BINARY = ThreadLocal.withInitial(() -> new PayloadWriter(true));
+    private static final int INITIAL_CAPACITY = 4096;
+    private static final int RETAIN_CAPACITY = 256 * 1024;
+    private static final int MAX_DEPTH = 64;
+
+    private final boolean binary;
+    private final boolean[] first = new boolean[MAX_DEPTH];
+    private WireCodec.Output out = new WireCodec.Output(INITIAL_CAPACITY);
+    private int depth;
+    private boolean afterName;
+
+    private PayloadWriter(boolean binary) {
+        this.binary = binary;
+    }
+
+    // {"type": type, "data": payload}; binary frames carry the codec flag byte first
+    public static byte[] encodeMessage(String type, Payload payload, boolean binary) {
+        PayloadWriter w = acquire(binary);
+        if (binary) w.out.write(WireCodec.FLAG_CODEC);
+        w.beginObject(2).name("type").value(type).name("data");
+        payload.writeTo(w);
+        w.endObject();
+        return w.finish();
+    }
+
+    // The JSON Gson produced for the agent's message maps, without the reflection or intermediate String
+    public static byte[] encodeJson(Object message) {
+        PayloadWriter w = acquire(false);
+        w.value(message);
+        return w.finish();
+    }
+
+    private static PayloadWriter acquire(boolean binary) {
+        PayloadWriter w = (binary ? BINARY : JSON).get();
+        w.out.reset();
+        w.depth = 0;
+        w.afterName = false;
+        return w;
+    }
+
+    private byte[] finish() {
+        byte[] bytes = out.toByteArray();
+        // Don't pin a buffer grown by one oversized message
+        if (out.capacity() > RETAIN_CAPACITY) out = new WireCodec.Output(INITIAL_CAPACITY);
+        return bytes;
+    }
+
+    public PayloadWriter beginObject(int fields) {
+        if (binary) {
+            out.write(WireCodec.T_MAP);
+            out.writeVarLong(fields);
+        } else {
+            beforeValue();
+            out.write('{');
+            first[++depth] = true;
+        }
+        return this;
+    }
+
+    public PayloadWriter endObject() {
+        if (!binary) {
+            depth--;
+            out.write('}');
+        }
+        return this;
+    }
+
+    public PayloadWriter beginArray(int size) {
+        if (binary) {
+            out.write(WireCodec.T_ARRAY);
+            out.writeVarLong(size);
+        } else {
+            beforeValue();
+            out.write('[');
+            first[++depth] = true;
+        }
+        return this;
+    }
+
+    public PayloadWriter endArray() {
+        if (!binary) {
+            depth--;
+            out.write(']');
+        }
+        return this;
+    }
+
+    public PayloadWriter name(String key) {
+        if (binary) {
+            WireCodec.writeKey(out, key);
+        } else {
+            if (!first[depth]) out.write(',');
+            first[depth] = false;
+            writeJsonString(key);
+            out.write(':');
+            afterName = true;
+        }
+        return this;
+    }
+
+    public PayloadWriter value(String s) {
+        if (s == null) return nullValue();
+        if (binary) {
+            WireCodec.writeString(out, s);
+        } else {
+            beforeValue();
+            writeJsonString(s);
+        }
+        return this;
+    }
+
+    public PayloadWriter value(long v) {
+        if (binary) {
+            out.write(WireCodec.T_INT);
+            out.writeVarLong(WireCodec.zigzag(v));
+        } else {
+            beforeValue();
+            writeDigits(v);
+        }
+        return this;
+    }
+
+    public PayloadWriter value(double d) {
+        if (binary) {
+            WireCodec.writeDouble(out, d);
+            return this;
+        }
+        if (Double.isNaN(d) || Double.isInfinite(d)) return nullValue();
+        beforeValue();
+        if (d == Math.rint(d) && Math.abs(d) < 1e15) {
+            writeDigits((long) d);
+            out.write('.');
+            out.write('0');
+        } else {
+            writeAscii(Double.toString(d));
+        }
+        return this;
+    }
+
+    public PayloadWriter value(boolean b) {
+        if (binary) {
+            out.write(b ? WireCodec.T_TRUE : WireCodec.T_FALSE);
+        } else {
+            beforeValue();
+            writeAscii(b ? "true" : "false");
+        }
+        return this;
+    }
+
+    public PayloadWriter nullValue() {
+        if (binary) {
+            out.write(WireCodec.T_NULL);
+        } else {
+            beforeValue();
+            writeAscii("null");
+        }
+        return this;
+    }
+
+    // Generic fallback for the remaining Map-based messages
+    public PayloadWriter value(Object value) {
+        if (value == null) return nullValue();
+        if (value instanceof String s) return value(s);
+        if (value instanceof Boolean b) return value(b.booleanValue());
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return value(((Number) value).longValue());
+        }
+        if (value instanceof Number n) return value(n.doubleValue());
+        if (value instanceof Payload p) {
+            p.writeTo(this);
+            return this;
+        }
+        if (value instanceof Map<?, ?> map) {
+            // Gson leaves out null map values; the binary form keeps them so the count stays right
+            beginObject(map.size());
+            for (Map.Entry<?, ?> e : map.entrySet()) {
+                if (e.getValue() == null && !binary) continue;
+                name(String.valueOf(e.getKey()));
+                value(e.getValue());
+            }
+            return endObject();
+        }
+        if (value instanceof List<?> list) {
+            beginArray(list.size());
+            for (Object item : list) value(item);
+            return endArray();
+        }
+        if (value instanceof JsonElement json) return json(json);
+        return value(value.toString());
+    }
+
+    private PayloadWriter json(JsonElement json) {
+        if (json.isJsonNull()) return nullValue();
+        if (json.isJsonObject()) {
+            beginObject(json.getAsJsonObject().size());
+            for (Map.Entry<String, JsonElement> e : json.getAsJsonObject().entrySet()) {
+                name(e.getKey());
+                json(e.getValue());
+            }
+            return endObject();
+        }
+        if (json.isJsonArray()) {
+            beginArray(json.getAsJsonArray().size());
+            for (JsonElement item : json.getAsJsonArray()) json(item);
+            return endArray();
+        }
+        JsonPrimitive p = json.getAsJsonPrimitive();
+        if (p.isBoolean()) return value(p.getAsBoolean());
+        if (p.isString()) return value(p.getAsString());
+        Number n = p.getAsNumber();
+        double d = n.doubleValue();
+        return d == Math.rint(d) && Math.abs(d) < 1L << 53 ? value((long) d) : value(d);
+    }
+
+    private void beforeValue() {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth > 0) {
+            if (!first[depth]) out.write(',');
+            first[depth] = false;
+        }
+    }
+
+    private void writeJsonString(String s) {
+        out.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> writeAscii("\\\"");
+                case '\\' -> writeAscii("\\\\");
+                case '\n' -> writeAscii("\\n");
+                case '\r' -> writeAscii("\\r");
+                case '\t' -> writeAscii("\\t");
+                default -> {
+                    if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                        writeAscii("\\u");
+                        for (int shift = 12; shift >= 0; shift -= 4) out.write(Character.forDigit((c >> shift) & 0xF, 16));
+                    } else {
+                        i = out.writeChar(s, i);
+                    }
+                }
+            }
+        }
+        out.write('"');
+    }
+
+    private void writeDigits(long v) {
+        if (v == Long.MIN_VALUE) {
+            writeAscii(Long.toString(v));
+            return;
+        }
+        if (v < 0) {
+            out.write('-');
+            v = -v;
+        }
+        long div = 1;
+        while (v / div >= 10) div *= 10;
+        for (; div > 0; div /= 10) out.write((int) ('0' + (v / div) % 10));
+    }
+
+    private void writeAscii(String s) {
+        for (int i = 0; i < s.length(); i++) out.write(s.charAt(i));
+    }
+}
@@ -0,0 +1,328 @@
+package com.configtool.agent;
+
+import com.google.gson.JsonObject;
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+// Relay mode: sibling agents on the same host point their server-url at ws://127.0.0.1:<port>/agent
+// and their frames are carried over this agent's upstream connection, tagged with a channel id.
+// Frames stay exactly as the sibling sent them, so codec, compression, sequencing and resume remain
+// between the sibling and the backend. Channels take turns by deficit round robin on bytes, so one
+// busy sibling cannot starve the others.
+public class RelayServer extends WebSocketServer {
+    public static final String VERSION = "relay-1";
+    // Relayed binary frames: [FLAG_RELAY][channel varint][kind][frame as sent by the sibling]
+    public static final byte FLAG_RELAY = 0x10;
+    private static final int KIND_TEXT = 0;
+    private static final int KIND_BINARY = 1;
+    private static final int MAX_CHANNEL_ID = 0xFFFF;
+    private static final List<String> FORWARDED_HEADERS = List.of("Authorization", "X-ConfigTool-Codecs",
+        "X-ConfigTool-Compression", "X-ConfigTool-Session", "X-ConfigTool-Last-Seq");
+
+    private static final class Channel {
+        final int id;
+        final WebSocket conn;
+        final ArrayDeque<Item> pending = new ArrayDeque<>();
+        long pendingBytes;
+        long deficit;
+        long forwardedBytes;
+        long deliveredBytes;
+        boolean active;
+        // Closed because the upstream went away, so the backend needs no RELAY_CLOSE
+        boolean discarded;
+        // Closed by the backend's RELAY_CLOSE
+        boolean closedUpstream;
+
+        Channel(int id, WebSocket conn) {
+            this.id = id;
+            this.conn = conn;
+        }
+    }
+
+    // A sibling frame, or a RELAY_OPEN/RELAY_CLOSE control message kept in order with the frames
+    private static final class Item {
+        final Channel channel;
+        final byte[] frame;
+        final boolean binary;
+        final Map<String, Object> control;
+
+        Item(Channel channel, byte[] frame, boolean binary, Map<String, Object> control) {
+            this.channel = channel;
+            this.frame = frame;
+            this.binary = binary;
+            this.control = control;
+        }
+
+        int size() { return frame != null ? frame.length : 64; }
+    }
+
+    private final ConfigToolAgent plugin;
+    private final Logger logger;
+    private final int maxChannels;
+    private final long quantum;
+    private final long channelBufferBytes;
+    private final Map<Integer, Channel> channels = new ConcurrentHashMap<>();
+    private final ArrayDeque<Channel> active = new ArrayDeque<>();
+    private final Object lock = new Object();
+    private int nextChannelId = 1;
+    private volatile boolean upstreamReady;
+    private volatile boolean running;
+    private Thread pump;
+
+    public RelayServer(ConfigToolAgent plugin, ModuleConfig config, Logger logger) {
+        super(new InetSocketAddress(config.getConnectionString("relay.bind", "127.0.0.1"), config.getConnectionInt("relay.port", 8765)));
+        this.plugin = plugin;
+        this.logger = logger;
+        this.maxChannels = config.getConnectionInt("relay.max-channels", 16);
+        this.quantum = Math.max(1, config.getConnectionInt("relay.quantum-kb", 16)) * 1024L;
+        this.channelBufferBytes = config.getConnectionInt("relay.channel-buffer-kb", 1024) * 1024L;
+        setReuseAddr(true);
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        pump = new Thread(this::pump, "ConfigTool-Relay");
+        pump.setDaemon(true);
+        pump.start();
+        super.start();
+    }
+
+    public void shutdown() {
+        running = false;
+        synchronized (lock) { lock.notifyAll(); }
+        try {
+            stop(1000, "Relay shutting down");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void onStart() {
+        logger.info("Relay listening on " + getAddress());
+    }
+
+    // The backend confirmed relay support in WELCOME; until then siblings are turned away
+    public void upstreamReady() {
+        upstreamReady = true;
+    }
+
+    // Siblings reconnect through their own backoff and resume their sessions once the upstream is back
+    public void upstreamLost() {
+        upstreamReady = false;
+        List<Channel> open;
+        synchronized (lock) {
+            open = new ArrayList<>(channels.values());
+            for (Channel channel : open) {
+                channel.discarded = true;
+                channel.pending.clear();
+                channel.pendingBytes = 0;
+                channel.active = false;
+            }
+            active.clear();
+        }
+        for (Channel channel : open) channel.conn.close(1012, "Upstream reconnecting");
+    }
+
+    @Override
+    public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        if (!upstreamReady) {
+            conn.close(1013, "Upstream not connected");
+            return;
+        }
+        Channel channel;
+        synchronized (lock) {
+            if (channels.size() >= maxChannels) {
+                conn.close(1013, "Relay full");
+                return;
+            }
+            while (channels.containsKey(nextChannelId)) nextChannelId = nextChannelId % MAX_CHANNEL_ID + 1;
+            channel = new Channel(nextChannelId, conn);
+            nextChannelId = nextChannelId % MAX_CHANNEL_ID + 1;
+            channels.put(channel.id, channel);
+        }
+        conn.setAttachment(channel);
+        Map<String, Object> headers = new HashMap<>();
+        for (String header : FORWARDED_HEADERS) {
+            if (handshake.hasFieldValue(header)) headers.put(header, handshake.getFieldValue(header));
+        }
+        String remote = conn.getRemoteSocketAddress() != null ? conn.getRemoteSocketAddress().toString() : "?";
+        logger.info("Relay channel " + channel.id + " opened for " + remote);
+        queue(new Item(channel, null, false, Map.of("type", "RELAY_OPEN",
+            "data", Map.of("channel", channel.id, "path", handshake.getResourceDescriptor(), "headers", headers))));
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, String message) {
+        Channel channel = conn.getAttachment();
+        if (channel != null) queue(new Item(channel, message.getBytes(StandardCharsets.UTF_8), false, null));
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, ByteBuffer message) {
+        Channel channel = conn.getAttachment();
+        if (channel == null) return;
+        byte[] frame = new byte[message.remaining()];
+        message.get(frame);
+        queue(new Item(channel, frame, true, null));
+    }
+
+    @Override
+    public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        Channel channel = conn.getAttachment();
+        if (channel == null) return;
+        channels.remove(channel.id);
+        logger.info("Relay channel " + channel.id + " closed (code=" + code + ")");
+        if (channel.discarded || channel.closedUpstream) return;
+        // Behind the channel's remaining frames, so the backend sees everything before the close
+        queue(new Item(channel, null, false, Map.of("type", "RELAY_CLOSE",
+            "data", Map.of("channel", channel.id, "code", code, "reason", reason != null ? reason : ""))));
+    }
+
+    @Override
+    public void onError(WebSocket conn, Exception e) {
+        logger.warning("Relay error" + (conn != null ? " on " + conn.getRemoteSocketAddress() : "") + ": " + e.getMessage());
+    }
+
+    private void queue(Item item) {
+        Channel channel = item.channel;
+        boolean overflow = false;
+        synchronized (lock) {
+            if (channel.discarded) return;
+            if (item.frame != null && channel.pendingBytes + item.size() > channelBufferBytes) {
+                overflow = true;
+            } else {
+                channel.pending.addLast(item);
+                channel.pendingBytes += item.size();
+                if (!channel.active) {
+                    channel.active = true;
+                    channel.deficit = quantum;
+                    active.addLast(channel);
+                }
+                lock.notifyAll();
+            }
+        }
+        // The sibling resends whatever the backend has not acknowledged when it reconnects
+        if (overflow) channel.conn.close(1013, "Relay backlog full");
+    }
+
+    // Deficit round robin: each turn a channel may send up to its quantum of bytes
+    private Item next() {
+        while (!active.isEmpty()) {
+            Channel channel = active.peekFirst();
+            Item item = channel.pending.peekFirst();
+            if (item == null) {
+                active.pollFirst();
+                channel.active = false;
+                continue;
+            }
+            if (item.size() <= channel.deficit) {
+                channel.pending.pollFirst();
+                channel.pendingBytes -= item.size();
+                channel.deficit -= item.size();
+                return item;
+            }
+            active.pollFirst();
+            channel.deficit += quantum;
+            active.addLast(channel);
+        }
+        return null;
+    }
+
+    // Offers block while the upstream RESPONSE lane is full, which is what throttles the siblings
+    private void pump() {
+        while (running) {
+            Item item;
+            synchronized (lock) {
+                item = next();
+                if (item == null) {
+                    try {
+                        lock.wait(1000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            WebSocketClient upstream = plugin.getWsClient();
+            boolean sent = upstream != null && (item.control != null
+                ? upstream.sendRelayControl(item.control)
+                : upstream.sendRelayFrame(encode(item), !item.binary || isCompressible(item.frame)));
+            if (sent) {
+                item.channel.forwardedBytes += item.size();
+            } else if (item.control == null || !"RELAY_CLOSE".equals(item.control.get("type"))) {
+                item.channel.conn.close(1013, "Upstream unavailable");
+            }
+        }
+    }
+
+    private static byte[] encode(Item item) {
+        WireCodec.Output out = new WireCodec.Output(item.frame.length + 8);
+        out.write(FLAG_RELAY);
+        out.writeVarLong(item.channel.id);
+        out.write(item.binary ? KIND_BINARY : KIND_TEXT);
+        out.write(item.frame, 0, item.frame.length);
+        return out.toByteArray();
+    }
+
+    // Dictionary-compressed frames and stream chunks gain nothing from permessage-deflate
+    private static boolean isCompressible(byte[] frame) {
+        return frame.length == 0 || (frame[0] & (FrameCompressor.FLAG_DICT_DEFLATE | FileStreamer.FLAG_STREAM_CHUNK)) == 0;
+    }
+
+    // A relayed frame from the backend, positioned after the flags byte and sequence number
+    public void deliver(ByteBuffer frame) {
+        Channel channel = channels.get((int) WireCodec.readVarLong(frame));
+        int kind = frame.get();
+        if (channel == null || !channel.conn.isOpen()) return;
+        channel.deliveredBytes += frame.remaining();
+        if (kind == KIND_TEXT) {
+            channel.conn.send(StandardCharsets.UTF_8.decode(frame).toString());
+        } else {
+            channel.conn.send(frame);
+        }
+    }
+
+    // RELAY_CLOSE from the backend, e.g. after rejecting the sibling's token
+    public void closeChannel(JsonObject data) {
+        Channel channel = channels.get(data.get("channel").getAsInt());
+        if (channel == null) return;
+        channel.closedUpstream = true;
+        int code = data.has("code") ? data.get("code").getAsInt() : 1000;
+        channel.conn.close(code, data.has("reason") ? data.get("reason").getAsString() : "");
+    }
+
+    public int getChannelCount() { return channels.size(); }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        List<Map<String, Object>> list = new ArrayList<>();
+        synchronized (lock) {
+            for (Channel channel : channels.values()) {
+                list.add(Map.of(
+                    "channel", channel.id,
+                    "remote", String.valueOf(channel.conn.getRemoteSocketAddress()),
+                    "pendingBytes", channel.pendingBytes,
+                    "forwardedBytes", channel.forwardedBytes,
+                    "deliveredBytes", channel.deliveredBytes
+                ));
+            }
+        }
+        stats.put("upstreamReady", upstreamReady);
+        stats.put("channels", list);
+        return stats;
+    }
+}
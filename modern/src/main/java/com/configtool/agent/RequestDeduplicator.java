@@ -0,0 +1,70 @@
+package com.configtool.agent;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Remembers mutating requests by requestId so a backend retry neither repeats the work while the
+// original is still running nor after it finished; the stored reply is sent again instead.
+public class RequestDeduplicator {
+    public static final class Entry {
+        final long createdAt;
+        volatile Map<String, Object> reply;
+
+        Entry(long createdAt) {
+            this.createdAt = createdAt;
+        }
+
+        public Map<String, Object> getReply() { return reply; }
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private final long ttlMillis;
+    private final int maxEntries;
+    private long replayed;
+    private long joined;
+
+    public RequestDeduplicator(ModuleConfig config) {
+        this.ttlMillis = config.getConnectionInt("requests.dedup-ttl-seconds", 600) * 1000L;
+        this.maxEntries = Math.max(16, config.getConnectionInt("requests.dedup-max-entries", 1024));
+    }
+
+    // null means the request is new and should run; otherwise the existing entry, whose reply is
+    // still null while the original is in flight
+    public synchronized Entry begin(String requestId) {
+        long now = System.currentTimeMillis();
+        purge(now);
+        Entry existing = entries.get(requestId);
+        if (existing != null) {
+            if (existing.reply != null) replayed++;
+            else joined++;
+            return existing;
+        }
+        entries.put(requestId, new Entry(now));
+        return null;
+    }
+
+    public synchronized void complete(String requestId, Map<String, Object> reply) {
+        Entry entry = entries.get(requestId);
+        if (entry != null) entry.reply = reply;
+    }
+
+    // Cancelled or rejected before doing anything, so a retry has to run it for real
+    public synchronized void abandon(String requestId) {
+        entries.remove(requestId);
+    }
+
+    private void purge(long now) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            boolean expired = now - entry.createdAt > ttlMillis;
+            if (!expired && entries.size() < maxEntries) break;
+            if (entry.reply != null) it.remove();
+        }
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        return Map.of("entries", entries.size(), "replayed", replayed, "joined", joined);
+    }
+}
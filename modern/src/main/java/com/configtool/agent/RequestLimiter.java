@@ -0,0 +1,106 @@
+package com.configtool.agent;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Token buckets in front of the request executor. Every request draws from the bucket of its class
+// of work (main thread or async) and, if one is configured, from its own type's bucket. Requests
+// over budget are refused with a retry-after instead of waiting in the scheduler.
+public class RequestLimiter {
+    private static final class Bucket {
+        final double ratePerNano;
+        final double burst;
+        double tokens;
+        long refilled = System.nanoTime();
+        long admitted;
+        long rejected;
+
+        Bucket(int perSecond, int burst) {
+            this.ratePerNano = perSecond / 1e9;
+            this.burst = Math.max(1, burst);
+            this.tokens = this.burst;
+        }
+
+        void refill(long now) {
+            tokens = Math.min(burst, tokens + (now - refilled) * ratePerNano);
+            refilled = now;
+        }
+
+        long waitNanos() {
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / ratePerNano);
+        }
+    }
+
+    // Marks types without a bucket of their own, so the config is only read once per type
+    private static final Bucket UNLIMITED = new Bucket(0, 0);
+
+    private final ModuleConfig config;
+    private final boolean enabled;
+    private final Bucket mainThread;
+    private final Bucket async;
+    private final Map<String, Bucket> types = new HashMap<>();
+
+    public RequestLimiter(ModuleConfig config) {
+        this.config = config;
+        this.enabled = config.getConnectionBoolean("rate-limit.enabled", true);
+        this.mainThread = create("rate-limit.main-thread", 20, 40);
+        this.async = create("rate-limit.async", 100, 200);
+    }
+
+    // per-second <= 0 disables the bucket
+    private Bucket create(String path, int perSecond, int burst) {
+        int rate = config.getConnectionInt(path + ".per-second", perSecond);
+        if (rate <= 0) return UNLIMITED;
+        return new Bucket(rate, config.getConnectionInt(path + ".burst", Math.max(burst, rate)));
+    }
+
+    // 0 when admitted, otherwise milliseconds until both buckets would have a token again
+    public synchronized long tryAcquire(String type, boolean onMainThread) {
+        if (!enabled) return 0;
+        Bucket shared = onMainThread ? mainThread : async;
+        Bucket own = types.computeIfAbsent(type, t -> create("rate-limit.types." + t, 0, 0));
+        long now = System.nanoTime();
+        long wait = 0;
+        for (Bucket bucket : new Bucket[] {shared, own}) {
+            if (bucket == UNLIMITED) continue;
+            bucket.refill(now);
+            wait = Math.max(wait, bucket.waitNanos());
+        }
+        if (wait > 0) {
+            if (shared != UNLIMITED) shared.rejected++;
+            if (own != UNLIMITED) own.rejected++;
+            return Math.max(1, (wait + 999_999) / 1_000_000);
+        }
+        for (Bucket bucket : new Bucket[] {shared, own}) {
+            if (bucket == UNLIMITED) continue;
+            bucket.tokens--;
+            bucket.admitted++;
+        }
+        return 0;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        Map<String, Object> perType = new HashMap<>();
+        long now = System.nanoTime();
+        stats.put("enabled", enabled);
+        if (mainThread != UNLIMITED) stats.put("mainThread", describe(mainThread, now));
+        if (async != UNLIMITED) stats.put("async", describe(async, now));
+        types.forEach((type, bucket) -> {
+            if (bucket != UNLIMITED) perType.put(type, describe(bucket, now));
+        });
+        stats.put("types", perType);
+        return stats;
+    }
+
+    private static Map<String, Object> describe(Bucket bucket, long now) {
+        bucket.refill(now);
+        return Map.of(
+            "perSecond", Math.round(bucket.ratePerNano * 1e9),
+            "burst", (long) bucket.burst,
+            "tokens", Math.floor(bucket.tokens * 10) / 10.0,
+            "admitted", bucket.admitted,
+            "rejected", bucket.rejected
+        );
+    }
+}
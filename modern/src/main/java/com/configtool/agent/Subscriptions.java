@@ -0,0 +1,127 @@
+package com.configtool.agent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Which telemetry streams the backend is watching, from SUBSCRIBE/UNSUBSCRIBE. A watched stream runs
+// at the resolution the subscriber asked for; an unwatched one drops to a slow baseline kept for
+// history, or pauses when its baseline is 0. Backends that never subscribe keep the configured rates.
+public class Subscriptions {
+    public static final String METRICS = "metrics";
+    public static final String CONSOLE = "console";
+    public static final String PLAYERS = "players";
+    public static final String ECONOMY = "economy";
+    public static final String PERFORMANCE = "performance";
+
+    private static final Set<String> STREAMS = Set.of(METRICS, CONSOLE, PLAYERS, ECONOMY, PERFORMANCE);
+    private static final Map<String, Integer> BASELINE_SECONDS = Map.of(METRICS, 60, CONSOLE, 60, PLAYERS, 120, ECONOMY, 1800, PERFORMANCE, 600);
+
+    private static final class Subscription {
+        final long intervalMillis;
+        final long since;
+        final long expiresAt;
+
+        Subscription(long intervalMillis, long since, long expiresAt) {
+            this.intervalMillis = intervalMillis;
+            this.since = since;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final ConfigToolAgent plugin;
+    private final Map<String, Subscription> active = new ConcurrentHashMap<>();
+    // Set by the first SUBSCRIBE or UNSUBSCRIBE; until then every stream runs at its configured rate
+    private volatile boolean demandDriven;
+
+    public Subscriptions(ConfigToolAgent plugin) {
+        this.plugin = plugin;
+    }
+
+    // intervalSeconds <= 0 asks for the stream's configured rate
+    public void subscribe(String stream, int intervalSeconds) {
+        checkStream(stream);
+        ModuleConfig config = plugin.getModuleConfig();
+        long now = System.currentTimeMillis();
+        long interval = intervalSeconds > 0
+            ? Math.max(config.getConnectionInt("subscriptions.min-interval-seconds", 1), intervalSeconds) * 1000L : 0;
+        Subscription previous = active.get(stream);
+        // A renewal keeps its start, so modules only hurry for a stream that was not watched yet
+        long since = previous != null && previous.expiresAt > now ? previous.since : now;
+        active.put(stream, new Subscription(interval, since, now + config.getConnectionInt("subscriptions.lease-seconds", 300) * 1000L));
+        demandDriven = true;
+    }
+
+    public void unsubscribe(String stream) {
+        checkStream(stream);
+        active.remove(stream);
+        demandDriven = true;
+    }
+
+    public void unsubscribeAll() {
+        active.clear();
+        demandDriven = true;
+    }
+
+    // Connection lost: nobody is watching until the backend subscribes again
+    public void clear() {
+        active.clear();
+    }
+
+    private static void checkStream(String stream) {
+        if (!STREAMS.contains(stream)) throw new IllegalArgumentException("Unknown stream: " + stream);
+    }
+
+    private boolean isEnabled() {
+        return demandDriven && plugin.getModuleConfig().getConnectionBoolean("subscriptions.enabled", true);
+    }
+
+    private Subscription current(String stream) {
+        Subscription subscription = active.get(stream);
+        return subscription != null && subscription.expiresAt > System.currentTimeMillis() ? subscription : null;
+    }
+
+    public boolean isWatched(String stream) {
+        return !isEnabled() || current(stream) != null;
+    }
+
+    // The interval a module should run at right now, or -1 while the stream is paused
+    public long intervalMillis(String stream, long configuredMillis) {
+        if (!isEnabled()) return configuredMillis;
+        Subscription subscription = current(stream);
+        if (subscription != null) return subscription.intervalMillis > 0 ? subscription.intervalMillis : configuredMillis;
+        long baseline = plugin.getModuleConfig().getConnectionInt("subscriptions.baseline-seconds." + stream, BASELINE_SECONDS.get(stream)) * 1000L;
+        return baseline > 0 ? Math.max(configuredMillis, baseline) : -1;
+    }
+
+    public boolean isPaused(String stream) {
+        return intervalMillis(stream, 0) < 0;
+    }
+
+    // Interval scaled by the link, except right after a subscription starts, which runs immediately
+    public boolean isDue(String stream, long configuredMillis, long lastRun) {
+        long interval = intervalMillis(stream, configuredMillis);
+        if (interval < 0) return false;
+        Subscription subscription = isEnabled() ? current(stream) : null;
+        if (subscription != null && subscription.since > lastRun) return true;
+        LinkMonitor link = plugin.getLinkMonitor();
+        if (link != null) interval = link.scaleInterval(interval);
+        return System.currentTimeMillis() - lastRun >= interval;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        for (String stream : STREAMS) {
+            Subscription subscription = isEnabled() ? current(stream) : null;
+            Map<String, Object> entry = new HashMap<>();
+            entry.put("watched", isWatched(stream));
+            if (subscription != null) {
+                entry.put("intervalSeconds", subscription.intervalMillis / 1000);
+                entry.put("leaseSeconds", Math.max(0, (subscription.expiresAt - System.currentTimeMillis()) / 1000));
+            }
+            stats.put(stream, entry);
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,289 @@
+package com.configtool.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+// Append-only journal of telemetry pushes made while the backend is unreachable. Records are
+// [int length][long timestamp][WireCodec body] appended to fixed-size memory-mapped segment files;
+// the replay position lives in a small cursor file so a restart picks up where it left off.
+public class TelemetrySpool {
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int RECORD_HEADER = 12;
+
+    private final File dir;
+    private final Logger logger;
+    private final long segmentSize;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final int replayPerSecond;
+    private final TreeMap<Long, File> segments = new TreeMap<>();
+    private final Object lock = new Object();
+
+    private long activeId = -1;
+    private FileChannel activeChannel;
+    private MappedByteBuffer activeBuffer;
+    private long cursorSegment;
+    private long cursorOffset;
+    private long dropped;
+    private volatile Thread replayThread;
+
+    public TelemetrySpool(File dir, ModuleConfig config, Logger logger) {
+        this.dir = dir;
+        this.logger = logger;
+        this.segmentSize = config.getConnectionInt("spool.segment-size-mb", 4) * 1024L * 1024L;
+        this.maxBytes = config.getConnectionInt("spool.max-size-mb", 64) * 1024L * 1024L;
+        this.maxAgeMillis = config.getConnectionInt("spool.max-age-hours", 24) * 3_600_000L;
+        this.replayPerSecond = Math.max(1, config.getConnectionInt("spool.replay-per-second", 50));
+    }
+
+    public void open() throws IOException {
+        synchronized (lock) {
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+            File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+            if (files != null) {
+                for (File f : files) {
+                    try {
+                        segments.put(Long.parseLong(f.getName().substring(0, f.getName().length() - SEGMENT_SUFFIX.length())), f);
+                    } catch (NumberFormatException ignored) {}
+                }
+            }
+            readCursor();
+            expireOldSegments();
+            if (segments.isEmpty()) {
+                openSegment(0);
+            } else {
+                openSegment(segments.lastKey());
+            }
+            long pending = getPendingBytes();
+            if (pending > 0) logger.info("Telemetry spool has " + (pending / 1024) + " KB waiting to be replayed");
+        }
+    }
+
+    public void close() {
+        Thread t = replayThread;
+        if (t != null) t.interrupt();
+        synchronized (lock) {
+            writeCursor();
+            closeActive();
+        }
+    }
+
+    public boolean append(byte[] body) {
+        int size = RECORD_HEADER + body.length;
+        if (size > segmentSize) return false;
+        synchronized (lock) {
+            if (activeBuffer == null) return false;
+            try {
+                if (activeBuffer.remaining() < size + 4) rollSegment();
+                int start = activeBuffer.position();
+                // Length goes in last so a torn write reads back as the end of the segment
+                activeBuffer.position(start + 4);
+                activeBuffer.putLong(System.currentTimeMillis());
+                activeBuffer.put(body);
+                activeBuffer.putInt(start, body.length);
+                return true;
+            } catch (IOException e) {
+                logger.warning("Telemetry spool write failed: " + e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        long next = activeId + 1;
+        closeActive();
+        while (!segments.isEmpty() && (segments.size() + 1) * segmentSize > maxBytes) {
+            dropSegment(segments.firstKey());
+        }
+        openSegment(next);
+    }
+
+    private void openSegment(long id) throws IOException {
+        File file = new File(dir, String.format("%020d", id) + SEGMENT_SUFFIX);
+        segments.put(id, file);
+        activeId = id;
+        activeChannel = new RandomAccessFile(file, "rw").getChannel();
+        activeBuffer = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        int pos = 0;
+        while (pos + RECORD_HEADER <= segmentSize) {
+            int len = activeBuffer.getInt(pos);
+            if (len <= 0 || pos + RECORD_HEADER + len > segmentSize) break;
+            pos += RECORD_HEADER + len;
+        }
+        activeBuffer.position(pos);
+    }
+
+    private void closeActive() {
+        if (activeBuffer != null) activeBuffer.force();
+        activeBuffer = null;
+        if (activeChannel != null) {
+            try { activeChannel.close(); } catch (IOException ignored) {}
+            activeChannel = null;
+        }
+    }
+
+    private void dropSegment(long id) {
+        File f = segments.remove(id);
+        if (f != null && !f.delete()) f.deleteOnExit();
+        if (id >= cursorSegment) dropped++;
+    }
+
+    private void expireOldSegments() {
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        for (Long id : new ArrayList<>(segments.keySet())) {
+            if (id.equals(segments.lastKey())) break;
+            if (segments.get(id).lastModified() < cutoff) dropSegment(id);
+        }
+    }
+
+    public void startReplay(WebSocketClient client) {
+        synchronized (lock) {
+            if (replayThread != null && replayThread.isAlive()) return;
+            if (getPendingBytes() == 0) return;
+            replayThread = new Thread(() -> replay(client), "ConfigTool-SpoolReplay");
+            replayThread.setDaemon(true);
+            replayThread.start();
+        }
+    }
+
+    private void replay(WebSocketClient client) {
+        long replayed = 0;
+        long delayNanos = 1_000_000_000L / replayPerSecond;
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        try {
+            while (client.isOpen() && !Thread.currentThread().isInterrupted()) {
+                Record record = readNext();
+                if (record == null) break;
+                if (record.timestamp >= cutoff) {
+                    while (client.isOpen() && client.getOutboundQueue().isTelemetryBacklogged()) Thread.sleep(50);
+                    if (!client.replaySpooled(record.body, record.timestamp)) break;
+                    if (++replayed % 200 == 0) {
+                        synchronized (lock) { writeCursor(); }
+                    }
+                    Thread.sleep(delayNanos / 1_000_000L, (int) (delayNanos % 1_000_000L));
+                }
+                commit(record);
+            }
+        } catch (InterruptedException ignored) {
+        } catch (IOException e) {
+            logger.warning("Telemetry spool replay failed: " + e.getMessage());
+        } finally {
+            synchronized (lock) { writeCursor(); }
+            if (replayed > 0) logger.info("Replayed " + replayed + " spooled telemetry messages");
+        }
+    }
+
+    private static final class Record {
+        final long segment;
+        final long nextOffset;
+        final long timestamp;
+        final byte[] body;
+
+        Record(long segment, long nextOffset, long timestamp, byte[] body) {
+            this.segment = segment;
+            this.nextOffset = nextOffset;
+            this.timestamp = timestamp;
+            this.body = body;
+        }
+    }
+
+    private Record readNext() throws IOException {
+        synchronized (lock) {
+            while (true) {
+                Long current = segments.ceilingKey(cursorSegment);
+                if (current == null) return null;
+                if (current != cursorSegment) {
+                    cursorSegment = current;
+                    cursorOffset = 0;
+                }
+                Record record = readAt(segments.get(cursorSegment), cursorSegment, cursorOffset);
+                if (record != null) return record;
+                Long next = segments.higherKey(cursorSegment);
+                if (next == null) return null;
+                // Fully replayed a sealed segment
+                File done = segments.remove(cursorSegment);
+                if (done != null && !done.delete()) done.deleteOnExit();
+                cursorSegment = next;
+                cursorOffset = 0;
+            }
+        }
+    }
+
+    private Record readAt(File file, long segment, long offset) throws IOException {
+        if (offset + RECORD_HEADER > segmentSize) return null;
+        try (FileChannel ch = FileChannel.open(file.toPath())) {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+            if (ch.read(header, offset) < RECORD_HEADER) return null;
+            header.flip();
+            int len = header.getInt();
+            long ts = header.getLong();
+            if (len <= 0 || offset + RECORD_HEADER + len > segmentSize) return null;
+            ByteBuffer body = ByteBuffer.allocate(len);
+            ch.read(body, offset + RECORD_HEADER);
+            return new Record(segment, offset + RECORD_HEADER + len, ts, body.array());
+        }
+    }
+
+    private void commit(Record record) {
+        synchronized (lock) {
+            if (record.segment == cursorSegment) cursorOffset = record.nextOffset;
+        }
+    }
+
+    public long getPendingBytes() {
+        synchronized (lock) {
+            long pending = 0;
+            for (Map.Entry<Long, File> e : segments.tailMap(cursorSegment, true).entrySet()) {
+                long used = e.getKey() == activeId && activeBuffer != null ? activeBuffer.position() : segmentSize;
+                pending += e.getKey() == cursorSegment ? Math.max(0, used - cursorOffset) : used;
+            }
+            return pending;
+        }
+    }
+
+    public boolean isReplaying() {
+        Thread t = replayThread;
+        return t != null && t.isAlive();
+    }
+
+    public long getDroppedSegments() {
+        synchronized (lock) { return dropped; }
+    }
+
+    private void readCursor() {
+        File f = new File(dir, "cursor");
+        if (!f.isFile()) return;
+        try {
+            List<String> lines = Files.readAllLines(f.toPath(), StandardCharsets.UTF_8);
+            if (lines.isEmpty()) return;
+            String[] parts = lines.get(0).trim().split(" ");
+            cursorSegment = Long.parseLong(parts[0]);
+            cursorOffset = Long.parseLong(parts[1]);
+        } catch (Exception e) {
+            logger.warning("Ignoring unreadable spool cursor: " + e.getMessage());
+        }
+    }
+
+    private void writeCursor() {
+        try {
+            File tmp = new File(dir, "cursor.tmp");
+            Files.write(tmp.toPath(), (cursorSegment + " " + cursorOffset + "\n").getBytes(StandardCharsets.UTF_8));
+            File f = new File(dir, "cursor");
+            if (f.exists()) f.delete();
+            if (!tmp.renameTo(f)) logger.warning("Failed to persist spool cursor");
+        } catch (IOException e) {
+            logger.warning("Failed to persist spool cursor: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.configtool.agent;
+
+import com.destroystokyo.paper.event.server.ServerTickEndEvent;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Duration of every server tick, from Paper's tick events. The averaged TPS hides single long ticks;
+// the percentiles of each reporting window show them. Recording runs on the main thread every tick,
+// so it only touches the lock-free histogram and, for incident captures, the tick history ring.
+public class TickMonitor implements Listener {
+    // One reporting window, in milliseconds
+    public static final class Window {
+        public final long ticks;
+        public final long overBudget;
+        public final double p50;
+        public final double p95;
+        public final double p99;
+        public final double max;
+
+        Window(LogHistogram histogram, long overBudget) {
+            this.ticks = histogram.getCount();
+            this.overBudget = overBudget;
+            this.p50 = millis(histogram.percentile(0.50));
+            this.p95 = millis(histogram.percentile(0.95));
+            this.p99 = millis(histogram.percentile(0.99));
+            this.max = millis(histogram.getMax());
+        }
+    }
+
+    private final ConfigToolAgent plugin;
+    private final long budgetMicros;
+    private volatile LogHistogram window = new LogHistogram();
+    private final AtomicLong overBudget = new AtomicLong();
+    // Every drained window since the last report; collector thread only
+    private final LogHistogram sinceReport = new LogHistogram();
+    private long overBudgetSinceReport;
+    // Recent ticks as end time and duration for incident captures, oldest overwritten first
+    private final long[] historyTimes;
+    private final int[] historyMicros;
+    private int historyNext;
+    private int historySize;
+
+    public TickMonitor(ConfigToolAgent plugin, int budgetMillis, int historyTicks) {
+        this.plugin = plugin;
+        this.budgetMicros = budgetMillis * 1000L;
+        this.historyTimes = new long[historyTicks];
+        this.historyMicros = new int[historyTicks];
+    }
+
+    public void start() {
+        plugin.getServer().getPluginManager().registerEvents(this, plugin);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onTickEnd(ServerTickEndEvent event) {
+        record((long) (event.getTickDuration() * 1000));
+    }
+
+    private void record(long micros) {
+        window.record(micros);
+        if (micros > budgetMicros) overBudget.incrementAndGet();
+        if (historyTimes.length > 0) remember(micros);
+    }
+
+    private synchronized void remember(long micros) {
+        historyTimes[historyNext] = System.currentTimeMillis();
+        historyMicros[historyNext] = (int) Math.min(Integer.MAX_VALUE, micros);
+        historyNext = (historyNext + 1) % historyTimes.length;
+        if (historySize < historyTimes.length) historySize++;
+    }
+
+    // {end time, duration in micros} of each kept tick that ended in [from, to], oldest first
+    public synchronized List<long[]> history(long from, long to) {
+        List<long[]> ticks = new ArrayList<>();
+        for (int i = 0; i < historySize; i++) {
+            int slot = (historyNext - historySize + i + historyTimes.length) % historyTimes.length;
+            if (historyTimes[slot] >= from && historyTimes[slot] <= to) ticks.add(new long[] {historyTimes[slot], historyMicros[slot]});
+        }
+        return ticks;
+    }
+
+    // Ticks since the previous call; the next window starts empty
+    public Window drain() {
+        LogHistogram previous = window;
+        window = new LogHistogram();
+        long over = overBudget.getAndSet(0);
+        sinceReport.add(previous);
+        overBudgetSinceReport += over;
+        return new Window(previous, over);
+    }
+
+    // Ticks drained since the previous report, so percentiles cover the whole reporting window
+    // rather than being rolled up from the shorter drain() windows
+    public Window drainReport() {
+        Window report = new Window(sinceReport, overBudgetSinceReport);
+        sinceReport.reset();
+        overBudgetSinceReport = 0;
+        return report;
+    }
+
+    private static double millis(long micros) {
+        return Math.round(micros / 10.0) / 100.0;
+    }
+}
@@ -0,0 +1,176 @@
+package com.configtool.agent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Base64;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+// Multi-part WRITE_FILE: parts are checksummed and written straight into the target's upload
+// temp file, which only replaces the real file on commit. Uploads outlive the connection, so
+// after a reconnect the backend asks for the status and continues from the received offset.
+public class UploadManager {
+    private static final long PART_WAIT_MILLIS = 10_000;
+
+    private static final class Upload {
+        final String id;
+        final String path;
+        final long size;
+        final FileChannel channel;
+        final CRC32 crc = new CRC32();
+        long received;
+        long lastActivity = System.currentTimeMillis();
+
+        Upload(String id, String path, long size, FileChannel channel) {
+            this.id = id;
+            this.path = path;
+            this.size = size;
+            this.channel = channel;
+        }
+    }
+
+    private final FileOperations fileOps;
+    private final Logger logger;
+    // Replaced by configure() on reload
+    private volatile long maxBytes;
+    private volatile int maxPartBytes;
+    private volatile int maxUploads;
+    private volatile long idleMillis;
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final AtomicLong committed = new AtomicLong();
+    private final AtomicLong aborted = new AtomicLong();
+
+    public UploadManager(FileOperations fileOps, ModuleConfig config, Logger logger) {
+        this.fileOps = fileOps;
+        this.logger = logger;
+        configure(config);
+    }
+
+    // New limits apply to later requests; uploads in progress are kept
+    public void configure(ModuleConfig config) {
+        this.maxBytes = config.getConnectionInt("uploads.max-size-mb", 16) * 1024L * 1024L;
+        this.maxPartBytes = config.getConnectionInt("uploads.max-part-kb", 256) * 1024;
+        this.maxUploads = config.getConnectionInt("uploads.max-uploads", 8);
+        this.idleMillis = config.getConnectionInt("uploads.idle-timeout-minutes", 30) * 60_000L;
+    }
+
+    // Resumes only when given the uploadId of the path's upload in progress and the same size; any
+    // other BEGIN to that path discards it, so parts of unrelated content are never spliced together
+    public synchronized Map<String, Object> begin(String path, long size, String resumeId) throws IOException {
+        if (size < 0 || size > maxBytes) throw new IllegalArgumentException("File too large");
+        purgeIdle();
+        for (Upload upload : uploads.values()) {
+            if (!upload.path.equals(path)) continue;
+            if (upload.id.equals(resumeId) && upload.size == size) {
+                upload.lastActivity = System.currentTimeMillis();
+                return state(upload);
+            }
+            discard(upload);
+            break;
+        }
+        if (uploads.size() >= maxUploads) throw new IllegalStateException("Too many uploads in progress");
+        Upload upload = new Upload(UUID.randomUUID().toString(), path, size, fileOps.openUpload(path));
+        uploads.put(upload.id, upload);
+        return state(upload);
+    }
+
+    public Map<String, Object> part(String uploadId, long offset, String bytes, long crc32) throws IOException, InterruptedException {
+        byte[] data = Base64.getDecoder().decode(bytes);
+        if (data.length > maxPartBytes) throw new IllegalArgumentException("Part too large");
+        CRC32 check = new CRC32();
+        check.update(data, 0, data.length);
+        if (check.getValue() != crc32) throw new IllegalArgumentException("Checksum mismatch at offset " + offset);
+        Upload upload = get(uploadId);
+        synchronized (upload) {
+            // Parts can overtake each other on the request executor; wait for the earlier ones
+            long deadline = System.currentTimeMillis() + PART_WAIT_MILLIS;
+            while (offset > upload.received && uploads.containsKey(uploadId)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) throw new IllegalStateException("Expected offset " + upload.received);
+                upload.wait(remaining);
+            }
+            if (!upload.channel.isOpen()) throw new IllegalArgumentException("Unknown upload");
+            // A retried part that already landed is acknowledged without writing it again
+            if (offset + data.length <= upload.received) return state(upload);
+            if (offset != upload.received) throw new IllegalStateException("Expected offset " + upload.received);
+            if (upload.received + data.length > upload.size) throw new IllegalArgumentException("Part exceeds declared size");
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) upload.channel.write(buffer, offset + buffer.position());
+            upload.crc.update(data, 0, data.length);
+            upload.received += data.length;
+            upload.lastActivity = System.currentTimeMillis();
+            upload.notifyAll();
+            return state(upload);
+        }
+    }
+
+    // crc32 < 0 skips the whole-file check
+    public Map<String, Object> commit(String uploadId, long crc32) throws IOException {
+        Upload upload = get(uploadId);
+        synchronized (upload) {
+            if (upload.received != upload.size) throw new IllegalStateException("Upload incomplete: " + upload.received + " of " + upload.size + " bytes");
+            if (crc32 >= 0 && crc32 != upload.crc.getValue()) {
+                abort(uploadId);
+                throw new IllegalArgumentException("Checksum mismatch for whole file, upload discarded");
+            }
+            upload.channel.force(false);
+            upload.channel.close();
+            uploads.remove(uploadId);
+            fileOps.commitUpload(upload.path);
+            committed.incrementAndGet();
+            return Map.of("success", true, "size", upload.size);
+        }
+    }
+
+    public Map<String, Object> status(String uploadId) {
+        Upload upload = get(uploadId);
+        synchronized (upload) { return state(upload); }
+    }
+
+    public void abort(String uploadId) {
+        Upload upload = uploads.get(uploadId);
+        if (upload != null) discard(upload);
+    }
+
+    public void close() {
+        for (Upload upload : uploads.values()) discard(upload);
+    }
+
+    private Upload get(String uploadId) {
+        Upload upload = uploads.get(uploadId);
+        if (upload == null) throw new IllegalArgumentException("Unknown upload");
+        return upload;
+    }
+
+    private void purgeIdle() {
+        long cutoff = System.currentTimeMillis() - idleMillis;
+        for (Upload upload : uploads.values()) {
+            if (upload.lastActivity >= cutoff) continue;
+            discard(upload);
+            logger.info("Discarded idle upload of " + upload.path);
+        }
+    }
+
+    private void discard(Upload upload) {
+        if (!uploads.remove(upload.id, upload)) return;
+        aborted.incrementAndGet();
+        try {
+            upload.channel.close();
+        } catch (IOException ignored) {}
+        fileOps.discardUpload(upload.path);
+        synchronized (upload) { upload.notifyAll(); }
+    }
+
+    private static Map<String, Object> state(Upload upload) {
+        return Map.of("uploadId", upload.id, "received", upload.received, "size", upload.size);
+    }
+
+    public Map<String, Object> getStats() {
+        return Map.of("active", uploads.size(), "committed", committed.get(), "aborted", aborted.get());
+    }
+}
@@ -1,68 +1,374 @@
 package com.configtool.agent;
 
 import com.google.gson.*;
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.framing.BinaryFrame;
+import org.java_websocket.framing.DataFrame;
+import org.java_websocket.framing.TextFrame;
 import org.java_websocket.handshake.ServerHandshake;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
 
 public class WebSocketClient extends org.java_websocket.client.WebSocketClient {
+    interface RequestHandler {
+        Map<String, Object> handle(String type, String requestId, JsonObject data) throws Exception;
+    }
+
+    // mainThread handlers run on the server thread; readOnly ones may be interrupted when the socket closes
+    private static final class Route {
+        final boolean mainThread;
+        final boolean readOnly;
+        final RequestHandler handler;
+
+        Route(boolean mainThread, boolean readOnly, RequestHandler handler) {
+            this.mainThread = mainThread;
+            this.readOnly = readOnly;
+            this.handler = handler;
+        }
+    }
+
+    private static final class BatchItem {
+        final String type;
+        final String requestId;
+        final JsonObject data;
+        Map<String, Object> result;
+        CompletableFuture<Map<String, Object>> future;
+        // Set by whichever runs the sub-request first: a pool thread, or the batch while collecting
+        final AtomicBoolean claimed = new AtomicBoolean();
+
+        BatchItem(String type, String requestId, JsonObject data) {
+            this.type = type;
+            this.requestId = requestId;
+            this.data = data;
+        }
+    }
+
     private static final int CHUNK_SIZE = 512 * 1024; // 512 KB chunks
+    private static final Set<String> COALESCED_PUSHES = Set.of("METRICS_BATCH", "PERFORMANCE_DATA", "ECONOMY_SNAPSHOT");
+    // Answer through their own frames, so they cannot be folded into a combined reply
+    private static final Set<String> BATCH_EXCLUDED = Set.of("READ_FILE_STREAM");
+    // Retry hint when a type's wait queue is full; the executor cannot predict when a slot frees up
+    private static final long QUEUE_FULL_RETRY_MS = 1000;
     private final ConfigToolAgent plugin;
     private final FileOperations fileOps;
-    private final Gson gson = new Gson();
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final OutboundQueue outbound;
+    private final RequestExecutor requests;
+    private final RequestDeduplicator deduplicator;
+    private final RequestLimiter limiter;
+    private final FileStreamer streamer;
+    private final LinkMonitor link;
+    private final EndpointSelector endpoints;
+    private final LatencyTracker latency = new LatencyTracker();
+    private final Map<String, Route> routes = new HashMap<>();
+    private final FrameCompressor compressor = new FrameCompressor();
+    private final Map<String, Integer> compressionThresholds = new ConcurrentHashMap<>();
+    private final boolean offerBinaryCodec;
+    private final boolean offerDictionary;
+    private volatile boolean binaryCodec;
+    private volatile boolean dictCompression;
+    // Kept across reconnects until the next WELCOME, so samples buffered while offline still go out as a series
+    private volatile boolean seriesEncoding;
+    private final String sessionId = UUID.randomUUID().toString();
+    private final long reconnectInitialMs;
+    private final long reconnectMaxMs;
+    private final int maxBatch;
+    private int reconnectAttempts;
+    private volatile boolean stopped;
+    private volatile boolean opened;
+    // Reads frames and runs onMessage; its replies must never wait for room in the outbound queue
+    private volatile Thread socketThread;
     private ScheduledFuture<?> heartbeat;
+    private ScheduledFuture<?> welcomeTimeout;
 
-    public WebSocketClient(ConfigToolAgent plugin, String uri, String token, FileOperations fileOps) throws Exception {
-        super(new URI(uri));
+    public WebSocketClient(ConfigToolAgent plugin, EndpointSelector endpoints, String token, FileOperations fileOps) {
+        super(endpoints.select(), createDraft(plugin.getModuleConfig()));
         this.plugin = plugin;
+        this.endpoints = endpoints;
         this.fileOps = fileOps;
+        this.outbound = new OutboundQueue(this, plugin.getModuleConfig(), plugin.getLogger());
+        this.requests = new RequestExecutor(plugin, plugin.getModuleConfig(), plugin.getLogger());
+        this.deduplicator = new RequestDeduplicator(plugin.getModuleConfig());
+        this.limiter = new RequestLimiter(plugin.getModuleConfig());
+        this.streamer = new FileStreamer(this, fileOps, requests, scheduler, plugin.getModuleConfig(), plugin.getLogger());
+        this.link = plugin.getLinkMonitor();
+        registerRoutes();
+        this.offerBinaryCodec = !"json".equalsIgnoreCase(plugin.getModuleConfig().getConnectionString("codec", "auto"));
         addHeader("Authorization", "Bearer " + token);
+        this.offerDictionary = plugin.getModuleConfig().getConnectionBoolean("compression.shared-dictionary", true);
+        addHeader("X-ConfigTool-Codecs", offerBinaryCodec ? WireCodec.VERSION + ", json" : "json");
+        if (offerDictionary) addHeader("X-ConfigTool-Compression", FrameCompressor.VERSION);
+        addHeader("X-ConfigTool-Session", sessionId);
+        if (plugin.getRelay() != null) addHeader("X-ConfigTool-Relay", RelayServer.VERSION);
+        if (plugin.getModuleConfig().isSeriesEnabled()) addHeader("X-ConfigTool-Series", MetricSeries.VERSION);
+        this.reconnectInitialMs = plugin.getModuleConfig().getConnectionInt("reconnect.initial-delay-ms", 1000);
+        this.reconnectMaxMs = plugin.getModuleConfig().getConnectionInt("reconnect.max-delay-ms", 60000);
+        this.maxBatch = plugin.getModuleConfig().getConnectionInt("requests.max-batch", 64);
         setConnectionLostTimeout(60);
     }
 
+    private static Draft createDraft(ModuleConfig config) {
+        if (!config.getConnectionBoolean("compression.permessage-deflate", true)) return new Draft_6455();
+        return new Draft_6455(new SelectiveDeflateExtension());
+    }
+
+    // With several endpoints the first connection waits for one probe round to pick the closest
+    public void start() {
+        if (endpoints.size() < 2) {
+            connect();
+            return;
+        }
+        scheduler.execute(() -> {
+            endpoints.probe();
+            uri = endpoints.select();
+            connect();
+        });
+        int interval = Math.max(5, endpoints.getProbeIntervalSeconds());
+        scheduler.scheduleWithFixedDelay(this::probeEndpoints, interval, interval, TimeUnit.SECONDS);
+    }
+
+    // Moves to a clearly closer endpoint; the session resumes there if the backends share state
+    private void probeEndpoints() {
+        endpoints.probe();
+        if (!isOpen()) return;
+        URI better = endpoints.findBetter(uri);
+        if (better == null) return;
+        plugin.getLogger().info("Switching to closer endpoint " + endpoints.describe(better));
+        close(1001, "Switching endpoint");
+    }
+
     @Override
     public void onOpen(ServerHandshake h) {
-        plugin.getLogger().info("Connected to ConfigTool server");
-        heartbeat = scheduler.scheduleAtFixedRate(() -> {
-            if (isOpen()) send(gson.toJson(Map.of("type", "HEARTBEAT")));
-        }, 30, 30, TimeUnit.SECONDS);
+        plugin.getLogger().info("Connected to ConfigTool server" + (endpoints.size() > 1 ? " at " + endpoints.describe(uri) : ""));
+        opened = true;
+        socketThread = Thread.currentThread();
+        endpoints.reportSuccess(uri);
+        binaryCodec = false;
+        dictCompression = false;
+        outbound.start();
+        link.reset();
+        heartbeat = scheduler.scheduleAtFixedRate(this::sendHeartbeat, 2, link.getHeartbeatSeconds(), TimeUnit.SECONDS);
+        // A backend that never sends WELCOME still gets our traffic, as a fresh session
+        welcomeTimeout = scheduler.schedule(() -> outbound.beginSession(false, 0), 10, TimeUnit.SECONDS);
     }
 
     @Override
     public void onMessage(String msg) {
         try {
-            JsonObject json = JsonParser.parseString(msg).getAsJsonObject();
-            String type = json.get("type").getAsString();
-            switch (type) {
-                case "WELCOME" -> plugin.getLogger().info("Server acknowledged connection");
-                case "HEARTBEAT_ACK" -> {}
-                case "LIST_FILES" -> handleListFiles(json);
-                case "READ_FILE" -> handleReadFile(json);
-                case "WRITE_FILE" -> handleWriteFile(json);
-                case "DELETE_FILE" -> handleDeleteFile(json);
-                case "CREATE_FILE" -> handleCreateFile(json);
-                case "RENAME_FILE" -> handleRenameFile(json);
-                case "EXECUTE_COMMAND" -> handleExecuteCommand(json);
-                case "BROADCAST", "KICK_PLAYER", "TOGGLE_WHITELIST" -> handleQuickAction(json);
-                case "GET_WORLDS", "SET_GAMERULE" -> handleWorldAction(json);
-                case "GET_PLUGINS", "ENABLE_PLUGIN", "DISABLE_PLUGIN" -> handlePluginAction(json);
-            }
+            long received = System.nanoTime();
+            dispatch(JsonParser.parseString(msg).getAsJsonObject(), received);
         } catch (Exception e) {
             plugin.getLogger().warning("Error processing message: " + e.getMessage());
         }
     }
 
+    @Override
+    public void onMessage(ByteBuffer bytes) {
+        try {
+            long received = System.nanoTime();
+            if ((bytes.get(bytes.position()) & RelayServer.FLAG_RELAY) != 0) {
+                relayed(bytes);
+                return;
+            }
+            dispatch(decodeBinary(bytes), received);
+        } catch (Exception e) {
+            plugin.getLogger().warning("Error processing binary message: " + e.getMessage());
+        }
+    }
+
+    // Frames for a sibling agent behind this relay are passed on untouched
+    private void relayed(ByteBuffer bytes) {
+        byte flags = bytes.get();
+        if ((flags & OutboundQueue.FLAG_SEQUENCED) != 0) WireCodec.readVarLong(bytes);
+        RelayServer relay = plugin.getRelay();
+        if (relay != null) relay.deliver(bytes);
+    }
+
+    private JsonObject decodeBinary(ByteBuffer bytes) throws DataFormatException {
+        byte flags = bytes.get();
+        if ((flags & OutboundQueue.FLAG_SEQUENCED) != 0) WireCodec.readVarLong(bytes);
+        if ((flags & FrameCompressor.FLAG_DICT_DEFLATE) == 0) {
+            if ((flags & WireCodec.FLAG_CODEC) == 0) throw new IllegalArgumentException("Unsupported frame flags: " + flags);
+            return WireCodec.decodeBody(bytes);
+        }
+        byte[] body = compressor.decompress(bytes);
+        if ((flags & WireCodec.FLAG_CODEC) != 0) return WireCodec.decodeBody(ByteBuffer.wrap(body));
+        return JsonParser.parseString(new String(body, StandardCharsets.UTF_8)).getAsJsonObject();
+    }
+
+    private void dispatch(JsonObject json, long received) {
+        String type = json.get("type").getAsString();
+        switch (type) {
+            case "WELCOME" -> handleWelcome(json);
+            case "HEARTBEAT_ACK" -> handleHeartbeatAck(json);
+            case "ACK" -> handleAck(json);
+            case "STREAM_CREDIT", "STREAM_CANCEL" -> handleStreamControl(type, json);
+            case "BATCH" -> handleBatch(json, received);
+            case "RELAY_CLOSE" -> {
+                if (plugin.getRelay() != null) plugin.getRelay().closeChannel(json.getAsJsonObject("data"));
+            }
+            default -> handleRequest(type, json, received);
+        }
+    }
+
+    private void registerRoutes() {
+        route("LIST_FILES", false, true, this::listFiles);
+        route("READ_FILE", false, true, this::readFile);
+        route("READ_FILE_STREAM", false, true, this::readFileStream);
+        route("WRITE_FILE", false, false, this::writeFile);
+        route("DELETE_FILE", false, false, this::deleteFile);
+        route("CREATE_FILE", false, false, this::createFile);
+        route("RENAME_FILE", false, false, this::renameFile);
+        route("UPLOAD_BEGIN", false, false, this::uploadAction);
+        route("UPLOAD_PART", false, false, this::uploadAction);
+        route("UPLOAD_COMMIT", false, false, this::uploadAction);
+        route("UPLOAD_ABORT", false, false, this::uploadAction);
+        route("UPLOAD_STATUS", false, true, this::uploadAction);
+        route("EXECUTE_COMMAND", true, false, this::executeCommand);
+        route("BROADCAST", false, false, this::quickAction);
+        route("KICK_PLAYER", false, false, this::quickAction);
+        route("TOGGLE_WHITELIST", false, false, this::quickAction);
+        route("GET_WORLDS", true, true, this::worldAction);
+        route("SET_GAMERULE", true, false, this::worldAction);
+        route("GET_PLUGINS", true, true, this::pluginAction);
+        route("ENABLE_PLUGIN", true, false, this::pluginAction);
+        route("DISABLE_PLUGIN", true, false, this::pluginAction);
+        route("GET_AGENT_STATS", false, true, this::agentStats);
+        route("GET_LATENCY_STATS", false, true, this::latencyStats);
+        route("SUBSCRIBE", false, true, this::subscriptionAction);
+        route("UNSUBSCRIBE", false, true, this::subscriptionAction);
+        route("SET_PLUGIN_TIMING", true, false, this::timingAction);
+        route("GET_METRICS_RANGE", false, true, this::metricsRange);
+    }
+
+    private void route(String type, boolean mainThread, boolean readOnly, RequestHandler handler) {
+        routes.put(type, new Route(mainThread, readOnly, handler));
+    }
+
+    private void handleWelcome(JsonObject json) {
+        JsonObject data = json.has("data") && json.get("data").isJsonObject() ? json.getAsJsonObject("data") : new JsonObject();
+        binaryCodec = offerBinaryCodec && data.has("codec") && WireCodec.VERSION.equals(data.get("codec").getAsString());
+        dictCompression = offerDictionary && data.has("compression") && FrameCompressor.VERSION.equals(data.get("compression").getAsString());
+        boolean relay = plugin.getRelay() != null && data.has("relay") && RelayServer.VERSION.equals(data.get("relay").getAsString());
+        seriesEncoding = plugin.getModuleConfig().isSeriesEnabled() && data.has("series")
+            && MetricSeries.VERSION.equals(data.get("series").getAsString());
+        boolean resumed = data.has("resumed") && data.get("resumed").getAsBoolean();
+        long ack = data.has("seq") ? data.get("seq").getAsLong() : 0;
+        if (welcomeTimeout != null) welcomeTimeout.cancel(false);
+        outbound.beginSession(resumed, ack);
+        reconnectAttempts = 0;
+        plugin.getLogger().info("Server acknowledged connection"
+            + (resumed ? " (resumed at " + ack + ")" : "")
+            + (binaryCodec ? " (binary codec)" : "") + (dictCompression ? " (dictionary compression)" : "") + (relay ? " (relay)" : "") + (seriesEncoding ? " (metric series)" : ""));
+        if (relay) plugin.getRelay().upstreamReady();
+        else if (plugin.getRelay() != null) plugin.getLogger().warning("Backend does not support relay mode; sibling agents cannot connect through this one");
+        if (plugin.getSpool() != null) plugin.getSpool().startReplay(this);
+    }
+
+    // Backends that echo data.probe get exact matching; older ones answer the newest heartbeat
+    private void sendHeartbeat() {
+        if (!isOpen()) return;
+        link.setCongested(outbound.isTelemetryBacklogged());
+        Map<String, Object> data = Map.of("probe", link.nextProbe(), "sentAt", System.currentTimeMillis());
+        enqueue(OutboundQueue.Lane.CONTROL, "HEARTBEAT", Map.of("type", "HEARTBEAT", "data", data));
+    }
+
+    private void handleHeartbeatAck(JsonObject json) {
+        JsonObject data = json.has("data") && json.get("data").isJsonObject() ? json.getAsJsonObject("data") : new JsonObject();
+        link.acknowledge(data.has("probe") ? data.get("probe").getAsLong() : -1);
+        handleAck(json);
+    }
+
+    // Cumulative: everything up to data.seq has been received by the backend
+    private void handleAck(JsonObject json) {
+        if (!json.has("data") || !json.get("data").isJsonObject()) return;
+        JsonObject data = json.getAsJsonObject("data");
+        if (data.has("seq")) outbound.acknowledge(data.get("seq").getAsLong());
+    }
+
+    private void handleStreamControl(String type, JsonObject json) {
+        if (!json.has("requestId")) return;
+        String streamId = json.get("requestId").getAsString();
+        if (type.equals("STREAM_CANCEL")) {
+            streamer.cancel(streamId);
+            return;
+        }
+        JsonObject data = json.has("data") && json.get("data").isJsonObject() ? json.getAsJsonObject("data") : new JsonObject();
+        if (data.has("credits")) streamer.grant(streamId, data.get("credits").getAsInt());
+    }
+
     @Override
     public void onClose(int code, String reason, boolean remote) {
         if (heartbeat != null) heartbeat.cancel(false);
+        if (welcomeTimeout != null) welcomeTimeout.cancel(false);
+        requests.cancelAll();
+        streamer.closeAll();
+        outbound.pause();
+        plugin.getSubscriptions().clear();
+        if (plugin.getRelay() != null) plugin.getRelay().upstreamLost();
+        compressor.close();
         if (code == 1008) {
             plugin.getLogger().severe("Connection rejected: Invalid token. Check your config.yml");
+            outbound.stop();
+            return;
+        }
+        if (!opened) endpoints.reportFailure(uri);
+        opened = false;
+        if (stopped) return;
+        // A normal close from the backend means it does not want this agent back
+        if (remote && code == 1000) {
+            plugin.getLogger().info("Backend closed the connection: " + reason);
+            outbound.stop();
             return;
         }
         plugin.getLogger().warning("Disconnected (code=" + code + "): " + reason);
-        if (remote && code != 1000) plugin.reconnect();
+        scheduleReconnect();
+    }
+
+    // Equal-jitter exponential backoff, so a fleet of agents does not reconnect in lockstep
+    // after a backend restart. The same client reconnects, keeping its session and unacked frames.
+    private void scheduleReconnect() {
+        long ceiling = Math.min(reconnectMaxMs, reconnectInitialMs << Math.min(reconnectAttempts, 16));
+        long delay = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+        reconnectAttempts++;
+        plugin.getLogger().info("Reconnecting in " + delay + "ms (attempt " + reconnectAttempts + ")");
+        try {
+            scheduler.schedule(() -> {
+                if (stopped) return;
+                if (endpoints.size() > 1) {
+                    endpoints.probe();
+                    URI next = endpoints.select();
+                    if (!next.equals(uri)) plugin.getLogger().info("Failing over to " + endpoints.describe(next));
+                    uri = next;
+                }
+                addHeader("X-ConfigTool-Last-Seq", String.valueOf(outbound.getLastSeq()));
+                reconnect();
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) {}
+    }
+
+    public void shutdown() {
+        stopped = true;
+        requests.shutdown();
+        outbound.stop();
+        scheduler.shutdownNow();
+        endpoints.close();
+        close();
+        compressor.close();
     }
 
     @Override
@@ -70,40 +376,227 @@ public class WebSocketClient extends org.java_websocket.client.WebSocketClient {
         plugin.getLogger().warning("WebSocket error: " + e.getMessage());
     }
 
-    private void handleListFiles(JsonObject json) {
+    private void handleRequest(String type, JsonObject json, long received) {
+        Route route = routes.get(type);
+        if (route == null) return;
         String reqId = json.get("requestId").getAsString();
-        JsonObject data = json.getAsJsonObject("data");
-        String dir = data.has("directory") ? data.get("directory").getAsString() : "plugins/";
-        int offset = data.has("offset") ? data.get("offset").getAsInt() : 0;
-        int limit = data.has("limit") ? data.get("limit").getAsInt() : 100;
-        plugin.getLogger().info("Listing files in: " + dir + " (offset=" + offset + ", limit=" + limit + ")");
-        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+        JsonObject data = json.has("data") && json.get("data").isJsonObject() ? json.getAsJsonObject("data") : new JsonObject();
+        RequestTrace trace = latency.begin(type, received);
+        // Cache hits are answered from the socket thread and do not count against the rate limit
+        ResponseCache cache = plugin.getResponseCache();
+        Map<String, Object> cached = cache != null && cache.isCacheable(type) ? cache.lookup(type, data) : null;
+        if (cached != null) {
+            trace.started = trace.handled = System.nanoTime();
+            if (enqueue(OutboundQueue.Lane.RESPONSE, null, responseMessage(reqId, cached), trace) || !isOpen()) return;
+            // The RESPONSE lane is full; an executor thread can wait for room where this one cannot
+            execute(type, reqId, true, trace, () -> cached);
+            return;
+        }
+        long retryAfter = limiter.tryAcquire(type, route.mainThread);
+        if (retryAfter > 0) {
+            sendBusy(reqId, "Agent busy: " + type + " rate limit exceeded", retryAfter);
+            return;
+        }
+        execute(type, reqId, route.readOnly, trace, () -> route.mainThread
+            ? requests.callSync(() -> {
+                trace.mainThread = System.nanoTime();
+                return handle(route, type, reqId, data);
+            })
+            : handle(route, type, reqId, data));
+    }
+
+    private Map<String, Object> handle(Route route, String type, String reqId, JsonObject data) throws Exception {
+        ResponseCache cache = plugin.getResponseCache();
+        if (cache == null || !cache.isCacheable(type)) return route.handler.handle(type, reqId, data);
+        return cache.load(type, data, () -> route.handler.handle(type, reqId, data));
+    }
+
+    // Runs one backend request on the executor and answers it; mutating ones are deduplicated by requestId
+    private void execute(String type, String reqId, boolean readOnly, RequestTrace trace, Callable<Map<String, Object>> call) {
+        boolean dedup = !readOnly;
+        if (dedup) {
+            RequestDeduplicator.Entry previous = deduplicator.begin(reqId);
+            if (previous != null) {
+                Map<String, Object> reply = previous.getReply();
+                if (reply != null) enqueue(OutboundQueue.Lane.RESPONSE, null, reply);
+                return;
+            }
+        }
+        boolean accepted = requests.submit(type, readOnly, () -> {
+            trace.started = System.nanoTime();
+            Map<String, Object> reply = null;
+            boolean cancelled = false;
+            boolean timedOut = false;
             try {
-                var result = fileOps.listFiles(dir, offset, limit);
-                plugin.getLogger().info("Returning " + ((java.util.List<?>)result.get("files")).size() + " of " + result.get("total") + " files");
-                sendResponse(reqId, result);
+                Map<String, Object> result = call.call();
+                if (result != null) reply = responseMessage(reqId, result);
             } catch (Exception e) {
-                plugin.getLogger().warning("Error listing files: " + e.getMessage());
-                sendError(reqId, e.getMessage());
+                cancelled = e instanceof CancellationException || Thread.currentThread().isInterrupted();
+                timedOut = e instanceof TimeoutException;
+                reply = errorMessage(reqId, cancelled ? "Request cancelled" : describe(e));
+            }
+            // A sync call that timed out never ran, so a retry must not get this reply
+            if (dedup) {
+                if (cancelled || timedOut) deduplicator.abandon(reqId);
+                else deduplicator.complete(reqId, reply);
             }
+            trace.handled = System.nanoTime();
+            if (reply != null) enqueue(OutboundQueue.Lane.RESPONSE, null, reply, trace);
+            else trace.finish();
+        }, () -> {
+            if (dedup) deduplicator.abandon(reqId);
+            sendError(reqId, "Request cancelled: connection closed");
         });
+        if (!accepted) {
+            if (dedup) deduplicator.abandon(reqId);
+            sendBusy(reqId, "Agent busy: too many pending " + type + " requests", QUEUE_FULL_RETRY_MS);
+        }
     }
 
-    private void handleReadFile(JsonObject json) {
+    // One envelope, one reply: main-thread sub-requests share a single tick, the rest run in parallel
+    private void handleBatch(JsonObject json, long received) {
         String reqId = json.get("requestId").getAsString();
-        String path = json.getAsJsonObject("data").get("path").getAsString();
-        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
-            try {
-                String content = fileOps.readFile(path);
-                if (content.length() <= CHUNK_SIZE) {
-                    sendResponse(reqId, Map.of("content", content));
-                } else {
-                    sendChunked(reqId, content);
+        JsonObject data = json.has("data") && json.get("data").isJsonObject() ? json.getAsJsonObject("data") : new JsonObject();
+        if (data.has("requests") && !data.get("requests").isJsonArray()) {
+            sendError(reqId, "Batch requests must be an array");
+            return;
+        }
+        JsonArray items = data.has("requests") ? data.getAsJsonArray("requests") : new JsonArray();
+        if (items.size() > maxBatch) {
+            sendError(reqId, "Batch too large: " + items.size() + " requests, limit " + maxBatch);
+            return;
+        }
+        boolean readOnly = true;
+        for (int i = 0; i < items.size(); i++) {
+            JsonElement item = items.get(i);
+            JsonElement type = item.isJsonObject() ? item.getAsJsonObject().get("type") : null;
+            if (type == null || !type.isJsonPrimitive() || !type.getAsJsonPrimitive().isString()) {
+                sendError(reqId, "Batch request " + i + " has no type");
+                return;
+            }
+            Route route = routes.get(type.getAsString());
+            if (route != null && !route.readOnly) readOnly = false;
+        }
+        RequestTrace trace = latency.begin("BATCH", received);
+        execute("BATCH", reqId, readOnly, trace, () -> runBatch(reqId, items, trace));
+    }
+
+    private Map<String, Object> runBatch(String batchId, JsonArray items, RequestTrace trace) throws Exception {
+        List<BatchItem> batch = new ArrayList<>();
+        ResponseCache cache = plugin.getResponseCache();
+        List<BatchItem> mainThread = new ArrayList<>();
+        for (int i = 0; i < items.size(); i++) {
+            JsonObject json = items.get(i).getAsJsonObject();
+            BatchItem item = new BatchItem(json.get("type").getAsString(),
+                json.has("requestId") ? json.get("requestId").getAsString() : batchId + ":" + i,
+                json.has("data") && json.get("data").isJsonObject() ? json.getAsJsonObject("data") : new JsonObject());
+            batch.add(item);
+            Route route = routes.get(item.type);
+            if (route == null || BATCH_EXCLUDED.contains(item.type)) {
+                item.result = batchError(item, "Not allowed in a batch: " + item.type);
+                continue;
+            }
+            // Cache hits, notModified for a matching ifVersion included, are answered as for standalone requests
+            Map<String, Object> cached = cache != null && cache.isCacheable(item.type) ? cache.lookup(item.type, item.data) : null;
+            if (cached != null) {
+                item.result = batchResult(item, cached);
+                continue;
+            }
+            // Sub-requests draw from the same budgets as standalone ones
+            long retryAfter = limiter.tryAcquire(item.type, route.mainThread);
+            if (retryAfter > 0) {
+                item.result = batchBusy(item, "Agent busy: " + item.type + " rate limit exceeded", retryAfter);
+            } else if (route.mainThread) {
+                mainThread.add(item);
+            } else {
+                item.future = new CompletableFuture<>();
+                boolean accepted = requests.submit(item.type, route.readOnly, () -> runItem(route, item), () -> {
+                    if (item.claimed.compareAndSet(false, true)) item.future.cancel(false);
+                });
+                if (!accepted) {
+                    item.future = null;
+                    item.result = batchBusy(item, "Agent busy: too many pending " + item.type + " requests", QUEUE_FULL_RETRY_MS);
                 }
-            } catch (Exception e) {
-                sendError(reqId, e.getMessage());
             }
-        });
+        }
+        if (!mainThread.isEmpty()) {
+            requests.callSync(() -> {
+                trace.mainThread = System.nanoTime();
+                for (BatchItem item : mainThread) {
+                    try {
+                        item.result = batchResult(item, handle(routes.get(item.type), item.type, item.requestId, item.data));
+                    } catch (Exception e) {
+                        item.result = batchError(item, describe(e));
+                    }
+                }
+                return null;
+            });
+        }
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (BatchItem item : batch) {
+            if (item.future != null) {
+                // The batch holds a pool thread itself, so it runs sub-requests still queued rather than
+                // wait for them: batches filling every thread would otherwise wait on each other forever
+                runItem(routes.get(item.type), item);
+                try {
+                    item.result = batchResult(item, item.future.get());
+                } catch (ExecutionException e) {
+                    item.result = batchError(item, e.getCause() instanceof Exception cause ? describe(cause) : e.getCause().toString());
+                } catch (CancellationException e) {
+                    item.result = batchError(item, "Request cancelled");
+                }
+            }
+            results.add(item.result);
+        }
+        return Map.of("results", results);
+    }
+
+    private void runItem(Route route, BatchItem item) {
+        if (!item.claimed.compareAndSet(false, true)) return;
+        try {
+            item.future.complete(handle(route, item.type, item.requestId, item.data));
+        } catch (Exception e) {
+            item.future.completeExceptionally(e);
+        }
+    }
+
+    // A null result means the handler already answered on its own, e.g. a chunked READ_FILE
+    private static Map<String, Object> batchResult(BatchItem item, Map<String, Object> data) {
+        Map<String, Object> result = new HashMap<>();
+        result.put("requestId", item.requestId);
+        result.put("type", item.type);
+        result.put("data", data);
+        return result;
+    }
+
+    private static Map<String, Object> batchError(BatchItem item, String error) {
+        return Map.of("requestId", item.requestId, "type", item.type, "error", error);
+    }
+
+    private static Map<String, Object> batchBusy(BatchItem item, String error, long retryAfterMs) {
+        return Map.of("requestId", item.requestId, "type", item.type, "error", error, "busy", true, "retryAfterMs", retryAfterMs);
+    }
+
+    private static String describe(Exception e) {
+        return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+    }
+
+    private Map<String, Object> listFiles(String type, String reqId, JsonObject data) throws Exception {
+        String dir = data.has("directory") ? data.get("directory").getAsString() : "plugins/";
+        int offset = data.has("offset") ? data.get("offset").getAsInt() : 0;
+        int limit = data.has("limit") ? data.get("limit").getAsInt() : 100;
+        plugin.getLogger().info("Listing files in: " + dir + " (offset=" + offset + ", limit=" + limit + ")");
+        var result = fileOps.listFiles(dir, offset, limit);
+        plugin.getLogger().info("Returning " + ((java.util.List<?>)result.get("files")).size() + " of " + result.get("total") + " files");
+        return result;
+    }
+
+    private Map<String, Object> readFile(String type, String reqId, JsonObject data) throws Exception {
+        if (data.has("signatures")) return readFileDelta(data);
+        String content = fileOps.readFile(data.get("path").getAsString());
+        if (content.length() <= CHUNK_SIZE) return Map.of("content", content);
+        sendChunked(reqId, content);
+        return null;
     }
 
     private void sendChunked(String reqId, String content) {
@@ -123,70 +616,83 @@ public class WebSocketClient extends org.java_websocket.client.WebSocketClient {
                 "isLast", isLast
             );
 
-            if (isOpen()) {
-                send(gson.toJson(Map.of(
-                    "type", "FILE_CHUNK",
-                    "requestId", reqId,
-                    "data", chunkData
-                )));
+            if (!isOpen()) return;
+            Map<String, Object> msg = Map.of("type", "FILE_CHUNK", "requestId", reqId, "data", chunkData);
+            if (!enqueue(OutboundQueue.Lane.BULK, null, msg)) {
+                plugin.getLogger().warning("Aborting chunked transfer for " + reqId + ": outbound queue stalled");
+                return;
             }
+        }
+    }
+
+    // Header goes out as the RESPONSE, then binary chunks as the backend grants credit
+    private Map<String, Object> readFileStream(String type, String reqId, JsonObject data) throws Exception {
+        streamer.open(reqId, data);
+        return null;
+    }
 
-            try { Thread.sleep(10); } catch (InterruptedException ignored) {}
+    // Backend sent signatures of its cached copy; reply with only the changed ranges
+    private Map<String, Object> readFileDelta(JsonObject data) throws Exception {
+        byte[] bytes = fileOps.readBytes(data.get("path").getAsString());
+        String hash = DeltaSync.hash(bytes);
+        if (data.has("baseHash") && data.get("baseHash").getAsString().equals(hash)) {
+            return Map.of("hash", hash, "unchanged", true);
         }
+        int blockSize = data.get("blockSize").getAsInt();
+        return Map.of("hash", hash, "size", bytes.length, "blockSize", blockSize,
+            "delta", DeltaSync.diff(bytes, blockSize, data.getAsJsonArray("signatures")));
     }
 
-    private void handleWriteFile(JsonObject json) {
-        String reqId = json.get("requestId").getAsString();
-        JsonObject data = json.getAsJsonObject("data");
-        String path = data.get("path").getAsString();
-        String content = data.get("content").getAsString();
-        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
-            try { fileOps.writeFile(path, content); sendResponse(reqId, Map.of("success", true)); }
-            catch (Exception e) { sendError(reqId, e.getMessage()); }
-        });
+    private Map<String, Object> writeFile(String type, String reqId, JsonObject data) throws Exception {
+        if (data.has("delta")) {
+            String hash = fileOps.writeFileDelta(data.get("path").getAsString(), data.get("baseHash").getAsString(),
+                data.get("blockSize").getAsInt(), data.getAsJsonArray("delta"), data.has("hash") ? data.get("hash").getAsString() : null);
+            return Map.of("success", true, "hash", hash);
+        }
+        fileOps.writeFile(data.get("path").getAsString(), data.get("content").getAsString());
+        return Map.of("success", true);
     }
 
-    private void handleDeleteFile(JsonObject json) {
-        String reqId = json.get("requestId").getAsString();
-        String path = json.getAsJsonObject("data").get("path").getAsString();
-        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
-            try { fileOps.deleteFile(path); sendResponse(reqId, Map.of("success", true)); }
-            catch (Exception e) { sendError(reqId, e.getMessage()); }
-        });
+    private Map<String, Object> deleteFile(String type, String reqId, JsonObject data) throws Exception {
+        fileOps.deleteFile(data.get("path").getAsString());
+        return Map.of("success", true);
     }
 
-    private void handleCreateFile(JsonObject json) {
-        String reqId = json.get("requestId").getAsString();
-        JsonObject data = json.getAsJsonObject("data");
-        String path = data.get("path").getAsString();
+    private Map<String, Object> createFile(String type, String reqId, JsonObject data) throws Exception {
         boolean isDirectory = data.has("isDirectory") && data.get("isDirectory").getAsBoolean();
-        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
-            try { fileOps.createFile(path, isDirectory); sendResponse(reqId, Map.of("success", true)); }
-            catch (Exception e) { sendError(reqId, e.getMessage()); }
-        });
+        fileOps.createFile(data.get("path").getAsString(), isDirectory);
+        return Map.of("success", true);
     }
 
-    private void handleRenameFile(JsonObject json) {
-        String reqId = json.get("requestId").getAsString();
-        JsonObject data = json.getAsJsonObject("data");
-        String oldPath = data.get("oldPath").getAsString();
-        String newPath = data.get("newPath").getAsString();
-        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
-            try { fileOps.renameFile(oldPath, newPath); sendResponse(reqId, Map.of("success", true)); }
-            catch (Exception e) { sendError(reqId, e.getMessage()); }
-        });
+    private Map<String, Object> renameFile(String type, String reqId, JsonObject data) throws Exception {
+        fileOps.renameFile(data.get("oldPath").getAsString(), data.get("newPath").getAsString());
+        return Map.of("success", true);
     }
 
-    private void handleExecuteCommand(JsonObject json) {
-        String reqId = json.get("requestId").getAsString();
-        String cmd = json.getAsJsonObject("data").get("command").getAsString();
-        if (!isAllowedCommand(cmd)) { sendError(reqId, "Command not allowed"); return; }
-        plugin.getServer().getScheduler().runTask(plugin, () -> {
-            try {
-                plugin.getServer().dispatchCommand(plugin.getServer().getConsoleSender(), cmd);
-                sendResponse(reqId, Map.of("output", "Command executed"));
-            } catch (Exception e) { sendError(reqId, e.getMessage()); }
-        });
+    private Map<String, Object> uploadAction(String type, String reqId, JsonObject data) throws Exception {
+        UploadManager uploads = plugin.getUploads();
+        if (uploads == null) throw new IllegalStateException("Uploads not available");
+        return switch (type) {
+            case "UPLOAD_BEGIN" -> uploads.begin(data.get("path").getAsString(), data.get("size").getAsLong(),
+                data.has("uploadId") ? data.get("uploadId").getAsString() : null);
+            case "UPLOAD_PART" -> uploads.part(data.get("uploadId").getAsString(), data.get("offset").getAsLong(),
+                data.get("bytes").getAsString(), data.get("crc32").getAsLong());
+            case "UPLOAD_COMMIT" -> uploads.commit(data.get("uploadId").getAsString(),
+                data.has("crc32") ? data.get("crc32").getAsLong() : -1);
+            case "UPLOAD_STATUS" -> uploads.status(data.get("uploadId").getAsString());
+            default -> {
+                uploads.abort(data.get("uploadId").getAsString());
+                yield Map.of("success", true);
+            }
+        };
+    }
+
+    private Map<String, Object> executeCommand(String type, String reqId, JsonObject data) {
+        String cmd = data.get("command").getAsString();
+        if (!isAllowedCommand(cmd)) throw new IllegalArgumentException("Command not allowed");
+        plugin.getServer().dispatchCommand(plugin.getServer().getConsoleSender(), cmd);
+        invalidateAfterCommand(cmd);
+        return Map.of("output", "Command executed");
     }
 
     private boolean isAllowedCommand(String cmd) {
@@ -196,57 +702,300 @@ public class WebSocketClient extends org.java_websocket.client.WebSocketClient {
             || l.startsWith("whitelist ") || l.startsWith("gamerule ") || l.startsWith("worldborder ");
     }
 
-    private void sendResponse(String reqId, Map<String, Object> data) {
-        if (isOpen()) send(gson.toJson(Map.of("type", "RESPONSE", "requestId", reqId, "data", data)));
+    // Commands can change what GET_WORLDS and GET_PLUGINS report without firing the events the cache listens to
+    private void invalidateAfterCommand(String cmd) {
+        ResponseCache cache = plugin.getResponseCache();
+        if (cache == null) return;
+        String l = cmd.toLowerCase().trim();
+        if (l.startsWith("gamerule ") || l.startsWith("worldborder ")) cache.invalidate(ResponseCache.WORLDS);
+        if (l.startsWith("plugman ") || l.endsWith(" reload") || l.equals("reload") || l.equals("rl")) cache.invalidate(ResponseCache.PLUGINS);
+    }
+
+    // data.type narrows the result to one request type; data.reset clears the histograms after reading
+    private Map<String, Object> latencyStats(String type, String reqId, JsonObject data) {
+        Map<String, Object> stats = latency.getStats(data.has("type") ? data.get("type").getAsString() : null);
+        if (data.has("reset") && data.get("reset").getAsBoolean()) latency.reset();
+        return Map.of("types", stats);
+    }
+
+    // data.streams lists stream names, or {stream, intervalSeconds} objects; UNSUBSCRIBE without streams drops all
+    private Map<String, Object> subscriptionAction(String type, String reqId, JsonObject data) {
+        Subscriptions subscriptions = plugin.getSubscriptions();
+        JsonArray streams = data.has("streams") ? data.getAsJsonArray("streams") : new JsonArray();
+        if (type.equals("UNSUBSCRIBE") && streams.size() == 0) subscriptions.unsubscribeAll();
+        for (JsonElement element : streams) {
+            JsonObject entry = element.isJsonObject() ? element.getAsJsonObject() : null;
+            String stream = entry != null ? entry.get("stream").getAsString() : element.getAsString();
+            if (type.equals("UNSUBSCRIBE")) {
+                subscriptions.unsubscribe(stream);
+            } else {
+                subscriptions.subscribe(stream, entry != null && entry.has("intervalSeconds") ? entry.get("intervalSeconds").getAsInt() : 0);
+            }
+        }
+        return Map.of("streams", subscriptions.getStats());
+    }
+
+    // data.from/to in epoch ms (default the last hour), data.stepSeconds, data.maxPoints (default 720),
+    // data.fields to narrow the columns, data.encoding "gorilla-1" for a compressed block
+    private Map<String, Object> metricsRange(String type, String reqId, JsonObject data) {
+        MetricsStore store = plugin.getMetricsStore();
+        if (store == null) throw new IllegalStateException("Metrics history not available");
+        long to = data.has("to") ? data.get("to").getAsLong() : System.currentTimeMillis();
+        long from = data.has("from") ? data.get("from").getAsLong() : to - 3_600_000L;
+        if (from > to) throw new IllegalArgumentException("from is after to");
+        int maxPoints = Math.max(1, data.has("maxPoints") ? data.get("maxPoints").getAsInt() : 720);
+        long step = Math.max(data.has("stepSeconds") ? data.get("stepSeconds").getAsLong() * 1000 : 0, (to - from) / maxPoints);
+        // Whole seconds, so buckets line up with the stored tiers
+        step = (step + 999) / 1000 * 1000;
+        List<String> fields = null;
+        if (data.has("fields")) {
+            fields = new ArrayList<>();
+            for (JsonElement field : data.getAsJsonArray("fields")) fields.add(field.getAsString());
+        }
+        boolean compressed = data.has("encoding") && MetricSeries.VERSION.equals(data.get("encoding").getAsString());
+        return store.range(from, to, step, fields, compressed);
+    }
+
+    // Wrapping listeners and tasks touches the scheduler and handler lists, hence the main thread
+    private Map<String, Object> timingAction(String type, String reqId, JsonObject data) {
+        PluginProfiler profiler = plugin.getProfiler();
+        if (profiler == null) throw new IllegalStateException("Performance module not available");
+        profiler.setEnabled(data.get("enabled").getAsBoolean());
+        return Map.of("enabled", profiler.isEnabled());
+    }
+
+    private Map<String, Object> agentStats(String type, String reqId, JsonObject data) {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("outbound", outbound.getStats());
+        stats.put("requests", requests.getStats());
+        stats.put("dedup", deduplicator.getStats());
+        stats.put("rateLimit", limiter.getStats());
+        if (plugin.getResponseCache() != null) stats.put("cache", plugin.getResponseCache().getStats());
+        stats.put("streams", streamer.getStats());
+        stats.put("link", link.getStats());
+        stats.put("subscriptions", plugin.getSubscriptions().getStats());
+        stats.put("endpoints", endpoints.getStats());
+        if (plugin.getRelay() != null) stats.put("relay", plugin.getRelay().getStats());
+        if (plugin.getMetricsStore() != null) stats.put("metricsStore", plugin.getMetricsStore().getStats());
+        if (plugin.getUploads() != null) stats.put("uploads", plugin.getUploads().getStats());
+        TelemetrySpool spool = plugin.getSpool();
+        if (spool != null) {
+            stats.put("spool", Map.of("pendingBytes", spool.getPendingBytes(), "replaying", spool.isReplaying(),
+                "droppedSegments", spool.getDroppedSegments()));
+        }
+        return stats;
+    }
+
+    void sendResponse(String reqId, Map<String, Object> data) {
+        enqueue(OutboundQueue.Lane.RESPONSE, null, responseMessage(reqId, data));
+    }
+
+    // Relayed sibling traffic rides the RESPONSE lane: never dropped, and ahead of our own telemetry
+    // Relay traffic is sent unsequenced: its channels close with the connection, so it is never resent
+    boolean sendRelayFrame(byte[] frame, boolean compressible) {
+        if (!isOpen()) return false;
+        return sendRelay(new OutboundQueue.Frame(OutboundQueue.Lane.RESPONSE, null, frame, true, compressible));
+    }
+
+    boolean sendRelayControl(Map<String, Object> msg) {
+        if (!isOpen()) return false;
+        boolean binary = binaryCodec;
+        byte[] payload = binary ? WireCodec.encodeFrame(msg) : PayloadWriter.encodeJson(msg);
+        return sendRelay(new OutboundQueue.Frame(OutboundQueue.Lane.RESPONSE, null, payload, binary, true));
+    }
+
+    private boolean sendRelay(OutboundQueue.Frame frame) {
+        frame.sequenced = false;
+        return outbound.offer(frame);
+    }
+
+    // Already-framed binary payloads; only permessage-deflate applies, never the dictionary
+    boolean sendBinary(OutboundQueue.Lane lane, byte[] payload) {
+        if (!isOpen()) return false;
+        return outbound.offer(new OutboundQueue.Frame(lane, null, payload, true, compressionThreshold("FILE_STREAM") >= 0));
     }
 
     private void sendError(String reqId, String error) {
-        if (isOpen()) send(gson.toJson(Map.of("type", "ERROR", "requestId", reqId, "data", Map.of("error", error))));
+        enqueue(OutboundQueue.Lane.RESPONSE, null, errorMessage(reqId, error));
+    }
+
+    // Refused without running; the backend may retry the same requestId after retryAfterMs
+    private void sendBusy(String reqId, String error, long retryAfterMs) {
+        enqueue(OutboundQueue.Lane.RESPONSE, null, Map.of("type", "ERROR", "requestId", reqId,
+            "data", Map.of("error", error, "busy", true, "retryAfterMs", retryAfterMs)));
+    }
+
+    private static Map<String, Object> responseMessage(String reqId, Map<String, Object> data) {
+        return Map.of("type", "RESPONSE", "requestId", reqId, "data", data);
+    }
+
+    private static Map<String, Object> errorMessage(String reqId, String error) {
+        return Map.of("type", "ERROR", "requestId", reqId, "data", Map.of("error", error));
+    }
+
+    // Typed pushes are serialized straight into the frame; the spool always stores the binary form
+    public void sendPush(String type, Payload payload) {
+        WebSocketClient current = plugin.getWsClient();
+        if (current != null && current != this) {
+            current.sendPush(type, payload);
+            return;
+        }
+        if (isOpen()) {
+            boolean binary = binaryCodec;
+            byte[] frame = PayloadWriter.encodeMessage(type, payload, binary);
+            if (enqueue(OutboundQueue.Lane.TELEMETRY, COALESCED_PUSHES.contains(type) ? type : null, type, frame, binary)) return;
+        }
+        TelemetrySpool spool = plugin.getSpool();
+        if (spool != null) spool.append(PayloadWriter.encodeMessage(type, payload, true));
     }
 
+    // Pushes made while offline go to the disk spool and are replayed after the next WELCOME
     public void sendPush(String type, Map<String, Object> data) {
-        if (isOpen()) send(gson.toJson(Map.of("type", type, "data", data)));
+        WebSocketClient current = plugin.getWsClient();
+        if (current != null && current != this) {
+            current.sendPush(type, data);
+            return;
+        }
+        Map<String, Object> msg = Map.of("type", type, "data", data);
+        if (isOpen() && enqueue(OutboundQueue.Lane.TELEMETRY, COALESCED_PUSHES.contains(type) ? type : null, msg)) return;
+        TelemetrySpool spool = plugin.getSpool();
+        if (spool != null) spool.append(WireCodec.encodeFrame(msg));
     }
 
-    private void handleWorldAction(JsonObject json) {
-        String reqId = json.get("requestId").getAsString();
-        String type = json.get("type").getAsString();
-        JsonObject data = json.has("data") ? json.getAsJsonObject("data") : new JsonObject();
-        if (plugin.getWorldManager() != null) {
-            plugin.getServer().getScheduler().runTask(plugin, () -> {
-                var result = plugin.getWorldManager().handleAction(type, data);
-                sendResponse(reqId, Map.of("data", result.toString()));
-            });
-        } else {
-            sendError(reqId, "World management not available");
+    boolean replaySpooled(byte[] record, long spooledAt) {
+        if (!isOpen()) return false;
+        JsonObject msg = WireCodec.decodeFrame(ByteBuffer.wrap(record));
+        msg.addProperty("spooledAt", spooledAt);
+        boolean binary = binaryCodec;
+        byte[] payload = binary ? WireCodec.encodeFrame(msg) : PayloadWriter.encodeJson(msg);
+        return enqueue(OutboundQueue.Lane.TELEMETRY, null, msg.get("type").getAsString(), payload, binary);
+    }
+
+    private boolean enqueue(OutboundQueue.Lane lane, String coalesceKey, Map<String, Object> msg) {
+        return enqueue(lane, coalesceKey, msg, null);
+    }
+
+    private boolean enqueue(OutboundQueue.Lane lane, String coalesceKey, Map<String, Object> msg, RequestTrace trace) {
+        boolean binary = binaryCodec;
+        byte[] payload = binary ? WireCodec.encodeFrame(msg) : PayloadWriter.encodeJson(msg);
+        return enqueue(lane, coalesceKey, (String) msg.get("type"), payload, binary, trace);
+    }
+
+    private boolean enqueue(OutboundQueue.Lane lane, String coalesceKey, String type, byte[] payload, boolean binary) {
+        return enqueue(lane, coalesceKey, type, payload, binary, null);
+    }
+
+    private boolean enqueue(OutboundQueue.Lane lane, String coalesceKey, String type, byte[] payload, boolean binary, RequestTrace trace) {
+        int threshold = compressionThreshold(type);
+        boolean compress = threshold >= 0 && payload.length >= threshold;
+        if (compress && dictCompression) {
+            payload = binary ? compressor.compress(payload, 1, WireCodec.FLAG_CODEC) : compressor.compress(payload, 0, (byte) 0);
+            binary = true;
+            compress = false;
         }
+        OutboundQueue.Frame frame = new OutboundQueue.Frame(lane, coalesceKey, payload, binary, compress);
+        if (trace != null) {
+            trace.serialized = System.nanoTime();
+            frame.trace = trace;
+        }
+        return Thread.currentThread() == socketThread ? outbound.tryOffer(frame) : outbound.offer(frame);
     }
 
-    private void handlePluginAction(JsonObject json) {
-        String reqId = json.get("requestId").getAsString();
-        String type = json.get("type").getAsString();
-        JsonObject data = json.has("data") ? json.getAsJsonObject("data") : new JsonObject();
-        if (plugin.getPluginManager() != null) {
-            plugin.getServer().getScheduler().runTask(plugin, () -> {
-                var result = plugin.getPluginManager().handleAction(type, data);
-                sendResponse(reqId, Map.of("data", result.toString()));
-            });
-        } else {
-            sendError(reqId, "Plugin management not available");
+    private int compressionThreshold(String type) {
+        return compressionThresholds.computeIfAbsent(type, t -> {
+            ModuleConfig config = plugin.getModuleConfig();
+            int fallback = config.getConnectionInt("compression.min-bytes.default", 512);
+            return config.getConnectionInt("compression.min-bytes." + t, fallback);
+        });
+    }
+
+    void writeFrame(OutboundQueue.Frame frame, long seq) {
+        if (!isOpen()) return;
+        RequestTrace trace = frame.trace;
+        if (trace != null) trace.dequeued = System.nanoTime();
+        DataFrame data;
+        if (frame.binary) data = frame.compressible ? new BinaryFrame() : new SelectiveDeflateExtension.PlainBinaryFrame();
+        else data = frame.compressible ? new TextFrame() : new SelectiveDeflateExtension.PlainTextFrame();
+        data.setPayload(ByteBuffer.wrap(seq > 0 ? stamp(frame, seq) : frame.payload));
+        data.setFin(true);
+        try {
+            sendFrame(data);
+            if (trace != null) trace.finish();
+        } catch (WebsocketNotConnectedException ignored) {}
+    }
+
+    // Binary frames carry the sequence number as a varint after the flags byte, JSON frames as a leading "seq" field
+    private static byte[] stamp(OutboundQueue.Frame frame, long seq) {
+        if (!frame.binary) {
+            byte[] prefix = ("{\"seq\":" + seq + (frame.payload.length > 2 ? "," : "")).getBytes(StandardCharsets.UTF_8);
+            byte[] out = new byte[prefix.length + frame.payload.length - 1];
+            System.arraycopy(prefix, 0, out, 0, prefix.length);
+            System.arraycopy(frame.payload, 1, out, prefix.length, frame.payload.length - 1);
+            return out;
         }
+        WireCodec.Output out = new WireCodec.Output(frame.payload.length + 10);
+        out.write(frame.payload[0] | OutboundQueue.FLAG_SEQUENCED);
+        out.writeVarLong(seq);
+        out.write(frame.payload, 1, frame.payload.length - 1);
+        return out.toByteArray();
     }
 
-    private void handleQuickAction(JsonObject json) {
-        String reqId = json.get("requestId").getAsString();
-        String type = json.get("type").getAsString();
-        JsonObject data = json.getAsJsonObject("data");
-        if (plugin.getQuickActions() != null) {
-            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
-                var result = plugin.getQuickActions().handleAction(type, data);
-                sendResponse(reqId, result);
-            });
-        } else {
-            sendError(reqId, "Quick actions not available");
+    // Frames kept across a reconnect were encoded for the previous session; one using a codec or dictionary
+    // the new session did not agree to is re-encoded, or null when it cannot be decoded
+    OutboundQueue.Frame conform(OutboundQueue.Frame frame) {
+        if (!frame.binary) return frame;
+        byte flags = frame.payload[0];
+        if ((flags & RelayServer.FLAG_RELAY) != 0) return frame;
+        boolean dict = (flags & FrameCompressor.FLAG_DICT_DEFLATE) != 0;
+        boolean codec = (flags & WireCodec.FLAG_CODEC) != 0;
+        if ((!dict || dictCompression) && (!codec || binaryCodec)) return frame;
+        JsonObject msg;
+        try {
+            msg = decodeBinary(ByteBuffer.wrap(frame.payload));
+        } catch (Exception e) {
+            return null;
         }
+        byte[] payload = binaryCodec ? WireCodec.encodeFrame(msg) : PayloadWriter.encodeJson(msg);
+        // Left to permessage-deflate now that the dictionary is off
+        OutboundQueue.Frame out = new OutboundQueue.Frame(frame.lane, frame.coalesceKey, payload, binaryCodec, frame.compressible || dict);
+        out.trace = frame.trace;
+        out.sequenced = frame.sequenced;
+        return out;
+    }
+
+    long getBufferedBytes() {
+        WebSocket conn = getConnection();
+        if (!(conn instanceof WebSocketImpl impl)) return 0;
+        long total = 0;
+        for (ByteBuffer buf : impl.outQueue) total += buf.remaining();
+        return total;
+    }
+
+    public OutboundQueue getOutboundQueue() { return outbound; }
+    public EndpointSelector getEndpoints() { return endpoints; }
+    public LatencyTracker getLatencyTracker() { return latency; }
+    public RequestExecutor getRequestExecutor() { return requests; }
+    public FrameCompressor getCompressor() { return compressor; }
+    public boolean isDictionaryCompression() { return dictCompression; }
+
+    // Asked by modules holding an older client after a manual reconnect, like sendPush
+    public boolean isSeriesEncoding() {
+        WebSocketClient current = plugin.getWsClient();
+        return current != null && current != this ? current.isSeriesEncoding() : seriesEncoding;
+    }
+
+    private Map<String, Object> worldAction(String type, String reqId, JsonObject data) {
+        if (plugin.getWorldManager() == null) throw new IllegalStateException("World management not available");
+        return Map.of("data", plugin.getWorldManager().handleAction(type, data).toString());
+    }
+
+    private Map<String, Object> pluginAction(String type, String reqId, JsonObject data) {
+        if (plugin.getPluginManager() == null) throw new IllegalStateException("Plugin management not available");
+        return Map.of("data", plugin.getPluginManager().handleAction(type, data).toString());
+    }
+
+    private Map<String, Object> quickAction(String type, String reqId, JsonObject data) {
+        if (plugin.getQuickActions() == null) throw new IllegalStateException("Quick actions not available");
+        return plugin.getQuickActions().handleAction(type, data);
     }
 }
@@ -0,0 +1,356 @@
+package com.configtool.agent;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compact binary encoding of the agent's message maps: tagged values, zigzag varints, and
+// field names / common string values replaced by their index in fixed tables. The tables
+// are part of the protocol version and may only ever be appended to.
+public final class WireCodec {
+    public static final String VERSION = "binary-v1";
+    public static final byte FLAG_CODEC = 0x01;
+
+    static final byte T_NULL = 0, T_FALSE = 1, T_TRUE = 2, T_INT = 3, T_DOUBLE = 4, T_FLOAT = 5,
+            T_STRING = 6, T_INTERNED = 7, T_ARRAY = 8, T_MAP = 9;
+
+    private static final String[] KEYS = {
+        "type", "data", "requestId", "error", "content", "success", "output",
+        "entries", "logLevel", "message", "source", "recordedAt",
+        "events", "playerUuid", "playerName", "eventType", "worldName", "x", "y", "z", "ipHash", "eventData",
+        "tps", "cpuPercent", "ramUsedMb", "ramMaxMb", "diskUsedMb", "diskTotalMb", "playerCount", "maxPlayers",
+        "chunkCount", "entityCount", "uptimeSeconds", "gcCount", "gcTimeMs",
+        "pluginTicks", "pluginName", "tickTimeMs", "totalMoney", "topBalances", "name", "balance", "transactionCount",
+        "files", "total", "offset", "hasMore", "path", "isDirectory", "size", "directory", "limit",
+        "chunkIndex", "totalChunks", "isLast", "command", "oldPath", "newPath", "reason", "enabled",
+        "rule", "value", "codec", "spooledAt", "seq", "resumed",
+        "streamId", "credits", "window", "chunkSize", "modifiedAt",
+        "uploadId", "received", "bytes", "crc32",
+        "signatures", "blockSize", "weak", "strong", "baseHash", "hash", "unchanged", "delta", "block", "count", "literal",
+        "requests", "results",
+        "probe", "sentAt",
+        "types", "reset",
+        "busy", "retryAfterMs",
+        "version", "ifVersion", "notModified",
+        "streams", "stream", "intervalSeconds", "watched", "leaseSeconds",
+        "channel", "headers", "code",
+        "tickCount", "ticksOverBudget", "msptP50", "msptP95", "msptP99", "msptMax",
+        "calls", "worstMs", "pluginTiming",
+        "encoding", "start", "end", "fields",
+        "from", "to", "stepSeconds", "maxPoints", "resolutionSeconds", "timestamps", "series",
+        "threshold", "peak", "triggeredAt", "metrics", "ticks", "tickMs", "threads", "cpuMs"
+    };
+
+    private static final String[] VALUES = {
+        "HEARTBEAT", "HEARTBEAT_ACK", "WELCOME", "RESPONSE", "ERROR", "FILE_CHUNK",
+        "METRICS_BATCH", "CONSOLE_BATCH", "PLAYER_EVENT", "PERFORMANCE_DATA", "ECONOMY_SNAPSHOT",
+        "INFO", "WARN", "CHAT", "JOIN", "LEAVE", "DEATH", "COMMAND", "ADVANCEMENT",
+        "world", "world_nether", "world_the_end", "Minecraft", "", "ACK",
+        "READ_FILE_STREAM", "STREAM_CREDIT", "STREAM_CANCEL",
+        "UPLOAD_BEGIN", "UPLOAD_PART", "UPLOAD_COMMIT", "UPLOAD_ABORT", "UPLOAD_STATUS",
+        "BATCH", "LIST_FILES", "READ_FILE", "GET_WORLDS", "GET_PLUGINS", "GET_LATENCY_STATS",
+        "METRICS_SERIES", "gorilla-1", "GET_METRICS_RANGE",
+        "INCIDENT", "mspt", "tps"
+    };
+
+    private static final Map<String, Integer> KEY_INDEX = index(KEYS);
+    private static final Map<String, Integer> VALUE_INDEX = index(VALUES);
+
+    private WireCodec() {}
+
+    private static Map<String, Integer> index(String[] table) {
+        Map<String, Integer> map = new HashMap<>();
+        for (int i = 0; i < table.length; i++) map.put(table[i], i);
+        return map;
+    }
+
+    public static byte[] encodeFrame(Map<String, ?> message) {
+        Output out = new Output(256);
+        out.write(FLAG_CODEC);
+        writeValue(out, message);
+        return out.toByteArray();
+    }
+
+    public static byte[] encodeFrame(JsonObject message) {
+        Output out = new Output(256);
+        out.write(FLAG_CODEC);
+        writeJson(out, message);
+        return out.toByteArray();
+    }
+
+    public static JsonObject decodeFrame(ByteBuffer frame) {
+        byte flags = frame.get();
+        if ((flags & FLAG_CODEC) == 0) throw new IllegalArgumentException("Unsupported frame flags: " + flags);
+        return decodeBody(frame);
+    }
+
+    public static JsonObject decodeBody(ByteBuffer frame) {
+        JsonElement element = readValue(frame);
+        if (!element.isJsonObject()) throw new IllegalArgumentException("Frame is not an object");
+        return element.getAsJsonObject();
+    }
+
+    private static void writeValue(Output out, Object value) {
+        if (value == null || value instanceof JsonNull) {
+            out.write(T_NULL);
+        } else if (value instanceof Boolean b) {
+            out.write(b ? T_TRUE : T_FALSE);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            out.write(T_INT);
+            out.writeVarLong(zigzag(((Number) value).longValue()));
+        } else if (value instanceof Number n) {
+            writeDouble(out, n.doubleValue());
+        } else if (value instanceof Map<?, ?> map) {
+            out.write(T_MAP);
+            out.writeVarLong(map.size());
+            for (Map.Entry<?, ?> e : map.entrySet()) {
+                writeKey(out, String.valueOf(e.getKey()));
+                writeValue(out, e.getValue());
+            }
+        } else if (value instanceof List<?> list) {
+            out.write(T_ARRAY);
+            out.writeVarLong(list.size());
+            for (Object item : list) writeValue(out, item);
+        } else if (value instanceof JsonElement json) {
+            writeJson(out, json);
+        } else {
+            writeString(out, value.toString());
+        }
+    }
+
+    private static void writeJson(Output out, JsonElement json) {
+        if (json.isJsonNull()) {
+            out.write(T_NULL);
+        } else if (json.isJsonObject()) {
+            out.write(T_MAP);
+            out.writeVarLong(json.getAsJsonObject().size());
+            for (Map.Entry<String, JsonElement> e : json.getAsJsonObject().entrySet()) {
+                writeKey(out, e.getKey());
+                writeJson(out, e.getValue());
+            }
+        } else if (json.isJsonArray()) {
+            out.write(T_ARRAY);
+            out.writeVarLong(json.getAsJsonArray().size());
+            for (JsonElement item : json.getAsJsonArray()) writeJson(out, item);
+        } else {
+            JsonPrimitive p = json.getAsJsonPrimitive();
+            if (p.isBoolean()) out.write(p.getAsBoolean() ? T_TRUE : T_FALSE);
+            else if (p.isString()) writeString(out, p.getAsString());
+            else {
+                double d = p.getAsDouble();
+                if (d == Math.rint(d) && Math.abs(d) < 1L << 53) {
+                    out.write(T_INT);
+                    out.writeVarLong(zigzag((long) d));
+                } else {
+                    writeDouble(out, d);
+                }
+            }
+        }
+    }
+
+    static void writeDouble(Output out, double d) {
+        float f = (float) d;
+        if (f == d) {
+            out.write(T_FLOAT);
+            out.writeInt(Float.floatToIntBits(f));
+        } else {
+            out.write(T_DOUBLE);
+            out.writeLong(Double.doubleToLongBits(d));
+        }
+    }
+
+    static void writeKey(Output out, String key) {
+        Integer idx = KEY_INDEX.get(key);
+        if (idx != null) {
+            out.writeVarLong(idx + 1);
+        } else {
+            out.writeVarLong(0);
+            out.writeUtf8(key);
+        }
+    }
+
+    static void writeString(Output out, String s) {
+        Integer idx = VALUE_INDEX.get(s);
+        if (idx != null) {
+            out.write(T_INTERNED);
+            out.writeVarLong(idx);
+        } else {
+            out.write(T_STRING);
+            out.writeUtf8(s);
+        }
+    }
+
+    private static JsonElement readValue(ByteBuffer in) {
+        byte tag = in.get();
+        return switch (tag) {
+            case T_NULL -> JsonNull.INSTANCE;
+            case T_FALSE -> new JsonPrimitive(false);
+            case T_TRUE -> new JsonPrimitive(true);
+            case T_INT -> new JsonPrimitive(unzigzag(readVarLong(in)));
+            case T_FLOAT -> new JsonPrimitive((double) Float.intBitsToFloat(in.getInt()));
+            case T_DOUBLE -> new JsonPrimitive(Double.longBitsToDouble(in.getLong()));
+            case T_STRING -> new JsonPrimitive(readUtf8(in));
+            case T_INTERNED -> new JsonPrimitive(VALUES[(int) readVarLong(in)]);
+            case T_ARRAY -> {
+                int count = (int) readVarLong(in);
+                JsonArray array = new JsonArray();
+                for (int i = 0; i < count; i++) array.add(readValue(in));
+                yield array;
+            }
+            case T_MAP -> {
+                int count = (int) readVarLong(in);
+                JsonObject object = new JsonObject();
+                for (int i = 0; i < count; i++) {
+                    int k = (int) readVarLong(in);
+                    String key = k == 0 ? readUtf8(in) : KEYS[k - 1];
+                    object.add(key, readValue(in));
+                }
+                yield object;
+            }
+            default -> throw new IllegalArgumentException("Unknown tag: " + tag);
+        };
+    }
+
+    static long zigzag(long v) { return (v << 1) ^ (v >> 63); }
+    private static long unzigzag(long v) { return (v >>> 1) ^ -(v & 1); }
+
+    static long readVarLong(ByteBuffer in) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static String readUtf8(ByteBuffer in) {
+        byte[] bytes = new byte[(int) readVarLong(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static final class Output {
+        private byte[] buf;
+        private int count;
+
+        Output(int capacity) { buf = new byte[capacity]; }
+
+        private void ensure(int extra) {
+            if (count + extra > buf.length) {
+                byte[] grown = new byte[Math.max(buf.length * 2, count + extra)];
+                System.arraycopy(buf, 0, grown, 0, count);
+                buf = grown;
+            }
+        }
+
+        void write(int b) {
+            ensure(1);
+            buf[count++] = (byte) b;
+        }
+
+        void write(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        void write(ByteBuffer b) {
+            int len = b.remaining();
+            ensure(len);
+            b.get(buf, count, len);
+            count += len;
+        }
+
+        void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[count++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[count++] = (byte) v;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) buf[count++] = (byte) (v >>> shift);
+        }
+
+        void writeLong(long v) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) buf[count++] = (byte) (v >>> shift);
+        }
+
+        // Encodes in place rather than via getBytes(); unpaired surrogates become '?' like String.getBytes
+        void writeUtf8(String s) {
+            int len = utf8Length(s);
+            writeVarLong(len);
+            ensure(len);
+            for (int i = 0; i < s.length(); i++) i = putChar(s, i);
+        }
+
+        // Writes the char at i as UTF-8 and returns the last index consumed (surrogate pairs take two)
+        int writeChar(String s, int i) {
+            ensure(4);
+            return putChar(s, i);
+        }
+
+        private int putChar(String s, int i) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[count++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[count++] = (byte) (0xC0 | (c >> 6));
+                buf[count++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[count++] = (byte) (0xF0 | (cp >> 18));
+                buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[count++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buf[count++] = '?';
+            } else {
+                buf[count++] = (byte) (0xE0 | (c >> 12));
+                buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+            return i;
+        }
+
+        private static int utf8Length(String s) {
+            int len = 0;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) len++;
+                else if (c < 0x800) len += 2;
+                else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    len += 4;
+                    i++;
+                } else if (Character.isSurrogate(c)) len++;
+                else len += 3;
+            }
+            return len;
+        }
+
+        int size() { return count; }
+
+        int capacity() { return buf.length; }
+
+        void reset() { count = 0; }
+
+        byte[] toByteArray() {
+            byte[] out = new byte[count];
+            System.arraycopy(buf, 0, out, 0, count);
+            return out;
+        }
+    }
+}
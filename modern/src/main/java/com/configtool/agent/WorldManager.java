@@ -63,6 +63,7 @@ public class WorldManager {
                         if (world != null) {
                             Bukkit.dispatchCommand(Bukkit.getConsoleSender(), "gamerule " + rule + " " + value);
                         }
+                        if (plugin.getResponseCache() != null) plugin.getResponseCache().invalidate(ResponseCache.WORLDS);
                     });
                     result.put("success", true);
                     result.put("output", "Gamerule set");